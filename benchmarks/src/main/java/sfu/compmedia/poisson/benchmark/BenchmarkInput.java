@@ -0,0 +1,229 @@
+package sfu.compmedia.poisson.benchmark;
+
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import sfu.compmedia.poisson.Matte;
+import sfu.compmedia.poisson.PoissonImageEditor;
+
+/**
+ *
+ * The inputs shared by all the benchmarks: a source, its matte and a target, plus everything
+ * Paste derives from them before solving (the unknowns and the right-hand sides).
+ *
+ * An input is either one of the sampleImages pairs (by the name of the source image) or a
+ * synthetic elliptic matte with a given number of pixels, e.g. "synthetic-64k" or "synthetic-4M".
+ *
+ * The sampleImages folder is looked up in the working directory and its parent, or taken from
+ * the poisson.sampleImages system property.
+ *
+ */
+public class BenchmarkInput {
+
+	/**
+	 * source, matte (null = elliptic), target, paste position - the same pairs as the GUI demos
+	 */
+	private static final String[][] SAMPLES = {
+		{"kitten", "kittenmask", "library", "300", "200"},
+		{"penguin", null, "beach", "400", "300"},
+		{"balloon", null, "lake", "200", "100"},
+		{"eagle", null, "liberty", "100", "100"},
+		{"watereagle", null, "moon", "250", "300"},
+	};
+
+	final String name;
+
+	BufferedImage source, matte, target;
+	int pasteX, pasteY;
+
+	/**
+	 * The selection as a polygon, the input of CreateMatte
+	 */
+	Polygon selection;
+
+	// Same as in PoissonImageEditor.Paste
+	Matte region;
+	int numVars;
+
+	/**
+	 * One right-hand side per RGB channel
+	 */
+	double[][] B;
+
+	private BenchmarkInput(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	public static BenchmarkInput load(String name) throws IOException
+	{
+		BenchmarkInput input = new BenchmarkInput(name);
+
+		if (name.startsWith("synthetic-"))
+			input.synthesize(parseSize(name.substring("synthetic-".length())));
+		else
+			input.loadSample(name);
+
+		input.enumerate();
+		input.buildRightHandSides();
+
+		return input;
+	}
+
+	/**
+	 * "1k" = 1000, "4M" = 4000000
+	 */
+	private static int parseSize(String s)
+	{
+		char unit = s.charAt(s.length() - 1);
+
+		if (unit == 'k' || unit == 'K')
+			return Integer.parseInt(s.substring(0, s.length() - 1)) * 1000;
+		if (unit == 'M' || unit == 'm')
+			return Integer.parseInt(s.substring(0, s.length() - 1)) * 1000000;
+
+		return Integer.parseInt(s);
+	}
+
+	private void loadSample(String name) throws IOException
+	{
+		File dir = sampleImagesDir();
+
+		for (String[] sample : SAMPLES)
+		{
+			if (!sample[0].equals(name)) continue;
+
+			source = ImageIO.read(new File(dir, sample[0] + ".png"));
+			target = ImageIO.read(new File(dir, sample[2] + ".png"));
+			pasteX = Integer.parseInt(sample[3]);
+			pasteY = Integer.parseInt(sample[4]);
+
+			selection = ellipse(source.getWidth(), source.getHeight());
+			matte = sample[1] != null ? ImageIO.read(new File(dir, sample[1] + ".png")) :
+					PoissonImageEditor.CreateMatte(source, selection);
+			return;
+		}
+
+		throw new IllegalArgumentException("Unknown input " + name);
+	}
+
+	private static File sampleImagesDir()
+	{
+		String property = System.getProperty("poisson.sampleImages");
+		if (property != null) return new File(property);
+
+		File dir = new File("sampleImages");
+		return dir.isDirectory() ? dir : new File("../sampleImages");
+	}
+
+	/**
+	 * A square source with an inscribed ellipse of about the given number of pixels, and a
+	 * slightly bigger target, both with smooth made-up content
+	 */
+	private void synthesize(int pixels)
+	{
+		int side = (int)Math.ceil(Math.sqrt(4.0 * pixels / Math.PI)) + 4;
+
+		source = pattern(side, side, 17);
+		target = pattern(side + 20, side + 20, 41);
+		pasteX = 10;
+		pasteY = 10;
+
+		selection = ellipse(side, side);
+		matte = PoissonImageEditor.CreateMatte(source, selection);
+	}
+
+	private static BufferedImage pattern(int w, int h, int period)
+	{
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[w];
+
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				int r = (int)(127.5 + 127.5 * Math.sin((double)x / period));
+				int g = (int)(127.5 + 127.5 * Math.cos((double)y / period));
+				int b = (x ^ y) & 0xFF;
+				row[x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+			}
+			img.setRGB(0, y, w, 1, row, 0, w);
+		}
+
+		return img;
+	}
+
+	/**
+	 * An ellipse touching the middle of every side, shrunk by 2 pixels so it stays off the edges
+	 */
+	private static Polygon ellipse(int w, int h)
+	{
+		Polygon p = new Polygon();
+		double cx = w / 2.0, cy = h / 2.0;
+		double rx = cx - 2, ry = cy - 2;
+
+		for (int i = 0; i < 256; i++)
+		{
+			double a = 2 * Math.PI * i / 256;
+			p.addPoint((int)Math.round(cx + rx * Math.cos(a)), (int)Math.round(cy + ry * Math.sin(a)));
+		}
+
+		return p;
+	}
+
+	/**
+	 * Reads the matte exactly like Paste does
+	 */
+	void enumerate()
+	{
+		region = Matte.fromImage(matte);
+		numVars = region.getCount();
+	}
+
+	/**
+	 * Right-hand sides of the equation (7) with the plain source gradients as the guidance field.
+	 * The solves don't care much about the exact values, only about having realistic ones.
+	 */
+	private void buildRightHandSides()
+	{
+		B = new double[3][numVars];
+
+		for (int y = region.y0; y < region.y0 + region.height; y++)
+		{
+			for (int x = region.x0; x < region.x0 + region.width; x++)
+			{
+				int var = region.index(x, y);
+				if (var < 0) continue;
+
+				int[][] n = {{x, y-1}, {x+1, y}, {x, y+1}, {x-1, y}};
+				int p = source.getRGB(x, y);
+
+				for (int c = 0; c < 3; c++)
+				{
+					int shift = 16 - 8 * c;
+					double sum = 0;
+
+					for (int[] q : n)
+					{
+						sum += (((p >> shift) & 0xFF) - ((source.getRGB(q[0], q[1]) >> shift) & 0xFF)) / 255.0;
+
+						// Known target values on the boundary of Omega
+						if (!region.contains(q[0], q[1]))
+							sum += ((target.getRGB(pasteX + q[0], pasteY + q[1]) >> shift) & 0xFF) / 255.0;
+					}
+
+					B[c][var] = sum;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package sfu.compmedia.poisson.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * Runs the benchmarks with the GC profiler switched on, so every result comes with the
+ * allocation rate (gc.alloc.rate and gc.alloc.rate.norm, i.e. bytes per operation).
+ *
+ * Takes the usual JMH command line, e.g. a regular expression to run only some of them:
+ *
+ *     java -cp benchmarks/target/benchmarks.jar sfu.compmedia.poisson.benchmark.BenchmarkMain DirectSolver -p input=kitten
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException
+	{
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
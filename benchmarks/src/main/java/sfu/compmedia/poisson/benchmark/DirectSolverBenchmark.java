@@ -0,0 +1,130 @@
+package sfu.compmedia.poisson.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.interfaces.linsol.LinearSolverSparse;
+import org.ejml.sparse.FillReducing;
+import org.ejml.sparse.csc.factory.LinearSolverFactory_DSCC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sfu.compmedia.poisson.PoissonImageEditor;
+import sfu.compmedia.poisson.solver.MixedPrecisionCholesky;
+
+/**
+ *
+ * The stages of the direct (Cholesky) engine: assembling A, factorizing it, and the
+ * triangular solves - per channel, and all three channels at once as Paste does them. The same
+ * with the factor in float and the solution refined in double (Precision.MIXED).
+ *
+ * The factor fills in with the width of the matte, so the synthetic inputs stop at 64k
+ * pixels here. The bigger ones are covered by IterativeSolverBenchmark.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DirectSolverBenchmark {
+
+	@Param({"kitten", "penguin", "balloon", "eagle", "watereagle",
+		"synthetic-1k", "synthetic-16k", "synthetic-64k"})
+	public String input;
+
+	BenchmarkInput in;
+
+	DMatrixSparseCSC A;
+	LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> factorized;
+	LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> factorizedMixed;
+
+	DMatrixRMaj channel, channelSolution;
+	DMatrixRMaj channels, channelsSolution;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		in = BenchmarkInput.load(input);
+
+		final int n = in.numVars;
+
+		A = assemble();
+		factorized = factorize();
+		factorizedMixed = factorizeMixed();
+
+		channel = DMatrixRMaj.wrap(n, 1, in.B[0].clone());
+		channelSolution = new DMatrixRMaj(n, 1);
+
+		channels = new DMatrixRMaj(n, 3);
+		channelsSolution = new DMatrixRMaj(n, 3);
+		for (int row = 0; row < n; row++)
+			for (int c = 0; c < 3; c++)
+				channels.data[row * 3 + c] = in.B[c][row];
+	}
+
+	@Benchmark
+	public DMatrixSparseCSC assemble()
+	{
+		return PoissonImageEditor.assembleMatrix(in.region);
+	}
+
+	@Benchmark
+	public LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> factorize()
+	{
+		LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver = LinearSolverFactory_DSCC.cholesky(FillReducing.NONE);
+		solver.setA(solver.modifiesA() ? A.copy() : A);
+		return solver;
+	}
+
+	@Benchmark
+	public LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> factorizeMixed()
+	{
+		LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver = new MixedPrecisionCholesky();
+		solver.setA(A);
+		return solver;
+	}
+
+	/**
+	 * Forward and backward substitution for one channel
+	 */
+	@Benchmark
+	public DMatrixRMaj solveChannel()
+	{
+		factorized.solve(channel, channelSolution);
+		return channelSolution;
+	}
+
+	/**
+	 * All three channels as the columns of one right-hand side
+	 */
+	@Benchmark
+	public DMatrixRMaj solveChannels()
+	{
+		factorized.solve(channels, channelsSolution);
+		return channelsSolution;
+	}
+
+	/**
+	 * All three channels, with as many float solves as the refinement takes
+	 */
+	@Benchmark
+	public DMatrixRMaj solveChannelsMixed()
+	{
+		factorizedMixed.solve(channels, channelsSolution);
+		return channelsSolution;
+	}
+}
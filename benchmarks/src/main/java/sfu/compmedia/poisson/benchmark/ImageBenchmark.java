@@ -0,0 +1,103 @@
+package sfu.compmedia.poisson.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sfu.compmedia.poisson.ImageUtil;
+import sfu.compmedia.poisson.Matte;
+import sfu.compmedia.poisson.PlanarImage;
+import sfu.compmedia.poisson.PoissonImageEditor;
+
+/**
+ *
+ * The pixel work around the solve: making the matte out of the lasso polygon, finding the
+ * unknowns, reading the target under the pasted area and writing the solution back.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ImageBenchmark {
+
+	@Param({"kitten", "penguin", "balloon", "eagle", "watereagle",
+		"synthetic-1k", "synthetic-16k", "synthetic-64k", "synthetic-256k", "synthetic-1M", "synthetic-4M"})
+	public String input;
+
+	BenchmarkInput in;
+	PoissonImageEditor pie;
+
+	PlanarImage dst;
+	boolean[] written;
+	BufferedImage result;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		in = BenchmarkInput.load(input);
+		pie = new PoissonImageEditor();
+
+		Matte region = in.region;
+		dst = ImageUtil.unpack(in.target, in.pasteX + region.x0 - 1, in.pasteY + region.y0 - 1, region.width + 2, region.height + 2);
+		written = new boolean[dst.width * dst.height];
+		for (int y = region.y0; y < region.y0 + region.height; y++)
+			for (int x = region.x0; x < region.x0 + region.width; x++)
+				written[dst.index(in.pasteX + x, in.pasteY + y)] = region.contains(x, y);
+
+		result = ImageUtil.deepCopy(in.target);
+	}
+
+	@Benchmark
+	public BufferedImage createMatte()
+	{
+		return PoissonImageEditor.CreateMatte(in.source, in.selection);
+	}
+
+	/**
+	 * The lasso straight into a Matte, the way the GUI pastes
+	 */
+	@Benchmark
+	public Matte rasterizeSelection()
+	{
+		return Matte.fromPolygon(in.selection, in.source.getWidth(), in.source.getHeight());
+	}
+
+	/**
+	 * Reading the matte image into a Matte at the start of Paste
+	 */
+	@Benchmark
+	public int enumerateUnknowns()
+	{
+		in.enumerate();
+		return in.numVars;
+	}
+
+	@Benchmark
+	public PlanarImage unpackTarget()
+	{
+		return ImageUtil.unpack(in.target, dst.x0, dst.y0, dst.width, dst.height);
+	}
+
+	@Benchmark
+	public BufferedImage writeBack()
+	{
+		ImageUtil.pack(dst, result, written);
+		return result;
+	}
+}
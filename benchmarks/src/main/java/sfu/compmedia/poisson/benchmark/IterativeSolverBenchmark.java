@@ -0,0 +1,158 @@
+package sfu.compmedia.poisson.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sfu.compmedia.poisson.ConvolutionPyramid;
+import sfu.compmedia.poisson.ImageUtil;
+import sfu.compmedia.poisson.MeanValueCloner;
+import sfu.compmedia.poisson.PlanarImage;
+import sfu.compmedia.poisson.QuadtreeSolver;
+import sfu.compmedia.poisson.solver.ConjugateGradientSolver;
+import sfu.compmedia.poisson.solver.LaplacianStencil;
+import sfu.compmedia.poisson.solver.MultigridSolver;
+import sfu.compmedia.poisson.solver.Preconditioner;
+import sfu.compmedia.poisson.solver.SchwarzSolver;
+
+/**
+ *
+ * The matrix-free engines: building the stencil (their "assembly") and solving one channel,
+ * from a zero initial guess, on all the inputs up to 4M pixels. Next to them the solver-free
+ * mean-value cloning, tracing the contour and computing all three channels, the convolution
+ * pyramid (all three channels), and the quadtree engine from building the reduced system to the
+ * solution of all three channels.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class IterativeSolverBenchmark {
+
+	@Param({"kitten", "penguin", "balloon", "eagle", "watereagle",
+		"synthetic-1k", "synthetic-16k", "synthetic-64k", "synthetic-256k", "synthetic-1M", "synthetic-4M"})
+	public String input;
+
+	BenchmarkInput in;
+	LaplacianStencil stencil;
+
+	ConjugateGradientSolver cg = new ConjugateGradientSolver();
+	ConjugateGradientSolver spectral = new ConjugateGradientSolver(Preconditioner.SPECTRAL, 1e-6, 1000);
+	MultigridSolver mg = new MultigridSolver();
+	SchwarzSolver schwarz = new SchwarzSolver();
+	SchwarzSolver.Decomposition decomposition;
+
+	MeanValueCloner cloner = new MeanValueCloner();
+	PlanarImage src, dst;
+	MeanValueCloner.Contour contour;
+
+	ConvolutionPyramid pyramid = new ConvolutionPyramid();
+	QuadtreeSolver quadtree = new QuadtreeSolver();
+
+	double[] x;
+	double[][] solution;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		in = BenchmarkInput.load(input);
+		stencil = buildStencil();
+		decomposition = schwarz.decompose(stencil);
+		x = new double[in.numVars];
+
+		// Same planes as Paste unpacks: the bounding box of the matte plus a pixel all around
+		src = ImageUtil.unpack(in.source, in.region.x0 - 1, in.region.y0 - 1, in.region.width + 2, in.region.height + 2);
+		dst = ImageUtil.unpack(in.target, in.pasteX + src.x0, in.pasteY + src.y0, src.width, src.height);
+		contour = traceContour();
+		solution = new double[3][in.numVars];
+	}
+
+	@Benchmark
+	public LaplacianStencil buildStencil()
+	{
+		return in.region.toStencil();
+	}
+
+	@Benchmark
+	public double[] conjugateGradient()
+	{
+		Arrays.fill(x, 0);
+		cg.solve(stencil, in.B[0], x);
+		return x;
+	}
+
+	@Benchmark
+	public double[] spectralConjugateGradient()
+	{
+		Arrays.fill(x, 0);
+		spectral.solve(stencil, in.B[0], x);
+		return x;
+	}
+
+	@Benchmark
+	public double[] multigrid()
+	{
+		Arrays.fill(x, 0);
+		mg.solve(stencil, in.B[0], x);
+		return x;
+	}
+
+	@Benchmark
+	public SchwarzSolver.Decomposition decompose()
+	{
+		return schwarz.decompose(stencil);
+	}
+
+	@Benchmark
+	public double[] domainDecomposition()
+	{
+		Arrays.fill(x, 0);
+		schwarz.solve(decomposition, in.B[0], x);
+		return x;
+	}
+
+	@Benchmark
+	public double[][] convolutionPyramid()
+	{
+		pyramid.interpolate(src, in.region, dst, solution, null);
+		return solution;
+	}
+
+	@Benchmark
+	public double[][] quadtreeCorrection()
+	{
+		QuadtreeSolver.Reduction reduction = quadtree.reduce(src, in.region, in.B, null);
+		quadtree.factorize(reduction);
+		quadtree.solve(reduction, solution);
+		return solution;
+	}
+
+	@Benchmark
+	public MeanValueCloner.Contour traceContour()
+	{
+		return cloner.trace(src, in.region, dst);
+	}
+
+	@Benchmark
+	public double[][] meanValueCloning()
+	{
+		cloner.interpolate(contour, src, in.region, solution, null);
+		return solution;
+	}
+}
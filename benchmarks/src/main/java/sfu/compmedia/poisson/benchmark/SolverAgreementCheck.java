@@ -0,0 +1,82 @@
+package sfu.compmedia.poisson.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import sfu.compmedia.poisson.PoissonImageEditor;
+import sfu.compmedia.poisson.SolverType;
+
+/**
+ *
+ * Checks that the iterative engines paste the same image as the direct solve, up to rounding:
+ * every channel of every pixel within MAX_DIFFERENCE levels of the DIRECT_CHOLESKY result. Meant
+ * to be run before timing any of them, so that a faster engine is not a wrong one.
+ *
+ * Takes the names of the inputs (see BenchmarkInput), kitten if none, and exits with status 1 if
+ * any engine is off:
+ *
+ *     java -cp benchmarks/target/benchmarks.jar sfu.compmedia.poisson.benchmark.SolverAgreementCheck kitten penguin
+ *
+ */
+public class SolverAgreementCheck {
+
+	static final int MAX_DIFFERENCE = 1;
+
+	static final SolverType[] CHECKED = {
+		SolverType.CONJUGATE_GRADIENT,
+		SolverType.MULTIGRID,
+		SolverType.DOMAIN_DECOMPOSITION,
+		SolverType.SPECTRAL
+	};
+
+	public static void main(String[] args) throws IOException
+	{
+		String[] inputs = args.length > 0 ? args : new String[] {"kitten"};
+		boolean failed = false;
+
+		for (String name : inputs)
+		{
+			BenchmarkInput in = BenchmarkInput.load(name);
+			PoissonImageEditor pie = new PoissonImageEditor();
+
+			BufferedImage expected = pie.Paste(in.source, in.matte, in.target, in.pasteX, in.pasteY, SolverType.DIRECT_CHOLESKY);
+
+			for (SolverType solverType : CHECKED)
+			{
+				BufferedImage actual = pie.Paste(in.source, in.matte, in.target, in.pasteX, in.pasteY, solverType);
+				int difference = maxDifference(expected, actual);
+				boolean ok = difference <= MAX_DIFFERENCE;
+
+				System.out.printf("%-12s %-22s max difference %3d  %s%n", name, solverType, difference, ok ? "ok" : "FAILED");
+				failed |= !ok;
+			}
+		}
+
+		if (failed)
+			System.exit(1);
+	}
+
+	/**
+	 * @param a
+	 * @param b same size as a
+	 * @return the largest difference between two channels of the same pixel
+	 */
+	static int maxDifference(BufferedImage a, BufferedImage b)
+	{
+		int max = 0;
+
+		for (int y = 0; y < a.getHeight(); y++)
+		{
+			for (int x = 0; x < a.getWidth(); x++)
+			{
+				int p = a.getRGB(x, y);
+				int q = b.getRGB(x, y);
+
+				for (int shift = 0; shift < 24; shift += 8)
+					max = Math.max(max, Math.abs(((p >> shift) & 0xFF) - ((q >> shift) & 0xFF)));
+			}
+		}
+
+		return max;
+	}
+}
@@ -0,0 +1,150 @@
+package sfu.compmedia.poisson.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sfu.compmedia.poisson.ImageUtil;
+import sfu.compmedia.poisson.Matte;
+import sfu.compmedia.poisson.PlanarImage;
+import sfu.compmedia.poisson.solver.LaplacianStencil;
+import sfu.compmedia.poisson.solver.MultigridSolver;
+import sfu.compmedia.poisson.solver.StencilKernels;
+
+/**
+ *
+ * The scalar and the vector StencilKernels side by side: the right-hand sides of all three
+ * channels, one red-black sweep and one residual on the finest multigrid grid, and a whole
+ * multigrid solve of one channel. The fork gets the incubator module, so "vector" runs on the
+ * widest vectors of the CPU.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+public class StencilKernelBenchmark {
+
+	@Param({"kitten", "penguin", "balloon", "eagle", "watereagle",
+		"synthetic-1k", "synthetic-16k", "synthetic-64k", "synthetic-256k", "synthetic-1M", "synthetic-4M"})
+	public String input;
+
+	@Param({"scalar", "vector"})
+	public String kernels;
+
+	BenchmarkInput in;
+	StencilKernels k;
+	MultigridSolver mg = new MultigridSolver();
+	LaplacianStencil stencil;
+
+	PlanarImage src, dst;
+	float[] outside, row;
+
+	// The finest multigrid grid: the bounding box of the matte plus a pixel all around
+	int w, h;
+	boolean[] mask;
+	boolean[][] colours;
+	double[] u, f, r, x;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		in = BenchmarkInput.load(input);
+
+		k = kernels.equals("vector") ? StencilKernels.get() : StencilKernels.scalar();
+		if (kernels.equals("vector") && !k.isVectorized())
+			throw new IllegalStateException("The Vector API is not available, run with --add-modules jdk.incubator.vector");
+
+		mg.setKernels(k);
+
+		Matte region = in.region;
+		src = ImageUtil.unpack(in.source, region.x0 - 1, region.y0 - 1, region.width + 2, region.height + 2);
+		dst = ImageUtil.unpack(in.target, in.pasteX + src.x0, in.pasteY + src.y0, src.width, src.height);
+
+		w = src.width;
+		h = src.height;
+		outside = new float[w * h];
+		mask = new boolean[w * h];
+		colours = new boolean[2][w * h];
+		Arrays.fill(outside, 1);
+
+		for (int y = region.y0; y < region.y0 + region.height; y++)
+		{
+			for (int x = region.x0; x < region.x0 + region.width; x++)
+			{
+				if (!region.contains(x, y)) continue;
+
+				int i = src.index(x, y);
+				outside[i] = 0;
+				mask[i] = true;
+				colours[(x + y) & 1][i] = true;
+			}
+		}
+
+		row = new float[region.width];
+
+		u = new double[w * h];
+		f = new double[w * h];
+		r = new double[w * h];
+		for (int i = 0; i < f.length; i++)
+			f[i] = mask[i] ? Math.sin(i) : 0;
+
+		stencil = region.toStencil();
+		x = new double[in.numVars];
+	}
+
+	@Benchmark
+	public float[] guidance()
+	{
+		Matte region = in.region;
+
+		for (int c = 0; c < 3; c++)
+		{
+			for (int y = region.y0; y < region.y0 + region.height; y++)
+			{
+				int from = src.index(region.x0, y);
+				k.guidance(src.planes[c], dst.planes[c], outside, w, from, from + region.width, row, 0);
+			}
+		}
+
+		return row;
+	}
+
+	@Benchmark
+	public double[] relax()
+	{
+		for (int color = 0; color < 2; color++)
+			k.relax(u, f, colours[color], w, w, (h - 1) * w, 1);
+
+		return u;
+	}
+
+	@Benchmark
+	public double residual()
+	{
+		return k.residual(u, f, mask, r, w, w, (h - 1) * w);
+	}
+
+	@Benchmark
+	public double[] multigrid()
+	{
+		Arrays.fill(x, 0);
+		mg.solve(stencil, in.B[0], x);
+		return x;
+	}
+}
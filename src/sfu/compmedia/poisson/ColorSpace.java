@@ -0,0 +1,12 @@
+package sfu.compmedia.poisson;
+
+/*
+ * The channels PoissonImageEditor solves for: red, green and blue, all at full resolution, or
+ * the luma at full resolution and the two chroma channels on a matte of half the resolution
+ * (the eye is much less sensitive to a chroma seam than to a luma one)
+ */
+
+public enum ColorSpace {
+	RGB,
+	YCBCR
+}
@@ -0,0 +1,256 @@
+package sfu.compmedia.poisson;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import sfu.compmedia.poisson.solver.Cancellation;
+
+/**
+ *
+ * Approximate seamless cloning in linear time: convolution pyramids, as described by Farbman
+ * et al. ("Convolution Pyramids").
+ *
+ * Like MeanValueCloner, this computes the membrane - the difference between the target and the
+ * source on the boundary of Omega, spread smoothly over the inside - and adds it to the source.
+ * The membrane is approximated as a normalized convolution: the boundary differences and an
+ * image that is 1 on the boundary pixels are both convolved with a wide kernel that falls off
+ * with the distance, and the first divided by the second. Instead of convolving directly, both
+ * go through a pyramid of small kernels:
+ *
+ * - down: pad by the radius of h, convolve with h and drop every other pixel, to the top;
+ * - up: on every level, put the result of the level above back on every other pixel, convolve
+ *   with h again and add the level itself convolved with g.
+ *
+ * Every level costs a few multiplications per pixel and each one is a quarter of the one below,
+ * so the whole thing takes a fixed, small amount of time per pixel of the bounding box, however
+ * the matte is shaped - no iterations and no tolerance.
+ *
+ * The kernels set how fast the weight of a boundary pixel falls off with the distance. Going up a
+ * level and back down multiplies a contribution by the fourth power of the sum of h (twice along
+ * the rows and the columns), drops three pixels out of four and spreads what is left over four
+ * times the area. With h summing to sqrt(2), each level weighs a quarter of the one below it at
+ * twice the distance: a weight of about 1/r^2,
+ * like the mean-value weights (a bigger h flattens the membrane towards the mean of the whole
+ * boundary, a smaller one makes it fade to zero away from it). Farbman et al. fit their kernels
+ * numerically; the binomial ones used by default get within about the same distance of the
+ * harmonic membrane as MeanValueCloner does. Like MeanValueCloner, the guidance field is the
+ * source gradient, never the mixed one of StencilKernels.guidance().
+ *
+ */
+public class ConvolutionPyramid {
+
+	/**
+	 * The default kernels for the membrane (separable: the same 1D kernel along the rows and
+	 * along the columns): binomial, h scaled to sum up to sqrt(2)
+	 */
+	public static final float[] MEMBRANE_H = {
+		(float)(Math.sqrt(2) / 16), (float)(Math.sqrt(2) * 4 / 16), (float)(Math.sqrt(2) * 6 / 16),
+		(float)(Math.sqrt(2) * 4 / 16), (float)(Math.sqrt(2) / 16)};
+	public static final float[] MEMBRANE_G = {0.25f, 0.5f, 0.25f};
+
+	/**
+	 * The top of the pyramid is no bigger than this both ways
+	 */
+	static final int COARSEST_SIZE = 5;
+
+	/**
+	 * The boundary differences per RGB channel, and the boundary itself
+	 */
+	static final int CHANNELS = 4;
+
+	final float[] h, g;
+
+	public ConvolutionPyramid()
+	{
+		this(MEMBRANE_H, MEMBRANE_G);
+	}
+
+	/**
+	 * @param h the kernel between the levels, of odd length
+	 * @param g the kernel of every level on its own, of odd length
+	 */
+	public ConvolutionPyramid(float[] h, float[] g)
+	{
+		if (h.length % 2 == 0 || g.length % 2 == 0)
+			throw new IllegalArgumentException("the kernels must have an odd length");
+
+		this.h = h.clone();
+		this.g = g.clone();
+	}
+
+	/**
+	 * Computes the pixels of the matte: the source plus the membrane
+	 *
+	 * @param src source planes around the matte (with at least a 1 pixel border)
+	 * @param matte
+	 * @param dst target planes under src, of the same size
+	 * @param solution receives the value of every unknown, per channel
+	 * @param cancel may be null
+	 * @throws CancellationException if cancelled on the way
+	 */
+	public void interpolate(PlanarImage src, Matte matte, PlanarImage dst, double[][] solution, Cancellation cancel)
+	{
+		final int w = src.width, hgt = src.height;
+
+		// The boundary of Omega: pixels outside the matte with a neighbour in it
+		float[][] a = new float[CHANNELS][w * hgt];
+
+		for (int y = src.y0; y < src.y0 + hgt; y++)
+		{
+			for (int x = src.x0; x < src.x0 + w; x++)
+			{
+				if (matte.contains(x, y)) continue;
+
+				if (!matte.contains(x, y - 1) && !matte.contains(x + 1, y) &&
+						!matte.contains(x, y + 1) && !matte.contains(x - 1, y)) continue;
+
+				int k = src.index(x, y);
+				for (int c = 0; c < 3; c++)
+					a[c][k] = dst.planes[c][k] - src.planes[c][k];
+				a[3][k] = 1;
+			}
+		}
+
+		float[][] filtered = filter(a, w, hgt, cancel);
+
+		int var = 0;
+		for (int y = matte.y0; y < matte.y0 + matte.height; y++)
+		{
+			for (int x = matte.x0; x < matte.x0 + matte.width; x++)
+			{
+				if (!matte.contains(x, y)) continue;
+
+				int k = src.index(x, y);
+				double weight = filtered[3][k];
+
+				for (int c = 0; c < 3; c++)
+					solution[c][var] = src.planes[c][k] + (weight > 0 ? filtered[c][k] / weight : 0);
+
+				var++;
+			}
+		}
+	}
+
+	/**
+	 * One level of the pyramid and (recursively) all the ones above it
+	 *
+	 * @param a the level, all channels
+	 * @param w
+	 * @param hgt
+	 * @param cancel
+	 * @return the filtered level
+	 */
+	private float[][] filter(float[][] a, int w, int hgt, Cancellation cancel)
+	{
+		if (cancel != null && cancel.isCancelled())
+			throw new CancellationException("Convolution cancelled");
+
+		float[][] result = convolve(a, w, hgt, g);
+
+		if (Math.max(w, hgt) <= COARSEST_SIZE)
+			return result;
+
+		// Down: padded so that nothing spreading out of the level gets lost
+		final int r = h.length / 2;
+		final int pw = w + 2 * r, ph = hgt + 2 * r;
+		final int cw = (pw + 1) / 2, ch = (ph + 1) / 2;
+
+		float[][] padded = new float[CHANNELS][pw * ph];
+		for (int c = 0; c < CHANNELS; c++)
+		{
+			for (int y = 0; y < hgt; y++)
+				System.arraycopy(a[c], y * w, padded[c], (y + r) * pw + r, w);
+		}
+
+		float[][] blurred = convolve(padded, pw, ph, h);
+
+		float[][] coarse = new float[CHANNELS][cw * ch];
+		for (int c = 0; c < CHANNELS; c++)
+		{
+			for (int y = 0; y < ch; y++)
+			{
+				for (int x = 0; x < cw; x++)
+					coarse[c][y * cw + x] = blurred[c][(2 * y) * pw + 2 * x];
+			}
+		}
+
+		blurred = null;
+		coarse = filter(coarse, cw, ch, cancel);
+
+		// Up: back on every other pixel of the padded level, blurred, and cropped
+		float[][] upsampled = padded;
+		for (int c = 0; c < CHANNELS; c++)
+		{
+			Arrays.fill(upsampled[c], 0);
+
+			for (int y = 0; y < ch; y++)
+			{
+				for (int x = 0; x < cw; x++)
+					upsampled[c][(2 * y) * pw + 2 * x] = coarse[c][y * cw + x];
+			}
+		}
+
+		upsampled = convolve(upsampled, pw, ph, h);
+
+		for (int c = 0; c < CHANNELS; c++)
+		{
+			for (int y = 0; y < hgt; y++)
+			{
+				for (int x = 0; x < w; x++)
+					result[c][y * w + x] += upsampled[c][(y + r) * pw + x + r];
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Separable convolution of all channels with the same kernel along the rows and then the
+	 * columns, with zeros outside. Done one tap of the kernel at a time over a whole row, so the
+	 * inner loops are plain multiply-adds over consecutive floats.
+	 */
+	private static float[][] convolve(float[][] in, int w, int hgt, float[] kernel)
+	{
+		final int r = kernel.length / 2;
+
+		float[][] out = new float[in.length][w * hgt];
+		float[] rows = new float[w * hgt];
+
+		for (int c = 0; c < in.length; c++)
+		{
+			float[] src = in[c], dst = out[c];
+
+			Arrays.fill(rows, 0);
+
+			for (int y = 0; y < hgt; y++)
+			{
+				int row = y * w;
+
+				for (int i = -r; i <= r; i++)
+				{
+					float k = kernel[i + r];
+					int from = Math.max(0, -i), to = Math.min(w, w - i);
+
+					for (int x = from; x < to; x++)
+						rows[row + x] += k * src[row + x + i];
+				}
+			}
+
+			for (int y = 0; y < hgt; y++)
+			{
+				int row = y * w;
+
+				for (int i = Math.max(-r, -y); i <= Math.min(r, hgt - 1 - y); i++)
+				{
+					float k = kernel[i + r];
+					int other = (y + i) * w;
+
+					for (int x = 0; x < w; x++)
+						dst[row + x] += k * rows[other + x];
+				}
+			}
+		}
+
+		return out;
+	}
+}
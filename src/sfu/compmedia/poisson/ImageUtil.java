@@ -2,9 +2,15 @@ package sfu.compmedia.poisson;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -141,6 +147,339 @@ public class ImageUtil {
 		return new BufferedImage(cm, raster, isAlphaPremultiplied, null);
 	}
 	
+	/**
+	 * Unpacks the whole image into float planes
+	 * 
+	 * @param img
+	 * @return
+	 */
+	public static PlanarImage unpack(BufferedImage img)
+	{
+		return unpack(img, 0, 0, img.getWidth(), img.getHeight());
+	}
+	
+	/**
+	 * Unpacks a rectangular part of the image into float planes, reading the raster 
+	 * directly for the common INT_RGB / INT_ARGB / 3BYTE_BGR / 4BYTE_ABGR layouts.
+	 * 
+	 * Parts of the rectangle that fall outside the image take the value of the nearest edge 
+	 * pixel, so that a paste hanging off the edge of the target gets the edge as its boundary 
+	 * (and no gradient across it). A rectangle entirely outside the image is left at zero.
+	 * 
+	 * @param img
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * @return
+	 */
+	public static PlanarImage unpack(BufferedImage img, int x0, int y0, int w, int h)
+	{
+		PlanarImage result = new PlanarImage(x0, y0, w, h);
+		
+		final float[] r = result.planes[0];
+		final float[] g = result.planes[1];
+		final float[] b = result.planes[2];
+		
+		// Intersection of the requested rectangle with the image
+		final int xs = Math.max(x0, 0);
+		final int ys = Math.max(y0, 0);
+		final int xe = Math.min(x0 + w, img.getWidth());
+		final int ye = Math.min(y0 + h, img.getHeight());
+		
+		if (xs >= xe || ys >= ye) return result;
+		
+		WritableRaster raster = img.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		boolean direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+		
+		if (direct && db instanceof DataBufferInt && 
+				(img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB))
+		{
+			int[] data = ((DataBufferInt)db).getData();
+			int stride = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+			int offset = db.getOffset();
+			
+			for (int y = ys; y < ye; y++)
+			{
+				int src = offset + y * stride + xs;
+				int dst = result.index(xs, y);
+				
+				for (int x = xs; x < xe; x++, src++, dst++)
+				{
+					int rgb = data[src];
+					r[dst] = getNormalized(getRed(rgb));
+					g[dst] = getNormalized(getGreen(rgb));
+					b[dst] = getNormalized(getBlue(rgb));
+				}
+			}
+		}
+		else if (direct && db instanceof DataBufferByte && 
+				(img.getType() == BufferedImage.TYPE_3BYTE_BGR || img.getType() == BufferedImage.TYPE_4BYTE_ABGR))
+		{
+			byte[] data = ((DataBufferByte)db).getData();
+			ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+			int stride = sm.getScanlineStride();
+			int pixelStride = sm.getPixelStride();
+			int[] bandOffsets = sm.getBandOffsets();  // bands are R, G, B(, A)
+			int offset = db.getOffset();
+			
+			for (int y = ys; y < ye; y++)
+			{
+				int src = offset + y * stride + xs * pixelStride;
+				int dst = result.index(xs, y);
+				
+				for (int x = xs; x < xe; x++, src += pixelStride, dst++)
+				{
+					r[dst] = getNormalized(data[src + bandOffsets[0]] & 0xFF);
+					g[dst] = getNormalized(data[src + bandOffsets[1]] & 0xFF);
+					b[dst] = getNormalized(data[src + bandOffsets[2]] & 0xFF);
+				}
+			}
+		}
+		else
+		{
+			// Any other layout goes through getRGB, but a whole row at a time
+			int[] row = new int[xe - xs];
+			
+			for (int y = ys; y < ye; y++)
+			{
+				img.getRGB(xs, y, xe - xs, 1, row, 0, row.length);
+				int dst = result.index(xs, y);
+				
+				for (int i = 0; i < row.length; i++, dst++)
+				{
+					r[dst] = getNormalized(getRed(row[i]));
+					g[dst] = getNormalized(getGreen(row[i]));
+					b[dst] = getNormalized(getBlue(row[i]));
+				}
+			}
+		}
+		
+		extendEdges(result, xs, ys, xe, ye);
+		
+		return result;
+	}
+	
+	/**
+	 * Fills the planes outside the part [xs, xe) x [ys, ye) that has been read with the 
+	 * nearest pixel of that part: along the rows first, then whole rows above and below.
+	 */
+	private static void extendEdges(PlanarImage img, int xs, int ys, int xe, int ye)
+	{
+		final int x0 = img.x0, y0 = img.y0;
+		final int x1 = x0 + img.width, y1 = y0 + img.height;
+		
+		if (xs == x0 && ys == y0 && xe == x1 && ye == y1) return;
+		
+		for (float[] plane : img.planes)
+		{
+			for (int y = ys; y < ye; y++)
+			{
+				int row = img.index(x0, y);
+				Arrays.fill(plane, row, row + (xs - x0), plane[row + (xs - x0)]);
+				Arrays.fill(plane, row + (xe - x0), row + img.width, plane[row + (xe - 1 - x0)]);
+			}
+			
+			int first = img.index(x0, ys);
+			int last = img.index(x0, ye - 1);
+			
+			for (int y = y0; y < ys; y++)
+				System.arraycopy(plane, first, plane, img.index(x0, y), img.width);
+			for (int y = ye; y < y1; y++)
+				System.arraycopy(plane, last, plane, img.index(x0, y), img.width);
+		}
+	}
+	
+	/**
+	 * Writes the planes back into the image (opaque, clipped to 0..255), at the position 
+	 * they were unpacked from. Only the pixels flagged in the mask are written, if a mask 
+	 * is given.
+	 * 
+	 * @param src
+	 * @param img
+	 * @param mask same layout as the planes, or null to write everything
+	 */
+	public static void pack(PlanarImage src, BufferedImage img, boolean[] mask)
+	{
+		final float[] r = src.planes[0];
+		final float[] g = src.planes[1];
+		final float[] b = src.planes[2];
+		
+		final int xs = Math.max(src.x0, 0);
+		final int ys = Math.max(src.y0, 0);
+		final int xe = Math.min(src.x0 + src.width, img.getWidth());
+		final int ye = Math.min(src.y0 + src.height, img.getHeight());
+		
+		if (xs >= xe || ys >= ye) return;
+		
+		WritableRaster raster = img.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		boolean direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+		
+		if (direct && db instanceof DataBufferInt && 
+				(img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB))
+		{
+			int[] data = ((DataBufferInt)db).getData();
+			int stride = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+			int offset = db.getOffset();
+			int alphaMask = img.getType() == BufferedImage.TYPE_INT_RGB ? 0x00FFFFFF : 0xFFFFFFFF;
+			
+			for (int y = ys; y < ye; y++)
+			{
+				int dst = offset + y * stride + xs;
+				int i = src.index(xs, y);
+				
+				for (int x = xs; x < xe; x++, dst++, i++)
+				{
+					if (mask != null && !mask[i]) continue;
+					
+					data[dst] = getRGB(clip(getByte(r[i])), clip(getByte(g[i])), clip(getByte(b[i]))) & alphaMask;
+				}
+			}
+		}
+		else if (direct && db instanceof DataBufferByte && 
+				(img.getType() == BufferedImage.TYPE_3BYTE_BGR || img.getType() == BufferedImage.TYPE_4BYTE_ABGR))
+		{
+			byte[] data = ((DataBufferByte)db).getData();
+			ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+			int stride = sm.getScanlineStride();
+			int pixelStride = sm.getPixelStride();
+			int[] bandOffsets = sm.getBandOffsets();
+			int offset = db.getOffset();
+			boolean hasAlpha = bandOffsets.length > 3;
+			
+			for (int y = ys; y < ye; y++)
+			{
+				int dst = offset + y * stride + xs * pixelStride;
+				int i = src.index(xs, y);
+				
+				for (int x = xs; x < xe; x++, dst += pixelStride, i++)
+				{
+					if (mask != null && !mask[i]) continue;
+					
+					data[dst + bandOffsets[0]] = (byte)clip(getByte(r[i]));
+					data[dst + bandOffsets[1]] = (byte)clip(getByte(g[i]));
+					data[dst + bandOffsets[2]] = (byte)clip(getByte(b[i]));
+					if (hasAlpha) data[dst + bandOffsets[3]] = (byte)0xFF;
+				}
+			}
+		}
+		else
+		{
+			for (int y = ys; y < ye; y++)
+			{
+				int i = src.index(xs, y);
+				
+				for (int x = xs; x < xe; x++, i++)
+				{
+					if (mask != null && !mask[i]) continue;
+					
+					img.setRGB(x, y, getRGB(clip(getByte(r[i])), clip(getByte(g[i])), clip(getByte(b[i]))));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Same as unpack for a BufferedImage (edges included), but reading from a raster file. Only 
+	 * the rows of the rectangle are brought into memory.
+	 * 
+	 * @param raster
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * @return
+	 * @throws IOException
+	 */
+	public static PlanarImage unpack(MappedRaster raster, int x0, int y0, int w, int h) throws IOException
+	{
+		PlanarImage result = new PlanarImage(x0, y0, w, h);
+		
+		final float[] r = result.planes[0];
+		final float[] g = result.planes[1];
+		final float[] b = result.planes[2];
+		
+		final int xs = Math.max(x0, 0);
+		final int ys = Math.max(y0, 0);
+		final int xe = Math.min(x0 + w, raster.getWidth());
+		final int ye = Math.min(y0 + h, raster.getHeight());
+		
+		if (xs >= xe || ys >= ye) return result;
+		
+		int[] row = new int[xe - xs];
+		
+		for (int y = ys; y < ye; y++)
+		{
+			raster.getRGB(xs, y, row.length, 1, row, 0, row.length);
+			int dst = result.index(xs, y);
+			
+			for (int i = 0; i < row.length; i++, dst++)
+			{
+				r[dst] = getNormalized(getRed(row[i]));
+				g[dst] = getNormalized(getGreen(row[i]));
+				b[dst] = getNormalized(getBlue(row[i]));
+			}
+		}
+		
+		extendEdges(result, xs, ys, xe, ye);
+		
+		return result;
+	}
+	
+	/**
+	 * Same as pack for a BufferedImage, but writing into a raster file. Rows that have no 
+	 * pixel flagged in the mask are not touched at all.
+	 * 
+	 * @param src
+	 * @param raster
+	 * @param mask same layout as the planes, or null to write everything
+	 * @throws IOException
+	 */
+	public static void pack(PlanarImage src, MappedRaster raster, boolean[] mask) throws IOException
+	{
+		final float[] r = src.planes[0];
+		final float[] g = src.planes[1];
+		final float[] b = src.planes[2];
+		
+		final int xs = Math.max(src.x0, 0);
+		final int ys = Math.max(src.y0, 0);
+		final int xe = Math.min(src.x0 + src.width, raster.getWidth());
+		final int ye = Math.min(src.y0 + src.height, raster.getHeight());
+		
+		if (xs >= xe || ys >= ye) return;
+		
+		int[] row = new int[xe - xs];
+		
+		for (int y = ys; y < ye; y++)
+		{
+			final int start = src.index(xs, y);
+			
+			// Only the part of the row between the first and the last masked pixel is written back
+			int first = 0, last = row.length - 1;
+			if (mask != null)
+			{
+				while (first <= last && !mask[start + first]) first++;
+				while (last >= first && !mask[start + last]) last--;
+				
+				if (first > last) continue;
+				
+				raster.getRGB(xs + first, y, last - first + 1, 1, row, first, row.length);
+			}
+			
+			for (int i = first; i <= last; i++)
+			{
+				if (mask != null && !mask[start + i]) continue;
+				
+				int k = start + i;
+				row[i] = getRGB(clip(getByte(r[k])), clip(getByte(g[k])), clip(getByte(b[k])));
+			}
+			
+			raster.setRGB(xs + first, y, last - first + 1, 1, row, first, row.length);
+		}
+	}
+	
 	/*
 	 * Saves an image to a file
 	 */
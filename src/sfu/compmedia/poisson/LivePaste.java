@@ -0,0 +1,147 @@
+package sfu.compmedia.poisson;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+
+import sfu.compmedia.poisson.solver.Cancellation;
+import sfu.compmedia.poisson.solver.MatteKey;
+import sfu.compmedia.poisson.solver.MultigridSolver;
+
+/**
+ *
+ * Blends one selection over the same target again and again at different positions, for the
+ * live preview while the selection is being dragged around.
+ *
+ * Between two positions of the mouse the selection usually moves by a few pixels only, so the
+ * blend hardly changes. Every solve therefore starts from the solution at the previous position
+ * and only needs a cycle or two of the (rough) preview multigrid to get there.
+ *
+ * With so few cycles, building the grid hierarchy would take longer than the solve itself.
+ * But A only depends on the shape of the matte, not on where it is pasted, so the hierarchy
+ * (built once, in the editor's hierarchy cache, with a working copy per channel so the channels
+ * can still be solved in parallel) and the source planes are kept for as long as the selection
+ * stays the same. Only the target under the selection is read for every position.
+ *
+ * Not thread safe: one session is used by one thread at a time.
+ *
+ */
+public class LivePaste {
+
+	final PoissonImageEditor pie;
+	final BufferedImage sourceImg, targetImg;
+
+	// The selection everything below belongs to
+	private Matte matte;
+	private MatteKey key;
+	private PlanarImage src;
+	private MultigridSolver.Hierarchy[] hierarchies;
+
+	/**
+	 * Solution at the previous position, per channel
+	 */
+	private double[][] solution;
+
+	/**
+	 * @param pie whose preview solver does the solves
+	 * @param sourceImg
+	 * @param targetImg not changed by the session
+	 */
+	public LivePaste(PoissonImageEditor pie, BufferedImage sourceImg, BufferedImage targetImg)
+	{
+		this.pie = pie;
+		this.sourceImg = sourceImg;
+		this.targetImg = targetImg;
+	}
+
+	/**
+	 * Blends the selection at the given position (roughly, as a preview)
+	 *
+	 * @param matte in the coordinates of the source image, not empty
+	 * @param pasteX
+	 * @param pasteY
+	 * @param cancel may be null
+	 * @return the target over the bounding box of the matte, with the blend in it; its top-left
+	 *         pixel is at (pasteX + matte.x0, pasteY + matte.y0) in the target
+	 * @throws CancellationException if the solve gets cancelled
+	 */
+	public BufferedImage blendAt(Matte matte, int pasteX, int pasteY, final Cancellation cancel)
+	{
+		if (matte.isEmpty())
+			throw new IllegalArgumentException("the matte is empty");
+
+		// A different selection (e.g. cut differently by the edges of the target) starts over
+		if (this.matte == null || matte.x0 != this.matte.x0 || matte.y0 != this.matte.y0 || !matte.getKey().equals(key))
+			prepare(matte);
+
+		PlanarImage dst = ImageUtil.unpack(targetImg, pasteX + src.x0, pasteY + src.y0, src.width, src.height);
+		final double[][] B = pie.rightHandSides(src, matte, dst);
+
+		// Solving into a copy, so a cancelled frame leaves the last good guess alone
+		final double[][] x = new double[3][];
+		for (int c = 0; c < 3; c++)
+			x[c] = solution[c].clone();
+
+		pie.solveChannels(new PoissonImageEditor.ChannelSolve() {
+			public void solve(int channel) {
+				pie.previewSolver.solve(hierarchies[channel], B[channel], x[channel], cancel);
+			}
+		});
+
+		solution = x;
+
+		// The target over the bounding box, with the solution in the matte pixels
+		PlanarImage patch = new PlanarImage(0, 0, matte.width, matte.height);
+
+		int var = 0;
+		for (int y = 0; y < matte.height; y++)
+		{
+			for (int px = 0; px < matte.width; px++)
+			{
+				int k = src.index(matte.x0 + px, matte.y0 + y);
+				int i = y * matte.width + px;
+				boolean inside = matte.contains(matte.x0 + px, matte.y0 + y);
+
+				for (int c = 0; c < 3; c++)
+					patch.planes[c][i] = inside ? (float)x[c][var] : dst.planes[c][k];
+
+				if (inside) var++;
+			}
+		}
+
+		BufferedImage result = new BufferedImage(matte.width, matte.height, BufferedImage.TYPE_INT_RGB);
+		ImageUtil.pack(patch, result, null);
+
+		return result;
+	}
+
+	/**
+	 * Reads the source planes and builds the grid hierarchies of a new selection
+	 */
+	private void prepare(Matte matte)
+	{
+		// Dropping the old ones first, in case the new ones don't fit alongside them
+		this.matte = null;
+		hierarchies = null;
+
+		src = ImageUtil.unpack(sourceImg, matte.x0 - 1, matte.y0 - 1, matte.width + 2, matte.height + 2);
+
+		// Built once for the three channels, and shared with the pastes through the cache
+		MatteKey key = matte.getKey();
+		MultigridSolver.Hierarchy hierarchy = pie.hierarchyCache.get(key);
+
+		if (hierarchy == null)
+		{
+			hierarchy = pie.previewSolver.prepare(matte.toStencil());
+			pie.hierarchyCache.put(key, hierarchy, hierarchy.sizeInBytes());
+		}
+
+		MultigridSolver.Hierarchy[] h = new MultigridSolver.Hierarchy[3];
+		for (int c = 0; c < 3; c++)
+			h[c] = hierarchy.workingCopy();
+
+		hierarchies = h;
+		solution = new double[3][matte.getCount()];
+		this.key = key;
+		this.matte = matte;
+	}
+}
@@ -0,0 +1,327 @@
+package sfu.compmedia.poisson;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * An RGB image that lives in a file instead of the heap, for targets too big to be held as
+ * a BufferedImage (gigapixel panoramas and such).
+ *
+ * The pixels are stored as ARGB ints in square tiles, so that a rectangular region - like the
+ * area under a pasted selection - touches only a few contiguous parts of the file. Every row
+ * of tiles is memory-mapped (FileChannel.map) the first time it is accessed, and the operating
+ * system pages the data in and out as needed, so the heap use does not depend on the image size.
+ *
+ * File layout: a header (magic, width, height, tile size), then the tiles row by row. The tiles
+ * on the right and bottom edges are stored full-size, which keeps the addressing simple.
+ *
+ */
+public class MappedRaster implements Closeable {
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	private static final int MAGIC = 0x504D5231;  // "PMR1"
+	private static final int HEADER_BYTES = 16;
+
+	final int width, height;
+	final int tileSize;
+	final int tilesAcross, tilesDown;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean readOnly;
+
+	/**
+	 * One mapping per row of tiles, null until first used
+	 */
+	private final IntBuffer[] bands;
+	private final MappedByteBuffer[] mappings;
+
+	private MappedRaster(RandomAccessFile file, int width, int height, int tileSize, boolean readOnly)
+	{
+		this.file = file;
+		this.channel = file.getChannel();
+		this.readOnly = readOnly;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.tilesAcross = (width + tileSize - 1) / tileSize;
+		this.tilesDown = (height + tileSize - 1) / tileSize;
+		this.bands = new IntBuffer[tilesDown];
+		this.mappings = new MappedByteBuffer[tilesDown];
+	}
+
+	/**
+	 * Creates a new raster file, all pixels set to transparent black. An existing file
+	 * gets overwritten.
+	 *
+	 * @param f
+	 * @param width
+	 * @param height
+	 * @param tileSize side of a tile in pixels
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedRaster create(File f, int width, int height, int tileSize) throws IOException
+	{
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("width and height must be positive");
+		if (tileSize < 16)
+			throw new IllegalArgumentException("tileSize must be at least 16");
+		if ((long)((width + tileSize - 1) / tileSize) * tileSize * tileSize * 4 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("a row of tiles must fit into 2 GB, use smaller tiles");
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+
+		try
+		{
+			MappedRaster raster = new MappedRaster(raf, width, height, tileSize, false);
+
+			raf.setLength(0);
+			raf.setLength(HEADER_BYTES + (long)raster.tilesDown * raster.bandBytes());
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(width).putInt(height).putInt(tileSize).flip();
+			raster.channel.write(header, 0);
+
+			return raster;
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	public static MappedRaster create(File f, int width, int height) throws IOException
+	{
+		return create(f, width, height, DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * Opens a raster file made by create() earlier
+	 *
+	 * @param f
+	 * @param readOnly
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedRaster open(File f, boolean readOnly) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, readOnly ? "r" : "rw");
+
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+			raf.getChannel().read(header, 0);
+			header.flip();
+
+			if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC)
+				throw new IOException("Not a raster file: " + f);
+
+			return new MappedRaster(raf, header.getInt(), header.getInt(), header.getInt(), readOnly);
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies an image into a new raster file, a few rows at a time
+	 *
+	 * @param img
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedRaster fromImage(BufferedImage img, File f) throws IOException
+	{
+		MappedRaster raster = create(f, img.getWidth(), img.getHeight());
+
+		int rows = raster.tileSize;
+		int[] rgb = new int[img.getWidth() * rows];
+
+		for (int y = 0; y < img.getHeight(); y += rows)
+		{
+			int h = Math.min(rows, img.getHeight() - y);
+			img.getRGB(0, y, img.getWidth(), h, rgb, 0, img.getWidth());
+			raster.setRGB(0, y, img.getWidth(), h, rgb, 0, img.getWidth());
+		}
+
+		return raster;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getTileSize()
+	{
+		return tileSize;
+	}
+
+	private int bandBytes()
+	{
+		return tilesAcross * tileSize * tileSize * 4;
+	}
+
+	/**
+	 * Returns the row of tiles number ty, mapping it if that has not been done yet
+	 */
+	private synchronized IntBuffer band(int ty) throws IOException
+	{
+		if (bands[ty] == null)
+		{
+			long position = HEADER_BYTES + (long)ty * bandBytes();
+
+			mappings[ty] = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+					position, bandBytes());
+			mappings[ty].order(ByteOrder.nativeOrder());
+			bands[ty] = mappings[ty].asIntBuffer();
+		}
+
+		return bands[ty];
+	}
+
+	/**
+	 * Reads a rectangle of ARGB pixels, the same way BufferedImage.getRGB does. The rectangle
+	 * must lie within the raster.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * @param rgb
+	 * @param offset
+	 * @param scansize
+	 * @throws IOException
+	 */
+	public void getRGB(int x0, int y0, int w, int h, int[] rgb, int offset, int scansize) throws IOException
+	{
+		copy(x0, y0, w, h, rgb, offset, scansize, false);
+	}
+
+	/**
+	 * Writes a rectangle of ARGB pixels, the same way BufferedImage.setRGB does
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * @param rgb
+	 * @param offset
+	 * @param scansize
+	 * @throws IOException
+	 */
+	public void setRGB(int x0, int y0, int w, int h, int[] rgb, int offset, int scansize) throws IOException
+	{
+		if (readOnly)
+			throw new IllegalStateException("The raster is open read-only");
+
+		copy(x0, y0, w, h, rgb, offset, scansize, true);
+	}
+
+	/**
+	 * Moves pixels between the array and the tiles, one tile row segment at a time
+	 */
+	private void copy(int x0, int y0, int w, int h, int[] rgb, int offset, int scansize, boolean write) throws IOException
+	{
+		if (x0 < 0 || y0 < 0 || w < 0 || h < 0 || x0 + w > width || y0 + h > height)
+			throw new IndexOutOfBoundsException("Region is outside of the raster");
+
+		for (int y = y0; y < y0 + h; y++)
+		{
+			IntBuffer band = band(y / tileSize);
+			int rowInTile = y % tileSize;
+			int row = offset + (y - y0) * scansize;
+
+			int x = x0;
+			while (x < x0 + w)
+			{
+				int tx = x / tileSize;
+				int xInTile = x % tileSize;
+				int run = Math.min(tileSize - xInTile, x0 + w - x);
+
+				int position = (tx * tileSize + rowInTile) * tileSize + xInTile;
+
+				// Duplicates share the data but not the position, so threads do not get in each other's way
+				IntBuffer view = band.duplicate();
+				view.position(position);
+
+				if (write)
+					view.put(rgb, row + (x - x0), run);
+				else
+					view.get(rgb, row + (x - x0), run);
+
+				x += run;
+			}
+		}
+	}
+
+	/**
+	 * Copies a region of the raster into a new (in-heap) image, e.g. to show it on the screen
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * @return
+	 * @throws IOException
+	 */
+	public BufferedImage toImage(int x0, int y0, int w, int h) throws IOException
+	{
+		BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		int[] row = new int[w];
+
+		for (int y = 0; y < h; y++)
+		{
+			getRGB(x0, y0 + y, w, 1, row, 0, w);
+			result.setRGB(0, y, w, 1, row, 0, w);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Makes sure everything written so far has reached the file
+	 */
+	public synchronized void flush()
+	{
+		for (MappedByteBuffer m : mappings)
+		{
+			if (m != null && !readOnly) m.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		flush();
+
+		// The mappings themselves go away once they are garbage collected
+		for (int i = 0; i < bands.length; i++)
+		{
+			bands[i] = null;
+			mappings[i] = null;
+		}
+
+		file.close();
+	}
+}
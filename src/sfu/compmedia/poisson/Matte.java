@@ -0,0 +1,375 @@
+package sfu.compmedia.poisson;
+
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+
+import sfu.compmedia.poisson.solver.LaplacianStencil;
+import sfu.compmedia.poisson.solver.MatteKey;
+
+/**
+ *
+ * The region of interpolation ("Omega" in the paper) in a compact form: one bit per pixel,
+ * over the bounding box of the matte only.
+ *
+ * The bits are stored row by row, every row starting on a new long, so a small selection in a
+ * big source image takes a few bytes instead of an int and a boolean per source pixel. The
+ * pixels of the matte are the unknowns, numbered row by row, left to right - the same order
+ * Paste has always used. The number of the unknown at any pixel is found in constant time,
+ * from a running count of the set bits kept for every long.
+ *
+ * Coordinates are those of the image the matte was made for.
+ *
+ */
+public final class Matte {
+
+	/**
+	 * Bounding box of the matte pixels
+	 */
+	public final int x0, y0, width, height;
+
+	final int wordsPerRow;
+	final long[] bits;
+
+	/**
+	 * Number of matte pixels before each long of bits
+	 */
+	final int[] rank;
+
+	final int count;
+
+	/**
+	 * Builds a matte out of a full-size bitmap (bits of row y start at word y * wordsPerRow),
+	 * cropping it to the bounding box
+	 */
+	private Matte(long[] full, int fullWidth, int fullHeight)
+	{
+		final int fullWords = (fullWidth + 63) >>> 6;
+
+		int minX = fullWidth, minY = fullHeight, maxX = -1, maxY = -1;
+		for (int y = 0; y < fullHeight; y++)
+		{
+			for (int i = 0; i < fullWords; i++)
+			{
+				long word = full[y * fullWords + i];
+				if (word == 0) continue;
+
+				minY = Math.min(minY, y);
+				maxY = y;
+				minX = Math.min(minX, i * 64 + Long.numberOfTrailingZeros(word));
+				maxX = Math.max(maxX, i * 64 + 63 - Long.numberOfLeadingZeros(word));
+			}
+		}
+
+		x0 = maxX < 0 ? 0 : minX;
+		y0 = maxY < 0 ? 0 : minY;
+		width = maxX < 0 ? 0 : maxX - minX + 1;
+		height = maxY < 0 ? 0 : maxY - minY + 1;
+
+		wordsPerRow = (width + 63) >>> 6;
+		bits = new long[wordsPerRow * height];
+
+		// Shifting every row to the left edge of the bounding box
+		for (int y = 0; y < height; y++)
+		{
+			int src = (y + y0) * fullWords;
+
+			for (int i = 0; i < wordsPerRow; i++)
+			{
+				int bit = x0 + i * 64;
+				int word = bit >>> 6, shift = bit & 63;
+
+				long value = full[src + word] >>> shift;
+				if (shift != 0 && word + 1 < fullWords)
+					value |= full[src + word + 1] << (64 - shift);
+
+				bits[y * wordsPerRow + i] = value;
+			}
+
+			// Clearing what lies past the right edge of the box
+			if ((width & 63) != 0)
+				bits[y * wordsPerRow + wordsPerRow - 1] &= (1L << (width & 63)) - 1;
+		}
+
+		rank = new int[bits.length + 1];
+		for (int i = 0; i < bits.length; i++)
+			rank[i + 1] = rank[i] + Long.bitCount(bits[i]);
+
+		count = rank[bits.length];
+	}
+
+	/**
+	 * Reads a matte image, with the same test as PoissonImageEditor.MatteTest
+	 *
+	 * @param img
+	 * @return
+	 */
+	public static Matte fromImage(BufferedImage img)
+	{
+		final int w = img.getWidth();
+		final int h = img.getHeight();
+		final int words = (w + 63) >>> 6;
+
+		long[] full = new long[words * h];
+		int[] row = new int[w];
+
+		for (int y = 0; y < h; y++)
+		{
+			img.getRGB(0, y, w, 1, row, 0, w);
+
+			for (int x = 0; x < w; x++)
+			{
+				if (PoissonImageEditor.isMatteColor(row[x]))
+					full[y * words + (x >>> 6)] |= 1L << (x & 63);
+			}
+		}
+
+		return new Matte(full, w, h);
+	}
+
+	/**
+	 * Makes a matte out of a polygon, for an image of the given size. A pixel belongs to the
+	 * matte if Polygon.contains() says so for its coordinates (see PolygonRasterizer).
+	 *
+	 * @param shape
+	 * @param w
+	 * @param h
+	 * @return
+	 */
+	public static Matte fromPolygon(Polygon shape, int w, int h)
+	{
+		final int words = (w + 63) >>> 6;
+		final long[] full = new long[words * h];
+
+		PolygonRasterizer.rasterize(shape, w, h, new PolygonRasterizer.SpanVisitor() {
+			public void span(int y, int x0, int x1) {
+				setSpan(full, y * words, x0, x1);
+			}
+		});
+
+		return new Matte(full, w, h);
+	}
+
+	/**
+	 * Sets bits x0 (inclusive) to x1 (exclusive) of the row starting at the given long,
+	 * a whole long at a time
+	 */
+	private static void setSpan(long[] bits, int row, int x0, int x1)
+	{
+		int first = x0 >>> 6, last = (x1 - 1) >>> 6;
+		long firstMask = -1L << (x0 & 63);
+		long lastMask = -1L >>> (63 - ((x1 - 1) & 63));
+
+		if (first == last)
+		{
+			bits[row + first] |= firstMask & lastMask;
+			return;
+		}
+
+		bits[row + first] |= firstMask;
+		for (int i = first + 1; i < last; i++)
+			bits[row + i] = -1L;
+		bits[row + last] |= lastMask;
+	}
+
+	/**
+	 * The matte at half the resolution, for the pyramid of PoissonImageEditor.PasteProgressive.
+	 * Pixel (X, Y) of the result stands for the 2x2 block at (originX + 2X, originY + 2Y) and is
+	 * in the matte if at least two pixels of the block are.
+	 *
+	 * @param originX where the blocks start, not right of the bounding box
+	 * @param originY
+	 * @return
+	 */
+	public Matte downsample(int originX, int originY)
+	{
+		if (originX > x0 || originY > y0)
+			throw new IllegalArgumentException("the origin must not be inside the bounding box");
+
+		if (count == 0)
+			return new Matte(new long[0], 0, 0);
+
+		final int cw = (x0 + width - originX + 1) / 2;
+		final int ch = (y0 + height - originY + 1) / 2;
+		final int words = (cw + 63) >>> 6;
+
+		long[] full = new long[words * ch];
+
+		for (int cy = (y0 - originY) / 2; cy < ch; cy++)
+		{
+			int fy = originY + 2 * cy;
+
+			for (int cx = (x0 - originX) / 2; cx < cw; cx++)
+			{
+				int fx = originX + 2 * cx;
+
+				int n = (contains(fx, fy) ? 1 : 0) + (contains(fx + 1, fy) ? 1 : 0) +
+						(contains(fx, fy + 1) ? 1 : 0) + (contains(fx + 1, fy + 1) ? 1 : 0);
+
+				if (n >= 2)
+					full[cy * words + (cx >>> 6)] |= 1L << (cx & 63);
+			}
+		}
+
+		return new Matte(full, cw, ch);
+	}
+
+	/**
+	 * Draws the matte the way PoissonImageEditor.CreateMatte always has: red on black
+	 *
+	 * @param w size of the image, at least covering the bounding box
+	 * @param h
+	 * @param type BufferedImage type
+	 * @return
+	 */
+	public BufferedImage toImage(int w, int h, int type)
+	{
+		BufferedImage result = new BufferedImage(w, h, type);
+		int[] row = new int[w];
+
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+				row[x] = contains(x, y) ? 0xFFFF0000 : 0xFF000000;
+
+			result.setRGB(0, y, w, 1, row, 0, w);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return the number of pixels in the matte, i.e. the number of unknowns
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	public boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	public boolean contains(int x, int y)
+	{
+		int cx = x - x0, cy = y - y0;
+		if (cx < 0 || cy < 0 || cx >= width || cy >= height) return false;
+
+		return (bits[cy * wordsPerRow + (cx >>> 6)] & (1L << (cx & 63))) != 0;
+	}
+
+	/**
+	 * Number of the unknown at the pixel, -1 if the pixel is not in the matte
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int index(int x, int y)
+	{
+		int cx = x - x0, cy = y - y0;
+		if (cx < 0 || cy < 0 || cx >= width || cy >= height) return -1;
+
+		int word = cy * wordsPerRow + (cx >>> 6);
+		long bit = 1L << (cx & 63);
+		if ((bits[word] & bit) == 0) return -1;
+
+		return rank[word] + Long.bitCount(bits[word] & (bit - 1));
+	}
+
+	/**
+	 * Which of the four neighbours of a matte pixel are not in the matte, i.e. lie on the
+	 * boundary of Omega: bit LaplacianStencil.UP (0) for the one above, then clockwise
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int boundaryFlags(int x, int y)
+	{
+		int flags = 0;
+		if (!contains(x, y - 1)) flags |= 1 << LaplacianStencil.UP;
+		if (!contains(x + 1, y)) flags |= 1 << LaplacianStencil.RIGHT;
+		if (!contains(x, y + 1)) flags |= 1 << LaplacianStencil.DOWN;
+		if (!contains(x - 1, y)) flags |= 1 << LaplacianStencil.LEFT;
+
+		return flags;
+	}
+
+	/**
+	 * Number of non-zero entries of A: a diagonal entry per pixel, and two per pair of
+	 * neighbouring pixels (counted a long at a time)
+	 *
+	 * @return
+	 */
+	public long getNonZeros()
+	{
+		long pairs = 0;
+
+		for (int y = 0; y < height; y++)
+		{
+			int row = y * wordsPerRow;
+
+			for (int i = 0; i < wordsPerRow; i++)
+			{
+				long word = bits[row + i];
+
+				// Horizontal pairs: every bit with its right neighbour, which for the last bit
+				// is the first bit of the next long
+				long next = (word >>> 1);
+				if (i + 1 < wordsPerRow) next |= bits[row + i + 1] << 63;
+				pairs += Long.bitCount(word & next);
+
+				// Vertical pairs with the row below
+				if (y + 1 < height)
+					pairs += Long.bitCount(word & bits[row + wordsPerRow + i]);
+			}
+		}
+
+		return count + 2 * pairs;
+	}
+
+	/**
+	 * The topology of the matte, for the factorization cache
+	 *
+	 * @return
+	 */
+	public MatteKey getKey()
+	{
+		return new MatteKey(width, height, bits);
+	}
+
+	/**
+	 * The 5-point Laplacian over the matte, for the matrix-free solvers
+	 *
+	 * @return
+	 */
+	public LaplacianStencil toStencil()
+	{
+		int[] neighbours = new int[count * 4];
+		int[] xs = new int[count];
+		int[] ys = new int[count];
+
+		int var = 0;
+		for (int y = y0; y < y0 + height; y++)
+		{
+			for (int x = x0; x < x0 + width; x++)
+			{
+				if (!contains(x, y)) continue;
+
+				xs[var] = x;
+				ys[var] = y;
+
+				int base = var * 4;
+				neighbours[base + LaplacianStencil.UP] = index(x, y - 1);
+				neighbours[base + LaplacianStencil.RIGHT] = contains(x + 1, y) ? var + 1 : -1;
+				neighbours[base + LaplacianStencil.DOWN] = index(x, y + 1);
+				neighbours[base + LaplacianStencil.LEFT] = contains(x - 1, y) ? var - 1 : -1;
+
+				var++;
+			}
+		}
+
+		return new LaplacianStencil(count, neighbours, xs, ys);
+	}
+}
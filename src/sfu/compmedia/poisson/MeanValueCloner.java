@@ -0,0 +1,608 @@
+package sfu.compmedia.poisson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import sfu.compmedia.poisson.solver.Cancellation;
+
+/**
+ *
+ * Seamless cloning without solving anything: mean-value coordinates (MVC) cloning, as described
+ * by Farbman et al. ("Coordinates for Instant Image Cloning").
+ *
+ * With the plain source gradients as the guidance field, the solution of the Poisson equation
+ * is the source plus a smooth "membrane" that takes the difference between the target and the
+ * source on the boundary of Omega and spreads it over the inside. Instead of solving for the
+ * membrane, we interpolate the boundary differences with mean-value coordinates: every pixel
+ * gets a weighted average of the differences along the contour of the matte, the weights
+ * depending only on where the contour is seen from the pixel. The membrane comes out very close
+ * to the harmonic one, and every pixel is computed on its own, so the work splits across any
+ * number of threads.
+ *
+ * Two tricks keep the cost down:
+ * - The contour is sampled hierarchically. A run of boundary pixels far away from a pixel
+ *   counts as a single segment, only the part of the contour close to the pixel is taken
+ *   pixel by pixel (see segmentRatio).
+ * - The membrane is smooth away from the boundary, so there it is only computed on a coarse
+ *   grid of nodes (every gridStep pixels) and interpolated bilinearly in between.
+ *
+ * Differences from the Poisson solve: the guidance field is the source gradient, never the
+ * mixed one of StencilKernels.guidance(), and holes of one or two pixels in the matte do not
+ * pull the membrane towards their values.
+ *
+ */
+public class MeanValueCloner {
+
+	/**
+	 * Distance between the nodes of the coarse grid, in pixels (1 = every pixel is computed)
+	 */
+	int gridStep = 4;
+
+	/**
+	 * A run of boundary pixels is taken as one segment from a pixel if the run is shorter than
+	 * segmentRatio times its distance to the pixel
+	 */
+	double segmentRatio = 0.5;
+
+	/**
+	 * At most this many segments on the coarsest level of a contour
+	 */
+	static final int COARSEST_SEGMENTS = 16;
+
+	/**
+	 * The nodes of a cell must be at least this many cells away from the boundary for the cell
+	 * to be interpolated
+	 */
+	static final int INTERIOR_CELLS = 4;
+
+	/**
+	 * Rows of pixels (or of nodes) per job handed to the pool
+	 */
+	static final int ROWS_PER_JOB = 16;
+
+	int parallelism = Runtime.getRuntime().availableProcessors();
+	ForkJoinPool pool;
+
+	public MeanValueCloner()
+	{
+		//
+	}
+
+	public int getGridStep()
+	{
+		return gridStep;
+	}
+
+	public void setGridStep(int gridStep)
+	{
+		if (gridStep < 1)
+			throw new IllegalArgumentException("gridStep must be at least 1");
+
+		this.gridStep = gridStep;
+	}
+
+	public double getSegmentRatio()
+	{
+		return segmentRatio;
+	}
+
+	/**
+	 * @param segmentRatio smaller is more accurate and slower; at most 1, so that a segment
+	 *        never passes through the pixel it is seen from
+	 */
+	public void setSegmentRatio(double segmentRatio)
+	{
+		if (!(segmentRatio > 0 && segmentRatio <= 1))
+			throw new IllegalArgumentException("segmentRatio must be in (0, 1]");
+
+		this.segmentRatio = segmentRatio;
+	}
+
+	public synchronized int getParallelism()
+	{
+		return parallelism;
+	}
+
+	public synchronized void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+
+		if (parallelism != this.parallelism && pool != null)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * The boundary of Omega: closed loops through the pixels just outside the matte, with the
+	 * difference between the target and the source at each of them
+	 */
+	public static class Contour {
+
+		/**
+		 * Loop i is made of the vertices loopStart[i] to loopStart[i + 1] - 1
+		 */
+		final int[] loopStart;
+
+		// Pixel of every vertex, in the coordinates of the matte
+		final int[] xs, ys;
+
+		/**
+		 * Target minus source at every vertex, per channel
+		 */
+		final double[][] diff;
+
+		/**
+		 * The segments of the coarsest level of loop i span 2^topLevel[i] vertices
+		 */
+		final int[] topLevel;
+
+		/**
+		 * The differences as seen by the segments of each level: smoothed[l][c][v] is the mean
+		 * of the 2^l differences around vertex v. Taking the differences at the ends of a long
+		 * segment as they are would let a single odd boundary pixel stand for the whole run.
+		 */
+		final double[][][] smoothed;
+
+		Contour(int[] loopStart, int[] xs, int[] ys, double[][] diff)
+		{
+			this.loopStart = loopStart;
+			this.xs = xs;
+			this.ys = ys;
+			this.diff = diff;
+
+			int levels = 1;
+			topLevel = new int[loopStart.length - 1];
+			for (int i = 0; i < topLevel.length; i++)
+			{
+				int n = loopStart[i + 1] - loopStart[i];
+				while ((n + (1 << topLevel[i]) - 1) >> topLevel[i] > COARSEST_SEGMENTS)
+					topLevel[i]++;
+
+				levels = Math.max(levels, topLevel[i] + 1);
+			}
+
+			smoothed = new double[levels][][];
+			smoothed[0] = diff;
+
+			for (int l = 1; l < levels; l++)
+			{
+				smoothed[l] = new double[3][xs.length];
+
+				for (int i = 0; i < topLevel.length; i++)
+				{
+					if (topLevel[i] < l) continue;
+
+					int base = loopStart[i], n = loopStart[i + 1] - base;
+					int half = Math.min(1 << (l - 1), n / 2);
+
+					for (int c = 0; c < 3; c++)
+					{
+						// Running sum over the window of 2 * half vertices around v (the loop is closed)
+						double sum = 0;
+						for (int k = -half; k < half; k++)
+							sum += diff[c][base + Math.floorMod(k, n)];
+
+						for (int v = 0; v < n; v++)
+						{
+							smoothed[l][c][base + v] = sum / (2 * half);
+
+							sum += diff[c][base + (v + half) % n] - diff[c][base + Math.floorMod(v - half, n)];
+						}
+					}
+				}
+			}
+		}
+
+		public int getNumLoops()
+		{
+			return loopStart.length - 1;
+		}
+
+		public int getNumVertices()
+		{
+			return xs.length;
+		}
+	}
+
+	/**
+	 * Traces the contour of the matte and reads the boundary differences
+	 *
+	 * @param src source planes around the matte (with at least a 1 pixel border)
+	 * @param matte
+	 * @param dst target planes under src, of the same size
+	 * @return
+	 */
+	public Contour trace(PlanarImage src, Matte matte, PlanarImage dst)
+	{
+		/*
+		 * The contour runs along the cracks between the matte pixels and the ones outside, from
+		 * pixel corner to pixel corner, keeping the matte on the right. The vertices are the
+		 * outside pixels next to the cracks, i.e. the pixels whose target values are the boundary
+		 * condition of the Poisson equation. Corner (cx, cy) is the top-left corner of pixel
+		 * (x0 + cx, y0 + cy), and a crack is a corner plus the direction it leaves it in
+		 * (0 right, 1 down, 2 left, 3 up).
+		 */
+		final int cw = matte.width + 1;
+		BitSet visited = new BitSet(cw * (matte.height + 1) * 4);
+
+		List<int[]> loops = new ArrayList<int[]>();
+		int numVertices = 0;
+
+		int[] loopXs = new int[64], loopYs = new int[64];
+
+		for (int y = matte.y0; y < matte.y0 + matte.height; y++)
+		{
+			for (int x = matte.x0; x < matte.x0 + matte.width; x++)
+			{
+				if (!matte.contains(x, y)) continue;
+
+				// The cracks around the pixel, as corner and direction
+				for (int d = 0; d < 4; d++)
+				{
+					int cx = x - matte.x0 + (d == 1 || d == 2 ? 1 : 0);
+					int cy = y - matte.y0 + (d == 2 || d == 3 ? 1 : 0);
+					int crack = (cy * cw + cx) * 4 + d;
+
+					if (visited.get(crack) || !isCrack(matte, cx, cy, d)) continue;
+
+					// Following the loop all the way around
+					int n = 0;
+					int c = crack;
+
+					do
+					{
+						visited.set(c);
+
+						int corner = c >> 2, dir = c & 3;
+						int ccx = corner % cw, ccy = corner / cw;
+
+						int ox = matte.x0 + ccx - (dir == 2 || dir == 3 ? 1 : 0);
+						int oy = matte.y0 + ccy - (dir == 0 || dir == 3 ? 1 : 0);
+
+						if (n == 0 || ox != loopXs[n - 1] || oy != loopYs[n - 1])
+						{
+							if (n == loopXs.length)
+							{
+								loopXs = Arrays.copyOf(loopXs, n * 2);
+								loopYs = Arrays.copyOf(loopYs, n * 2);
+							}
+							loopXs[n] = ox;
+							loopYs[n] = oy;
+							n++;
+						}
+
+						// The end of the crack, and the next one: turning right if we can (so
+						// pixels touching only diagonally stay in separate loops), then straight on
+						ccx += dir == 0 ? 1 : (dir == 2 ? -1 : 0);
+						ccy += dir == 1 ? 1 : (dir == 3 ? -1 : 0);
+
+						int next = -1;
+						for (int turn : new int[] {1, 0, 3})
+						{
+							int nd = (dir + turn) & 3;
+							if (isCrack(matte, ccx, ccy, nd))
+							{
+								next = (ccy * cw + ccx) * 4 + nd;
+								break;
+							}
+						}
+
+						c = next;
+					}
+					while (c != crack);
+
+					if (n > 1 && loopXs[n - 1] == loopXs[0] && loopYs[n - 1] == loopYs[0])
+						n--;
+
+					int[] loop = new int[n * 2];
+					for (int i = 0; i < n; i++)
+					{
+						loop[i * 2] = loopXs[i];
+						loop[i * 2 + 1] = loopYs[i];
+					}
+					loops.add(loop);
+					numVertices += n;
+				}
+			}
+		}
+
+		int[] loopStart = new int[loops.size() + 1];
+		int[] xs = new int[numVertices], ys = new int[numVertices];
+		double[][] diff = new double[3][numVertices];
+
+		int v = 0;
+		for (int i = 0; i < loops.size(); i++)
+		{
+			int[] loop = loops.get(i);
+			loopStart[i] = v;
+
+			for (int j = 0; j < loop.length; j += 2, v++)
+			{
+				xs[v] = loop[j];
+				ys[v] = loop[j + 1];
+
+				int k = src.index(xs[v], ys[v]);
+				for (int c = 0; c < 3; c++)
+					diff[c][v] = dst.planes[c][k] - src.planes[c][k];
+			}
+		}
+		loopStart[loops.size()] = v;
+
+		return new Contour(loopStart, xs, ys, diff);
+	}
+
+	/**
+	 * Whether the crack leaving corner (cx, cy) in direction d has the matte on its right and
+	 * a pixel outside the matte on its left
+	 */
+	private static boolean isCrack(Matte matte, int cx, int cy, int d)
+	{
+		int x = matte.x0 + cx, y = matte.y0 + cy;
+
+		switch (d)
+		{
+		case 0:  return matte.contains(x, y) && !matte.contains(x, y - 1);
+		case 1:  return matte.contains(x - 1, y) && !matte.contains(x, y);
+		case 2:  return matte.contains(x - 1, y - 1) && !matte.contains(x - 1, y);
+		default: return matte.contains(x, y - 1) && !matte.contains(x - 1, y - 1);
+		}
+	}
+
+	/**
+	 * Computes the clone over the matte: the source plus the membrane
+	 *
+	 * @param contour of the matte (see trace)
+	 * @param src source planes the contour has been traced with
+	 * @param matte
+	 * @param solution receives the values of the unknowns, per channel
+	 * @param cancel may be null
+	 * @throws CancellationException
+	 */
+	public void interpolate(final Contour contour, final PlanarImage src, final Matte matte,
+			final double[][] solution, final Cancellation cancel)
+	{
+		if (matte.isEmpty()) return;
+
+		final int step = gridStep;
+		final double ratio = segmentRatio;
+
+		// The coarse grid: node (i, j) sits on pixel (x0 + i * step, y0 + j * step)
+		final int nw = (matte.width - 1) / step + 2;
+		final int nh = (matte.height - 1) / step + 2;
+		final double[][] nodes = new double[3][nw * nh];
+		final double[] nodeDist = new double[nw * nh];
+
+		List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+
+		if (step > 1)
+		{
+			for (int j0 = 0; j0 < nh; j0 += ROWS_PER_JOB)
+			{
+				final int js = j0, je = Math.min(j0 + ROWS_PER_JOB, nh);
+
+				jobs.add(new Callable<Void>() {
+					public Void call() {
+						double[] value = new double[4];
+
+						for (int j = js; j < je; j++)
+						{
+							checkCancelled(cancel);
+
+							for (int i = 0; i < nw; i++)
+							{
+								int x = matte.x0 + i * step, y = matte.y0 + j * step;
+								int node = j * nw + i;
+
+								// Nodes outside the matte are never interpolated from
+								if (!matte.contains(x, y))
+								{
+									nodeDist[node] = -1;
+									continue;
+								}
+
+								evaluate(contour, x, y, ratio, value);
+								for (int c = 0; c < 3; c++)
+									nodes[c][node] = value[c];
+								nodeDist[node] = value[3];
+							}
+						}
+						return null;
+					}
+				});
+			}
+
+			runAll(jobs);
+			jobs.clear();
+		}
+
+		for (int y0 = 0; y0 < matte.height; y0 += ROWS_PER_JOB)
+		{
+			final int ys = y0, ye = Math.min(y0 + ROWS_PER_JOB, matte.height);
+
+			jobs.add(new Callable<Void>() {
+				public Void call() {
+					double[] value = new double[4];
+					final double interior = INTERIOR_CELLS * step;
+
+					for (int yr = ys; yr < ye; yr++)
+					{
+						checkCancelled(cancel);
+
+						// The unknowns of a row are numbered on from the count before its first long
+						int var = matte.rank[yr * matte.wordsPerRow];
+						int j = yr / step;
+						double fy = (double)(yr - j * step) / step;
+
+						for (int xr = 0; xr < matte.width; xr++)
+						{
+							int x = matte.x0 + xr, y = matte.y0 + yr;
+							if (!matte.contains(x, y)) continue;
+
+							int i = xr / step;
+							int n00 = j * nw + i;
+
+							if (step > 1 && nodeDist[n00] >= interior && nodeDist[n00 + 1] >= interior &&
+									nodeDist[n00 + nw] >= interior && nodeDist[n00 + nw + 1] >= interior)
+							{
+								double fx = (double)(xr - i * step) / step;
+
+								for (int c = 0; c < 3; c++)
+								{
+									double[] nc = nodes[c];
+									double top = nc[n00] + fx * (nc[n00 + 1] - nc[n00]);
+									double bottom = nc[n00 + nw] + fx * (nc[n00 + nw + 1] - nc[n00 + nw]);
+									value[c] = top + fy * (bottom - top);
+								}
+							}
+							else
+								evaluate(contour, x, y, ratio, value);
+
+							int k = src.index(x, y);
+							for (int c = 0; c < 3; c++)
+								solution[c][var] = src.planes[c][k] + value[c];
+
+							var++;
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		runAll(jobs);
+	}
+
+	/**
+	 * The membrane at one pixel: value[0..2] per channel, and value[3] the distance to the
+	 * closest vertex of the contour that has been looked at (the closest one overall, as long
+	 * as it is nearer than the coarse segments)
+	 */
+	static void evaluate(Contour contour, int x, int y, double ratio, double[] value)
+	{
+		// num[0..2], den, distance
+		double[] acc = {0, 0, 0, 0, Double.MAX_VALUE};
+
+		for (int loop = 0; loop < contour.getNumLoops(); loop++)
+		{
+			int base = contour.loopStart[loop];
+			int n = contour.loopStart[loop + 1] - base;
+			int level = contour.topLevel[loop];
+
+			for (int i = 0; i < n; i += 1 << level)
+				segment(contour, base, n, level, i, x, y, ratio, acc);
+		}
+
+		for (int c = 0; c < 3; c++)
+			value[c] = acc[c] / acc[3];
+		value[3] = acc[4];
+	}
+
+	/**
+	 * Adds the weights of the segment from vertex i to vertex i + 2^level of a loop (or the
+	 * finer segments it is made of, if it is too close to the pixel to be taken as a whole)
+	 */
+	private static void segment(Contour contour, int base, int n, int level, int i, int x, int y,
+			double ratio, double[] acc)
+	{
+		int a = base + i;
+		int b = base + (i + (1 << level) >= n ? 0 : i + (1 << level));
+
+		double ax = contour.xs[a] - x, ay = contour.ys[a] - y;
+		double bx = contour.xs[b] - x, by = contour.ys[b] - y;
+		double ra = Math.sqrt(ax * ax + ay * ay);
+		double rb = Math.sqrt(bx * bx + by * by);
+
+		if (level > 0 && (1 << level) > ratio * Math.min(ra, rb))
+		{
+			int half = 1 << (level - 1);
+
+			segment(contour, base, n, level - 1, i, x, y, ratio, acc);
+			if (i + half < n)
+				segment(contour, base, n, level - 1, i + half, x, y, ratio, acc);
+			return;
+		}
+
+		/*
+		 * The mean-value weight of a vertex is (tan(alpha_prev / 2) + tan(alpha_next / 2)) / r,
+		 * alpha being the (signed) angles the segments on either side of it are seen at. Each
+		 * segment adds its half to both of its ends; tan(alpha / 2) = sin(alpha) / (1 + cos(alpha)).
+		 */
+		double t = (ax * by - ay * bx) / (ra * rb + ax * bx + ay * by);
+		double wa = t / ra, wb = t / rb;
+
+		double[][] diff = contour.smoothed[level];
+		for (int c = 0; c < 3; c++)
+			acc[c] += wa * diff[c][a] + wb * diff[c][b];
+		acc[3] += wa + wb;
+		acc[4] = Math.min(acc[4], Math.min(ra, rb));
+	}
+
+	private static void checkCancelled(Cancellation cancel)
+	{
+		if (cancel != null && cancel.isCancelled())
+			throw new CancellationException("Cloning cancelled");
+	}
+
+	private synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool(parallelism);
+
+		return pool;
+	}
+
+	private void runAll(List<Callable<Void>> jobs)
+	{
+		if (getParallelism() == 1)
+		{
+			for (Callable<Void> job : jobs)
+			{
+				try
+				{
+					job.call();
+				}
+				catch (RuntimeException e)
+				{
+					throw e;
+				}
+				catch (Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+			return;
+		}
+
+		for (Future<Void> f : getPool().invokeAll(jobs))
+		{
+			try
+			{
+				f.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while cloning", e);
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof CancellationException)
+					throw (CancellationException)e.getCause();
+
+				throw new RuntimeException("Cloning failed", e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package sfu.compmedia.poisson;
+
+/**
+ *
+ * The result of a paste before it goes into the target: the target planes over the pasted area
+ * with the blend in them, and which of their pixels the blend has changed. Written into the
+ * target with TiledTarget.apply() (or ImageUtil.pack()), by whoever owns the target - e.g. the
+ * event thread, while the paste itself has been done in the background.
+ *
+ */
+public class PastePatch {
+
+	/**
+	 * At the position of the target they were unpacked from
+	 */
+	public final PlanarImage planes;
+
+	/**
+	 * Same layout as the planes
+	 */
+	public final boolean[] written;
+
+	public PastePatch(PlanarImage planes, boolean[] written)
+	{
+		if (planes == null || written == null)
+			throw new IllegalArgumentException("planes and written must not be null");
+		if (written.length != planes.width * planes.height)
+			throw new IllegalArgumentException("written must have one flag per pixel of the planes");
+
+		this.planes = planes;
+		this.written = written;
+	}
+}
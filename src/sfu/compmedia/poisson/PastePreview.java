@@ -0,0 +1,22 @@
+package sfu.compmedia.poisson;
+
+import java.awt.image.BufferedImage;
+
+/**
+ *
+ * Receives the approximate results of PoissonImageEditor.PasteProgressive, coarsest first,
+ * while the exact one is still being worked on.
+ *
+ */
+public interface PastePreview {
+
+	/**
+	 * Called on the thread running the paste. The patch belongs to the receiver from then on.
+	 *
+	 * @param patch the target image over the bounding box of the pasted area, with the blend in it
+	 * @param x position of the patch in the target image
+	 * @param y
+	 * @param level of the pyramid the blend was solved on (1 = half resolution, 2 = quarter...)
+	 */
+	void preview(BufferedImage patch, int x, int y, int level);
+}
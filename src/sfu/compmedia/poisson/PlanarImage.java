@@ -0,0 +1,140 @@
+package sfu.compmedia.poisson;
+
+/**
+ *
+ * An image, or a rectangular part of one, stored as three separate planes (R, G, B) of
+ * normalized float values.
+ *
+ * Going through BufferedImage.getRGB() and ImageUtil.getRGBArrayNormalized() for every
+ * single pixel access is slow and allocates a fresh array every time. Instead the pixels are
+ * unpacked once (see ImageUtil.unpack) into flat row-major arrays, and packed back once
+ * when we are done (see ImageUtil.pack).
+ *
+ */
+public class PlanarImage {
+
+	/**
+	 * Position of the top-left pixel of the plane within the original image
+	 */
+	public final int x0, y0;
+	public final int width, height;
+
+	/**
+	 * planes[0] is red, planes[1] green and planes[2] blue (or the luma and the two chroma
+	 * channels, between toYCbCr() and toRGB())
+	 */
+	public final float[][] planes;
+
+	public PlanarImage(int x0, int y0, int width, int height)
+	{
+		this.x0 = x0;
+		this.y0 = y0;
+		this.width = width;
+		this.height = height;
+
+		planes = new float[3][width * height];
+	}
+
+	/**
+	 * Index into the planes of the pixel (x, y), given in the coordinates of the original image
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int index(int x, int y)
+	{
+		return (y - y0) * width + (x - x0);
+	}
+
+	/**
+	 * Half the resolution, averaging blocks of 2x2 pixels (or fewer along the last row and column
+	 * if the size is odd). The result starts at (0, 0): its pixel (X, Y) stands for the block at
+	 * (2X, 2Y) counted from the top-left pixel of this one.
+	 *
+	 * @return
+	 */
+	public PlanarImage downsample()
+	{
+		final int cw = (width + 1) / 2;
+		final int ch = (height + 1) / 2;
+
+		PlanarImage result = new PlanarImage(0, 0, cw, ch);
+
+		for (int c = 0; c < 3; c++)
+		{
+			final float[] fine = planes[c];
+			final float[] coarse = result.planes[c];
+
+			for (int y = 0; y < ch; y++)
+			{
+				int y1 = Math.min(2 * y + 1, height - 1);
+
+				for (int x = 0; x < cw; x++)
+				{
+					int x1 = Math.min(2 * x + 1, width - 1);
+
+					coarse[y * cw + x] = (fine[2 * y * width + 2 * x] + fine[2 * y * width + x1] +
+							fine[y1 * width + 2 * x] + fine[y1 * width + x1]) * 0.25f;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Converts the planes to YCbCr in place (the full-range BT.601 matrix, with no offsets: the
+	 * chroma planes are centred on 0). A paste in YCbCr is not the RGB one converted, for two
+	 * reasons: the chroma is solved at half the resolution (see PoissonImageEditor.setColorSpace),
+	 * and the mixed gradients of StencilKernels.guidance() pick source or target per channel, by
+	 * the larger gradient, which does not commute with the transform. With both, on the
+	 * sampleImages targets, up to 29 levels off on kitten into library and 44 on eagle into
+	 * liberty.
+	 */
+	public void toYCbCr()
+	{
+		final float[] r = planes[0], g = planes[1], b = planes[2];
+
+		for (int i = 0; i < r.length; i++)
+		{
+			float red = r[i], green = g[i], blue = b[i];
+
+			r[i] = 0.299f * red + 0.587f * green + 0.114f * blue;
+			g[i] = -0.168736f * red - 0.331264f * green + 0.5f * blue;
+			b[i] = 0.5f * red - 0.418688f * green - 0.081312f * blue;
+		}
+	}
+
+	/**
+	 * Converts the planes back to RGB in place, undoing toYCbCr()
+	 */
+	public void toRGB()
+	{
+		final float[] y = planes[0], cb = planes[1], cr = planes[2];
+
+		for (int i = 0; i < y.length; i++)
+		{
+			float luma = y[i], blue = cb[i], red = cr[i];
+
+			y[i] = luma + 1.402f * red;
+			cb[i] = luma - 0.344136f * blue - 0.714136f * red;
+			cr[i] = luma + 1.772f * blue;
+		}
+	}
+
+	public float[] getRed()
+	{
+		return planes[0];
+	}
+
+	public float[] getGreen()
+	{
+		return planes[1];
+	}
+
+	public float[] getBlue()
+	{
+		return planes[2];
+	}
+}
@@ -1,12 +1,45 @@
 package sfu.compmedia.poisson;
 
 import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.ejml.data.*;
-import org.ejml.interfaces.linsol.LinearSolver;
+import org.ejml.interfaces.decomposition.DecompositionInterface;
+import org.ejml.interfaces.linsol.LinearSolverSparse;
 import org.ejml.sparse.csc.factory.LinearSolverFactory_DSCC;
 import org.ejml.sparse.*;
+import org.ejml.sparse.csc.decomposition.chol.CholeskyUpLooking_DSCC;
+import org.ejml.sparse.csc.decomposition.chol.CholeskyUpLooking_FSCC;
+
+import sfu.compmedia.poisson.metrics.PasteMetrics;
+import sfu.compmedia.poisson.metrics.PasteMonitor;
+import sfu.compmedia.poisson.metrics.PastePhase;
+import sfu.compmedia.poisson.metrics.PasteTrace;
+import sfu.compmedia.poisson.solver.Cancellation;
+import sfu.compmedia.poisson.solver.ConjugateGradientSolver;
+import sfu.compmedia.poisson.solver.FactorizationCache;
+import sfu.compmedia.poisson.solver.LaplacianStencil;
+import sfu.compmedia.poisson.solver.MatteKey;
+import sfu.compmedia.poisson.solver.MixedPrecisionCholesky;
+import sfu.compmedia.poisson.solver.MultigridCycle;
+import sfu.compmedia.poisson.solver.MultigridSolver;
+import sfu.compmedia.poisson.solver.NestedDissection;
+import sfu.compmedia.poisson.solver.Ordering;
+import sfu.compmedia.poisson.solver.PermutedCholesky;
+import sfu.compmedia.poisson.solver.Precision;
+import sfu.compmedia.poisson.solver.Preconditioner;
+import sfu.compmedia.poisson.solver.SchwarzSolver;
+import sfu.compmedia.poisson.solver.StencilKernels;
 
 
 /**
@@ -16,207 +49,1433 @@ import org.ejml.sparse.*;
  *  
  */
 public class PoissonImageEditor extends ImageUtil {
+	
+	SolverType solverType = SolverType.DIRECT_CHOLESKY;
+	
+	/**
+	 * Size of the coarsest level of PasteProgressive, in unknowns (solved in a few milliseconds)
+	 */
+	public static final int PREVIEW_UNKNOWNS = 16384;
+	
+	/**
+	 * Settings (preconditioner, tolerance, iteration cap) of the matrix-free engine
+	 */
+	ConjugateGradientSolver cgSolver = new ConjugateGradientSolver();
+	
+	/**
+	 * Settings (cycle type, tolerance, cycle cap) of the multigrid engine
+	 */
+	MultigridSolver mgSolver = new MultigridSolver();
+	
+	/**
+	 * Solves the coarse levels of PasteProgressive and the frames of LivePaste: they are only 
+	 * shown for a moment, so a rough solution is enough (and multigrid gets there in a couple 
+	 * of cycles)
+	 */
+	final MultigridSolver previewSolver = new MultigridSolver(MultigridCycle.V, 1e-3, 20);
+	
+	/**
+	 * Settings (tiling, tile solver, tolerance, worker count) of the domain decomposition engine
+	 */
+	SchwarzSolver schwarzSolver = new SchwarzSolver();
+	
+	/**
+	 * Settings (coarse grid, boundary sampling, thread count) of the solver-free engine
+	 */
+	MeanValueCloner meanValueCloner = new MeanValueCloner();
+	
+	/**
+	 * Settings (grading of the cells, detail threshold) of the quadtree engine
+	 */
+	QuadtreeSolver quadtreeSolver = new QuadtreeSolver();
+	
+	/**
+	 * Kernels of the convolution pyramid engine
+	 */
+	ConvolutionPyramid convolutionPyramid = new ConvolutionPyramid();
+	
+	/**
+	 * Settings (tolerance, iteration cap) of the spectral engine: conjugate gradients with the
+	 * fast sine transform solve on the bounding box as the preconditioner
+	 */
+	ConjugateGradientSolver spectralSolver = new ConjugateGradientSolver(Preconditioner.SPECTRAL, 1e-6, 1000);
+	
+	/**
+	 * Whether a matte that fills its bounding box is solved by the spectral engine, whatever 
+	 * engine has been asked for (off by default)
+	 */
+	boolean spectralForRectangles = false;
+	
+	/**
+	 * Elimination order of the direct engine
+	 */
+	Ordering ordering = Ordering.NESTED_DISSECTION;
+	
+	/**
+	 * Arithmetic of the direct engine's factorization
+	 */
+	Precision precision = Precision.DOUBLE;
+	
+	/**
+	 * Channels the blending is solved in (RGB, or luma at full and chroma at half resolution)
+	 */
+	ColorSpace colorSpace = ColorSpace.RGB;
+	
+	/**
+	 * Inner loops of the right-hand sides and of the multigrid smoothing (vectorized if the JVM
+	 * has the Vector API)
+	 */
+	StencilKernels kernels = StencilKernels.get();
+	
+	/**
+	 * Factorizations of A from the previous pastes, keyed by the matte topology. All of them in
+	 * the current ordering and precision: setOrdering and setPrecision empty it.
+	 */
+	FactorizationCache<LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj>> factorizationCache = 
+			new FactorizationCache<LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj>>();
+	
+	/**
+	 * Multigrid hierarchies (with their Galerkin operators) from the previous pastes, keyed by 
+	 * the matte topology just like the factorizations
+	 */
+	FactorizationCache<MultigridSolver.Hierarchy> hierarchyCache = new FactorizationCache<MultigridSolver.Hierarchy>();
+	
+	/**
+	 * Latency histograms of the phases of all the pastes done by this editor
+	 */
+	final PasteMetrics metrics = new PasteMetrics();
+	
+	/**
+	 * How many RGB channels the iterative engines solve at the same time (1 = one after another)
+	 */
+	int parallelism = Math.min(3, Runtime.getRuntime().availableProcessors());
+	ForkJoinPool channelPool;
+	
+	/**
+	 * Indices of the planes that blend() solves for: all of them, or the luma or the chroma
+	 * planes of a YCbCr image
+	 */
+	static final int[] ALL_CHANNELS = {0, 1, 2};
+	static final int[] LUMA = {0};
+	static final int[] CHROMA = {1, 2};
+	
+	/**
+	 * A solve of one RGB channel, so the channels can be handed to the pool
+	 */
+	interface ChannelSolve {
+		void solve(int channel);
+	}
+		
+	/**
+	 * Primary constructor
+	 */
+	public PoissonImageEditor()
+	{	
+		//
+	}
+	
+	
+	public SolverType getSolverType()
+	{
+		return solverType;
+	}
+	
+	public void setSolverType(SolverType solverType)
+	{
+		if (solverType == null)
+			throw new IllegalArgumentException("solverType must not be null");
+		
+		this.solverType = solverType;
+	}
+	
+	public ConjugateGradientSolver getConjugateGradientSolver()
+	{
+		return cgSolver;
+	}
+	
+	public MultigridSolver getMultigridSolver()
+	{
+		return mgSolver;
+	}
+	
+	public SchwarzSolver getSchwarzSolver()
+	{
+		return schwarzSolver;
+	}
+	
+	public MeanValueCloner getMeanValueCloner()
+	{
+		return meanValueCloner;
+	}
+	
+	public QuadtreeSolver getQuadtreeSolver()
+	{
+		return quadtreeSolver;
+	}
+	
+	public ConvolutionPyramid getConvolutionPyramid()
+	{
+		return convolutionPyramid;
+	}
+	
+	/**
+	 * @param convolutionPyramid e.g. with kernels of its own
+	 */
+	public void setConvolutionPyramid(ConvolutionPyramid convolutionPyramid)
+	{
+		if (convolutionPyramid == null)
+			throw new IllegalArgumentException("convolutionPyramid must not be null");
+		
+		this.convolutionPyramid = convolutionPyramid;
+	}
+	
+	public ConjugateGradientSolver getSpectralSolver()
+	{
+		return spectralSolver;
+	}
+	
+	public boolean isSpectralForRectangles()
+	{
+		return spectralForRectangles;
+	}
+	
+	/**
+	 * @param spectralForRectangles if true, mattes that fill their bounding box are solved
+	 *        with the fast sine transform, whatever the solver type - except for 
+	 *        MEAN_VALUE_CLONING and CONVOLUTION_PYRAMID, which are picked for not solving at all, 
+	 *        and for DIRECT_CHOLESKY when the factorization of the matte is already cached (the 
+	 *        triangular solves are faster then)
+	 */
+	public void setSpectralForRectangles(boolean spectralForRectangles)
+	{
+		this.spectralForRectangles = spectralForRectangles;
+	}
+	
+	public Ordering getOrdering()
+	{
+		return ordering;
+	}
+	
+	/**
+	 * @param ordering of the unknowns for the direct engine; a different one empties the
+	 *        factorization cache, whose factors were made in the old order
+	 */
+	public void setOrdering(Ordering ordering)
+	{
+		if (ordering == null)
+			throw new IllegalArgumentException("ordering must not be null");
+		
+		if (ordering != this.ordering)
+			factorizationCache.clear();
+		
+		this.ordering = ordering;
+	}
+	
+	public Precision getPrecision()
+	{
+		return precision;
+	}
+	
+	/**
+	 * @param precision of the direct engine's factorization: MIXED keeps the factor in float,
+	 *        for about a third less memory, and refines the solution in double; a different
+	 *        one empties the factorization cache, whose factors were made in the old precision
+	 */
+	public void setPrecision(Precision precision)
+	{
+		if (precision == null)
+			throw new IllegalArgumentException("precision must not be null");
+		
+		if (precision != this.precision)
+			factorizationCache.clear();
+		
+		this.precision = precision;
+	}
+	
+	public ColorSpace getColorSpace()
+	{
+		return colorSpace;
+	}
+	
+	/**
+	 * @param colorSpace YCBCR solves the two chroma channels on a matte of half the resolution,
+	 *        for about half the unknowns of RGB in all. That saves time with the iterative
+	 *        engines only: the direct engine has to factorize the chroma matte as well, on top of
+	 *        the full one. The result is not the RGB one: the chroma correction is solved at half
+	 *        the resolution, so it loses detail where it changes fast, along the seam and all
+	 *        over a small selection. Against RGB on a uniform grey target (the direct engine,
+	 *        sampleImages pairs), up to 2, 6, 3 and 17 levels off for kitten, penguin, eagle and
+	 *        watereagle, but 82 for the small, saturated balloon. On a real target the mixed
+	 *        gradients add to that (see PlanarImage.toYCbCr)
+	 */
+	public void setColorSpace(ColorSpace colorSpace)
+	{
+		if (colorSpace == null)
+			throw new IllegalArgumentException("colorSpace must not be null");
+		
+		this.colorSpace = colorSpace;
+	}
+	
+	public StencilKernels getKernels()
+	{
+		return kernels;
+	}
+	
+	/**
+	 * @param kernels for the right-hand sides, also handed to both multigrid solvers
+	 *        (e.g. StencilKernels.scalar() to compare against the vector ones)
+	 */
+	public void setKernels(StencilKernels kernels)
+	{
+		if (kernels == null)
+			throw new IllegalArgumentException("kernels must not be null");
+		
+		this.kernels = kernels;
+		mgSolver.setKernels(kernels);
+		previewSolver.setKernels(kernels);
+	}
+	
+	public FactorizationCache<LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj>> getFactorizationCache()
+	{
+		return factorizationCache;
+	}
+	
+	public FactorizationCache<MultigridSolver.Hierarchy> getHierarchyCache()
+	{
+		return hierarchyCache;
+	}
+	
+	/**
+	 * Timings of the pastes so far, per phase (see PastePhase)
+	 * 
+	 * @return
+	 */
+	public PasteMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	public synchronized int getParallelism()
+	{
+		return parallelism;
+	}
+	
+	public synchronized void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		
+		if (parallelism != this.parallelism && channelPool != null)
+		{
+			channelPool.shutdown();
+			channelPool = null;
+		}
+		
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Runs the solve for all three channels, concurrently if parallelism allows. Each channel
+	 * is computed exactly the same way either way, so the result does not depend on it.
+	 * 
+	 * @param task
+	 */
+	void solveChannels(final ChannelSolve task)
+	{
+		solveChannels(ALL_CHANNELS, task);
+	}
+	
+	/**
+	 * Same as above, for some of the channels only
+	 * 
+	 * @param channels
+	 * @param task
+	 */
+	void solveChannels(int[] channels, final ChannelSolve task)
+	{
+		ForkJoinPool pool;
+		
+		synchronized (this)
+		{
+			if (parallelism > 1 && channelPool == null)
+				channelPool = new ForkJoinPool(parallelism);
+			
+			pool = parallelism > 1 ? channelPool : null;
+		}
+		
+		if (pool == null || channels.length == 1)
+		{
+			for (int i : channels)
+				task.solve(i);
+			return;
+		}
+		
+		List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+		for (int i : channels)
+		{
+			final int channel = i;
+			jobs.add(new Callable<Void>() {
+				public Void call() {
+					task.solve(channel);
+					return null;
+				}
+			});
+		}
+		
+		for (Future<Void> f : pool.invokeAll(jobs))
+		{
+			try
+			{
+				f.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while solving the channels", e);
+			}
+			catch (ExecutionException e)
+			{
+				// A cancelled solve is not a failure, the caller expects to see it as it is
+				if (e.getCause() instanceof CancellationException)
+					throw (CancellationException)e.getCause();
+				
+				throw new RuntimeException("Solving a channel failed", e.getCause());
+			}
+		}
+	}
+	
+	
+	/**
+	 *
+	 * Paste source image into the target one at the coordinates provided.
+	 * 
+	 * @param sourceImg
+	 * @param sourceImgMatte
+	 * @param targetImg
+	 * @param pasteX
+	 * @param pasteY
+	 * @return
+	 */
+	public BufferedImage Paste(BufferedImage sourceImg, BufferedImage sourceImgMatte, BufferedImage targetImg, int pasteX, int pasteY)
+	{
+		return Paste(sourceImg, sourceImgMatte, targetImg, pasteX, pasteY, solverType);
+	}
+	
+	/**
+	 *
+	 * Same as above, but with the solver engine chosen for this call only.
+	 * 
+	 * @param sourceImg
+	 * @param sourceImgMatte
+	 * @param targetImg
+	 * @param pasteX
+	 * @param pasteY
+	 * @param solverType
+	 * @return
+	 */
+	public BufferedImage Paste(BufferedImage sourceImg, BufferedImage sourceImgMatte, BufferedImage targetImg, int pasteX, int pasteY, 
+			SolverType solverType)
+	{
+		PasteTrace trace = new PasteTrace(metrics, solverType.name());
+		trace.begin(PastePhase.TOTAL);
+		
+		Matte matte = readMatte(sourceImgMatte, trace);
+		
+		return paste(sourceImg, matte, targetImg, pasteX, pasteY, solverType, trace);
+	}
+	
+	/**
+	 *
+	 * Paste source image into the target one, with the matte given as a Matte rather than an 
+	 * image (e.g. straight from Matte.fromPolygon).
+	 * 
+	 * @param sourceImg
+	 * @param matte in the coordinates of the source image
+	 * @param targetImg
+	 * @param pasteX
+	 * @param pasteY
+	 * @return
+	 */
+	public BufferedImage Paste(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY)
+	{
+		return Paste(sourceImg, matte, targetImg, pasteX, pasteY, solverType);
+	}
+	
+	/**
+	 *
+	 * Same as above, but with the solver engine chosen for this call only.
+	 * 
+	 * @param sourceImg
+	 * @param matte
+	 * @param targetImg
+	 * @param pasteX
+	 * @param pasteY
+	 * @param solverType
+	 * @return
+	 */
+	public BufferedImage Paste(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY, 
+			SolverType solverType)
+	{
+		return Paste(sourceImg, matte, targetImg, pasteX, pasteY, solverType, null);
+	}
+	
+	/**
+	 *
+	 * Same as above, reporting the progress to a monitor that can also cancel the paste (for
+	 * pastes running in the background)
+	 * 
+	 * @param sourceImg
+	 * @param matte
+	 * @param targetImg
+	 * @param pasteX
+	 * @param pasteY
+	 * @param solverType
+	 * @param monitor may be null
+	 * @return
+	 * @throws CancellationException if the monitor cancels the paste
+	 */
+	public BufferedImage Paste(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY, 
+			SolverType solverType, PasteMonitor monitor)
+	{
+		PasteTrace trace = new PasteTrace(metrics, solverType.name(), monitor);
+		trace.begin(PastePhase.TOTAL);
+		
+		return paste(sourceImg, matte, targetImg, pasteX, pasteY, solverType, trace);
+	}
+	
+	private BufferedImage paste(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY, 
+			SolverType solverType, PasteTrace trace)
+	{
+		PastePatch patch = pastePatch(sourceImg, matte, targetImg, pasteX, pasteY, solverType, trace);
+		
+		BufferedImage result = ImageUtil.deepCopy(targetImg);
+		ImageUtil.pack(patch.planes, result, patch.written);
+		
+		trace.end(PastePhase.WRITE_BACK);
+		trace.end(PastePhase.TOTAL);
+		
+		return result;
+	}
+	
+	/**
+	 *
+	 * Paste source image into a TiledTarget, in place: only the tiles the paste writes to are 
+	 * copied, into the history of the target, so that it can be undone.
+	 * 
+	 * @param sourceImg
+	 * @param matte in the coordinates of the source image
+	 * @param target
+	 * @param pasteX
+	 * @param pasteY
+	 * @return the area of the target that has changed, null if none
+	 */
+	public Rectangle Paste(BufferedImage sourceImg, Matte matte, TiledTarget target, int pasteX, int pasteY)
+	{
+		return Paste(sourceImg, matte, target, pasteX, pasteY, solverType);
+	}
+	
+	/**
+	 *
+	 * Same as above, but with the solver engine chosen for this call only.
+	 * 
+	 * @param sourceImg
+	 * @param matte
+	 * @param target
+	 * @param pasteX
+	 * @param pasteY
+	 * @param solverType
+	 * @return the area of the target that has changed, null if none
+	 */
+	public Rectangle Paste(BufferedImage sourceImg, Matte matte, TiledTarget target, int pasteX, int pasteY, 
+			SolverType solverType)
+	{
+		PasteTrace trace = new PasteTrace(metrics, solverType.name());
+		trace.begin(PastePhase.TOTAL);
+		
+		PastePatch patch = pastePatch(sourceImg, matte, target.getImage(), pasteX, pasteY, solverType, trace);
+		Rectangle changed = target.apply(patch);
+		
+		trace.end(PastePhase.WRITE_BACK);
+		trace.end(PastePhase.TOTAL);
+		
+		return changed;
+	}
+	
+	/**
+	 * The blend of a paste, not written anywhere yet. Leaves the WRITE_BACK and TOTAL phases 
+	 * of the trace open for the caller to end once it has.
+	 */
+	private PastePatch pastePatch(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY, 
+			SolverType solverType, PasteTrace trace)
+	{
+		final ColorSpace colorSpace = this.colorSpace;
+		
+		trace.begin(PastePhase.UNPACK);
+		
+		/*
+		 * Unpacking both images into float planes once, instead of going through getRGB() for 
+		 * every access. Only the bounding box of the matte is needed, plus a pixel all around 
+		 * for the boundary of Omega (two for YCbCr, see blendLumaChroma).
+		 */
+		int border = colorSpace == ColorSpace.YCBCR ? 2 : 1;
+		
+		PlanarImage src = ImageUtil.unpack(sourceImg, matte.x0 - border, matte.y0 - border, matte.width + 2 * border, matte.height + 2 * border);
+		PlanarImage dst = ImageUtil.unpack(targetImg, pasteX + src.x0, pasteY + src.y0, src.width, src.height);
+		
+		trace.end(PastePhase.UNPACK);
+		
+		boolean[] written = colorSpace == ColorSpace.YCBCR ? 
+				blendLumaChroma(src, matte, dst, solverType, trace, null) :
+				blend(src, matte, dst, solverType, trace, null, false, ALL_CHANNELS);
+		
+		return new PastePatch(dst, written);
+	}
+	
+	/**
+	 *
+	 * Progressive paste, for interactive use: the blend is first solved on a downsampled copy 
+	 * of the problem, small enough to be done in a blink, and shown (upsampled) right away. Then 
+	 * it is solved again at twice the resolution, starting from the previous solution, and so 
+	 * on up to the full resolution, which is solved with the engine of this editor and returned 
+	 * just like Paste does.
+	 * 
+	 * Selections with up to PREVIEW_UNKNOWNS pixels are pasted directly, without any preview.
+	 * 
+	 * @param sourceImg
+	 * @param matte
+	 * @param targetImg
+	 * @param pasteX
+	 * @param pasteY
+	 * @param preview receives the result of every coarse level, may be null
+	 * @param monitor may be null
+	 * @return
+	 * @throws CancellationException if the monitor cancels the paste
+	 */
+	public BufferedImage PasteProgressive(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY, 
+			PastePreview preview, PasteMonitor monitor)
+	{
+		final SolverType solverType = this.solverType;
+		
+		PasteTrace trace = new PasteTrace(metrics, solverType.name(), monitor);
+		trace.begin(PastePhase.TOTAL);
+		
+		PastePatch patch = pasteProgressive(sourceImg, matte, targetImg, pasteX, pasteY, solverType, preview, trace);
+		
+		BufferedImage result = ImageUtil.deepCopy(targetImg);
+		ImageUtil.pack(patch.planes, result, patch.written);
+		
+		trace.end(PastePhase.WRITE_BACK);
+		trace.end(PastePhase.TOTAL);
+		
+		return result;
+	}
+	
+	/**
+	 *
+	 * Same as above, but the result is not written anywhere: the caller writes it into the target 
+	 * itself, e.g. with TiledTarget.apply(), instead of getting a copy of the whole target with it.
+	 * 
+	 * @param sourceImg
+	 * @param matte
+	 * @param targetImg not changed
+	 * @param pasteX
+	 * @param pasteY
+	 * @param preview receives the result of every coarse level, may be null
+	 * @param monitor may be null
+	 * @return
+	 * @throws CancellationException if the monitor cancels the paste
+	 */
+	public PastePatch PasteProgressivePatch(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY, 
+			PastePreview preview, PasteMonitor monitor)
+	{
+		final SolverType solverType = this.solverType;
+		
+		PasteTrace trace = new PasteTrace(metrics, solverType.name(), monitor);
+		trace.begin(PastePhase.TOTAL);
+		
+		PastePatch patch = pasteProgressive(sourceImg, matte, targetImg, pasteX, pasteY, solverType, preview, trace);
+		
+		trace.end(PastePhase.WRITE_BACK);
+		trace.end(PastePhase.TOTAL);
+		
+		return patch;
+	}
+	
+	/**
+	 * The blend of a progressive paste, leaving the WRITE_BACK and TOTAL phases open like pastePatch()
+	 */
+	private PastePatch pasteProgressive(BufferedImage sourceImg, Matte matte, BufferedImage targetImg, int pasteX, int pasteY, 
+			SolverType solverType, PastePreview preview, PasteTrace trace)
+	{
+		final ColorSpace colorSpace = this.colorSpace;
+		final PasteMonitor monitor = trace.getMonitor();
+		
+		// Halving the resolution until the problem is small enough (or too thin to halve)
+		int levels = 0;
+		long unknowns = matte.getCount();
+		int side = Math.min(matte.width, matte.height);
+		
+		while (unknowns > PREVIEW_UNKNOWNS && side >= 16)
+		{
+			unknowns /= 4;
+			side /= 2;
+			levels++;
+		}
+		
+		if (levels == 0)
+			return pastePatch(sourceImg, matte, targetImg, pasteX, pasteY, solverType, trace);
+		
+		trace.begin(PastePhase.UNPACK);
+		
+		/*
+		 * The pyramid. Every level covers the bounding box of the matte with a border wide enough
+		 * for the coarsest level to still have a pixel of boundary all around. Levels from 1 up
+		 * have their own coordinates, starting at the top-left of level 0.
+		 */
+		int border = 2 << levels;
+		
+		PlanarImage[] src = new PlanarImage[levels + 1];
+		PlanarImage[] dst = new PlanarImage[levels + 1];
+		Matte[] mattes = new Matte[levels + 1];
+		
+		src[0] = ImageUtil.unpack(sourceImg, matte.x0 - border, matte.y0 - border, matte.width + 2 * border, matte.height + 2 * border);
+		dst[0] = ImageUtil.unpack(targetImg, pasteX + src[0].x0, pasteY + src[0].y0, src[0].width, src[0].height);
+		mattes[0] = matte;
+		
+		for (int k = 1; k <= levels; k++)
+		{
+			src[k] = src[k - 1].downsample();
+			dst[k] = dst[k - 1].downsample();
+			mattes[k] = mattes[k - 1].downsample(src[k - 1].x0, src[k - 1].y0);
+		}
+		
+		trace.end(PastePhase.UNPACK);
+		
+		/*
+		 * Coarse to fine. The coarse levels are solved roughly with multigrid (the only thing 
+		 * that matters there is speed) and are not recorded in the metrics.
+		 */
+		double[][] guess = null;
+		
+		for (int k = levels; k >= 1; k--)
+		{
+			// A thin selection may vanish on the coarsest levels
+			if (mattes[k].isEmpty()) continue;
+			
+			PasteTrace levelTrace = new PasteTrace(null, SolverType.MULTIGRID.name(), monitor);
+			blend(src[k], mattes[k], dst[k], SolverType.MULTIGRID, levelTrace, guess, true, ALL_CHANNELS);
+			
+			if (preview != null)
+				preview.preview(previewPatch(src[0], dst[0], matte, dst[k], 1 << k), pasteX + matte.x0, pasteY + matte.y0, k);
+			
+			guess = upsample(dst[k], src[k - 1], mattes[k - 1]);
+		}
+		
+		/*
+		 * The full resolution, with the engine of the editor (the direct one has no use for the 
+		 * guess). The preview levels are RGB whatever the colour space, they are small anyway.
+		 */
+		boolean[] written = colorSpace == ColorSpace.YCBCR ? 
+				blendLumaChroma(src[0], matte, dst[0], solverType, trace, guess) :
+				blend(src[0], matte, dst[0], solverType, trace, guess, false, ALL_CHANNELS);
+		
+		return new PastePatch(dst[0], written);
+	}
+	
+	/**
+	 * Bilinear sample of a level of the pyramid at the centre of the pixel (x, y) of a level that 
+	 * has factor times its resolution (the coordinates counted from the top-left of that level)
+	 */
+	private static float sampleCoarse(float[] plane, int w, int h, int x, int y, int factor)
+	{
+		double sx = (x + 0.5) / factor - 0.5;
+		double sy = (y + 0.5) / factor - 0.5;
+		
+		int ix = (int)Math.floor(sx), iy = (int)Math.floor(sy);
+		double fx = sx - ix, fy = sy - iy;
+		
+		int x0 = Math.max(0, Math.min(w - 1, ix)), x1 = Math.max(0, Math.min(w - 1, ix + 1));
+		int y0 = Math.max(0, Math.min(h - 1, iy)), y1 = Math.max(0, Math.min(h - 1, iy + 1));
+		
+		return (float)((1 - fy) * ((1 - fx) * plane[y0 * w + x0] + fx * plane[y0 * w + x1]) +
+				fy * ((1 - fx) * plane[y1 * w + x0] + fx * plane[y1 * w + x1]));
+	}
+	
+	/**
+	 * Initial guess for the unknowns of a level, from the solution of the level below it
+	 * 
+	 * @param coarse target planes of the lower level, with its solution in them
+	 * @param fine source planes of the level (only for the position of its top-left pixel)
+	 * @param matte of the level
+	 * @return
+	 */
+	private static double[][] upsample(PlanarImage coarse, PlanarImage fine, Matte matte)
+	{
+		double[][] guess = new double[3][matte.getCount()];
+		
+		int var = 0;
+		for (int y = matte.y0; y < matte.y0 + matte.height; y++)
+		{
+			for (int x = matte.x0; x < matte.x0 + matte.width; x++)
+			{
+				if (!matte.contains(x, y)) continue;
+				
+				for (int c = 0; c < 3; c++)
+					guess[c][var] = sampleCoarse(coarse.planes[c], coarse.width, coarse.height, x - fine.x0, y - fine.y0, 2);
+				
+				var++;
+			}
+		}
 		
+		return guess;
+	}
+	
 	/**
-	 * Primary constructor
+	 * The target over the bounding box of the matte, with the solution of a coarse level 
+	 * upsampled into the pixels of the matte
 	 */
-	public PoissonImageEditor()
-	{	
-		//
+	private static BufferedImage previewPatch(PlanarImage src, PlanarImage dst, Matte matte, PlanarImage coarse, int factor)
+	{
+		PlanarImage patch = new PlanarImage(0, 0, matte.width, matte.height);
+		
+		for (int y = 0; y < matte.height; y++)
+		{
+			for (int x = 0; x < matte.width; x++)
+			{
+				int sx = matte.x0 + x, sy = matte.y0 + y;
+				int i = y * matte.width + x;
+				
+				for (int c = 0; c < 3; c++)
+				{
+					patch.planes[c][i] = matte.contains(sx, sy) ? 
+							sampleCoarse(coarse.planes[c], coarse.width, coarse.height, sx - src.x0, sy - src.y0, factor) :
+							dst.planes[c][src.index(sx, sy)];
+				}
+			}
+		}
+		
+		BufferedImage result = new BufferedImage(matte.width, matte.height, BufferedImage.TYPE_INT_RGB);
+		ImageUtil.pack(patch, result, null);
+		
+		return result;
 	}
 	
-	
 	/**
-	 * Computes image gradient - the numerical representation of the guidance 
-	 * vector field (which guides the interpolation for the subject region)
+	 *
+	 * Paste source image into a target that is kept in a file (see MappedRaster), for targets 
+	 * too big for the heap. Only the pasted area of the target is read, and only the pixels 
+	 * of the matte are written back - in place, so the caller has to keep a copy of the file 
+	 * if the original is still needed.
 	 * 
-	 * @param fstarp
-	 * @param fstarq
-	 * @param gp
-	 * @param gq
+	 * @param sourceImg
+	 * @param sourceImgMatte
+	 * @param target
+	 * @param pasteX
+	 * @param pasteY
+	 * @throws IOException
 	 */
-	private float vpq(float fstarp, float fstarq, float gp, float gq)
-	{	
-		float fstar_delta = fstarp - fstarq;
-		float g_delta = gp - gq;
-		
-		// Equations (11) and (13) from the paper
-		
-		if (Math.abs(fstar_delta) > Math.abs(g_delta))
-			return fstar_delta;
-		else
-			return g_delta;
+	public void Paste(BufferedImage sourceImg, BufferedImage sourceImgMatte, MappedRaster target, int pasteX, int pasteY) 
+			throws IOException
+	{
+		Paste(sourceImg, sourceImgMatte, target, pasteX, pasteY, solverType);
 	}
 	
 	/**
 	 *
-	 * Paste source image into the target one at the coordinates provided.
+	 * Same as above, but with the solver engine chosen for this call only.
 	 * 
 	 * @param sourceImg
 	 * @param sourceImgMatte
-	 * @param targetImg
+	 * @param target
 	 * @param pasteX
 	 * @param pasteY
-	 * @return
+	 * @param solverType
+	 * @throws IOException
 	 */
-	public BufferedImage Paste(BufferedImage sourceImg, BufferedImage sourceImgMatte, BufferedImage targetImg, int pasteX, int pasteY)
+	public void Paste(BufferedImage sourceImg, BufferedImage sourceImgMatte, MappedRaster target, int pasteX, int pasteY, 
+			SolverType solverType) throws IOException
 	{
-		BufferedImage result = ImageUtil.deepCopy(targetImg);
+		PasteTrace trace = new PasteTrace(metrics, solverType.name());
+		trace.begin(PastePhase.TOTAL);
+		
+		Matte matte = readMatte(sourceImgMatte, trace);
 		
-		final int w = sourceImg.getWidth();
-		final int h = sourceImg.getHeight();
-		final int px = pasteX;
-		final int py = pasteY;
+		final ColorSpace colorSpace = this.colorSpace;
+		
+		trace.begin(PastePhase.UNPACK);
+		
+		int border = colorSpace == ColorSpace.YCBCR ? 2 : 1;
+		
+		PlanarImage src = ImageUtil.unpack(sourceImg, matte.x0 - border, matte.y0 - border, matte.width + 2 * border, matte.height + 2 * border);
+		PlanarImage dst = ImageUtil.unpack(target, pasteX + src.x0, pasteY + src.y0, src.width, src.height);
+		
+		trace.end(PastePhase.UNPACK);
+		
+		boolean[] written = colorSpace == ColorSpace.YCBCR ? 
+				blendLumaChroma(src, matte, dst, solverType, trace, null) :
+				blend(src, matte, dst, solverType, trace, null, false, ALL_CHANNELS);
+		ImageUtil.pack(dst, target, written);
+		
+		trace.end(PastePhase.WRITE_BACK);
+		trace.end(PastePhase.TOTAL);
+	}
+	
+	private Matte readMatte(BufferedImage sourceImgMatte, PasteTrace trace)
+	{
+		trace.begin(PastePhase.ENUMERATION);
+		Matte matte = Matte.fromImage(sourceImgMatte);
+		trace.end(PastePhase.ENUMERATION);
 		
+		return matte;
+	}
+	
+	/**
+	 * Right-hand sides of the equation (7) over the matte, one per RGB channel
+	 * 
+	 * @param src source planes around the matte (with at least a 1 pixel border)
+	 * @param matte
+	 * @param dst target planes under src, of the same size
+	 * @return
+	 */
+	double[][] rightHandSides(PlanarImage src, Matte matte, PlanarImage dst)
+	{
+		return rightHandSides(src, matte, dst, ALL_CHANNELS);
+	}
+	
+	/**
+	 * Same as above, for some of the channels only (B of the others is left at zero)
+	 * 
+	 * @param src
+	 * @param matte
+	 * @param dst
+	 * @param channels
+	 * @return
+	 */
+	double[][] rightHandSides(PlanarImage src, Matte matte, PlanarImage dst, int[] channels)
+	{
+		final int w = src.width;
 		
 		/*
-		 * Each pixel that belongs to the region of interpolation ("Omega" in the original paper)
-		 * is involved in the computation and, thus, results in an unknown variable, with an index
-		 * starting from 0. -1 means no variables correspond to the pixel. To determine them all
-		 * we just need to enumerate all source image pixels that belong to its matte.
+		 * We've got to compute three different B vectors, one for each RGB channel, and then
+		 * Ax=B is solved for x three times, correspondingly.
+		 */
+		final double[][] B = new double[3][matte.getCount()];
+		
+		/*
+		 * Both planes cover the same area, so a pixel has the same index k in either of them.
+		 * 
+		 * The values that didn't end up in the matrix A, because they are not unknowns, are added
+		 * here too. They are not unknowns because they reside on the boundary of the region where
+		 * known target image values begin - the boundary condition that the paper is talking about.
+		 * Marking the pixels that are not unknowns lets the kernels add them without branching.
 		 */
-		int[][] vars = new int[w][h];
-		boolean[][] isMattePixel = new boolean[w][h];  // saves us from calling MatteTest() all the time
+		final float[] outside = new float[w * src.height];
+		Arrays.fill(outside, 1);
 		
-		int i_var = 0;
-		for (int y = 0; y < h; y++)
+		for (int y = matte.y0; y < matte.y0 + matte.height; y++)
 		{
-			for (int x = 0; x < w; x++)
+			for (int x = matte.x0; x < matte.x0 + matte.width; x++)
 			{
-				boolean inMatte = MatteTest(sourceImgMatte, x, y);
-				vars[x][y] = inMatte ? i_var++ : -1;
-				isMattePixel[x][y] = inMatte ? true : false;
+				if (matte.contains(x, y))
+					outside[src.index(x, y)] = 0;
 			}
 		}
 		
-		final int numVars = i_var;
-
-
-		/* 
-		 * Filling up the matrix A. We need to solve Ax=B in the end.
-		 *
-		 * Sparse matrix type is the way to go, because our matrix is going to have A LOT of zeroes.
-		 */
-		
-		DMatrixSparseCSC A = new DMatrixSparseCSC(numVars, numVars);
+		// The equation for every pixel of a row of the bounding box, unknowns or not
+		final float[] row = new float[matte.width];
 		
-		int i_row = 0;
-		for (int y = 0; y < h; y++)
+		for (int c : channels)
 		{
-			for (int x = 0; x < w; x++)
-			{				
-				if (isMattePixel[x][y])
+			final float[] g = src.planes[c];  // function representing the source image (fg)
+			final float[] fstar = dst.planes[c];  // function representing the target image (bg)
+			
+			int i_row = 0;
+			for (int y = matte.y0; y < matte.y0 + matte.height; y++)
+			{
+				final int k = src.index(matte.x0, y);
+				kernels.guidance(g, fstar, outside, w, k, k + matte.width, row, 0);
+				
+				for (int x = 0; x < matte.width; x++)
 				{
-					// This corresponds to the equation (7) in the original paper
-					// The value is 4 because |N_p| equals 4 (each pixel has four direct neighbours)
-					A.unsafe_set(i_row, vars[x][y], 4);
-					
-					// Neighbouring pixels also determine some values - filling the corresponding spots
-					// in the matrix, going clockwise
-					if (y > 0 && isMattePixel[x][y-1])
-						A.unsafe_set(i_row, vars[x][y-1], -1);
-					if (x < w-1 && isMattePixel[x+1][y])
-						A.unsafe_set(i_row, vars[x+1][y], -1);
-					if (y < h-1 && isMattePixel[x][y+1])
-						A.unsafe_set(i_row, vars[x][y+1], -1);
-					if (x > 0 && isMattePixel[x-1][y])
-						A.unsafe_set(i_row, vars[x-1][y], -1);
-					
-					i_row++;
+					if (outside[k + x] == 0)
+						B[c][i_row++] = row[x];
 				}
 			}
 		}
+		
+		return B;
+	}
 	
-		DMatrixRMaj[] B = new DMatrixRMaj[3];
+	/**
+	 * The blending itself, shared by all the Paste variants: solves for the pixels of the matte
+	 * and stores them into the target planes. Leaves the WRITE_BACK phase of the trace open, the
+	 * caller ends it once the planes are packed back.
+	 * 
+	 * @param src source planes over (at least) the bounding box of the matte, plus a pixel all around
+	 * @param matte
+	 * @param dst target planes under the same area
+	 * @param solverType
+	 * @param trace
+	 * @param guess initial guess per channel for the iterative engines, null to start from zero
+	 * @param preview solve only roughly (a coarse level of PasteProgressive), with previewSolver
+	 * @param channels the planes to solve for, the others are left as they are in dst
+	 * @return flags of the pixels of dst that have been changed
+	 */
+	private boolean[] blend(PlanarImage src, Matte matte, PlanarImage dst, SolverType solverType, PasteTrace trace, 
+			double[][] guess, boolean preview, final int[] channels)
+	{
+		final Cancellation cancel = trace.getMonitor();
+		
+		/*
+		 * Each pixel that belongs to the region of interpolation ("Omega" in the original paper)
+		 * is involved in the computation and, thus, results in an unknown variable, with an index
+		 * starting from 0. The matte numbers them row by row, so going through its bounding box
+		 * in the same order we just need to count.
+		 */
+		final int numVars = matte.getCount();
+		
+		trace.setProblemSize(numVars, matte.getNonZeros());
+		trace.setMatteBounds(dst.x0 - src.x0 + matte.x0, dst.y0 - src.y0 + matte.y0, matte.width, matte.height);
+		
+		if (numVars == 0)
+		{
+			// Nothing to paste
+			trace.begin(PastePhase.WRITE_BACK);
+			return new boolean[src.width * src.height];
+		}
+		
+		/*
+		 * On a rectangle the fast sine transform solves the equation in O(n log n) and with no 
+		 * factorization. Only when asked to (the caller's engine is kept otherwise), and never 
+		 * instead of a factorization that is already cached: a warm direct solve is only the 
+		 * triangular solves, which are faster.
+		 */
+		final boolean interpolating = solverType == SolverType.MEAN_VALUE_CLONING || solverType == SolverType.CONVOLUTION_PYRAMID;
+		final boolean factorized = solverType == SolverType.DIRECT_CHOLESKY && factorizationCache.contains(matte.getKey());
+		
+		if (spectralForRectangles && numVars == matte.width * matte.height && !interpolating && !factorized)
+		{
+			solverType = SolverType.SPECTRAL;
+			trace.setSolver(solverType.name());
+		}
+
+		trace.begin(PastePhase.RIGHT_HAND_SIDE);
+		
+		/*
+		 * The interpolating engines take the boundary values as they are, there is no B for them.
+		 * The quadtree is refined wherever any of the channels has detail, so it needs all of B.
+		 */
+		final double[][] B = interpolating ? null : 
+			rightHandSides(src, matte, dst, solverType == SolverType.QUADTREE ? ALL_CHANNELS : channels);
+		
+		trace.end(PastePhase.RIGHT_HAND_SIDE);
+		
+		final double[][] solution = new double[3][numVars];
 		
-		float[] g = new float[3];  // function representing the source image (fg)
-		float[] fstar = new float[3];  // function representing the target image (bg)
+		if (guess != null)
+		{
+			for (int i : channels)
+				System.arraycopy(guess[i], 0, solution[i], 0, numVars);
+		}
 		
-		for (int i = 0; i < 3; i++)
+		switch (solverType)
 		{
+		case CONJUGATE_GRADIENT:
+			/*
+			 * Matrix-free path: A is never assembled, the 5-point stencil is applied straight
+			 * from the matte, so the memory stays linear in the number of unknowns
+			 */
+			trace.begin(PastePhase.ASSEMBLY);
+			final LaplacianStencil cgStencil = matte.toStencil();
+			trace.end(PastePhase.ASSEMBLY);
+			
+			trace.begin(PastePhase.SOLVE);
+			solveChannels(channels, new ChannelSolve() {
+				public void solve(int channel) {
+					if (cgSolver.solve(cgStencil, B[channel], solution[channel], cancel) == ConjugateGradientSolver.NOT_CONVERGED)
+						trace.addUnconverged();
+				}
+			});
+			trace.end(PastePhase.SOLVE);
+			break;
+			
+		case SPECTRAL:
+			/*
+			 * Solved on the bounding box with the sine transform. Exact (a single iteration) if the
+			 * matte is a rectangle, otherwise the iterations correct for the pixels of the box
+			 * that are not in the matte.
+			 */
+			trace.begin(PastePhase.ASSEMBLY);
+			final LaplacianStencil spectralStencil = matte.toStencil();
+			trace.end(PastePhase.ASSEMBLY);
+			
+			trace.begin(PastePhase.SOLVE);
+			solveChannels(channels, new ChannelSolve() {
+				public void solve(int channel) {
+					if (spectralSolver.solve(spectralStencil, B[channel], solution[channel], cancel) == ConjugateGradientSolver.NOT_CONVERGED)
+						trace.addUnconverged();
+				}
+			});
+			trace.end(PastePhase.SOLVE);
+			break;
+			
+		case MULTIGRID:
 			/*
-			 * We've got to compute three different B vectors for each RGB channel.
-			 * Then we solve Ax=B for x three times, correspondingly.
+			 * Matrix-free as well, but O(n) overall thanks to the grid hierarchy. Like the 
+			 * factorization, the hierarchy only depends on the shape of the matte: it is built 
+			 * once for all the channels (and kept for the next paste of the same selection), 
+			 * and every channel only gets work vectors of its own.
 			 */
+			trace.begin(PastePhase.ASSEMBLY);
+			final MultigridSolver mg = preview ? previewSolver : mgSolver;
+			MatteKey mgKey = matte.getKey();
+			MultigridSolver.Hierarchy hierarchy = hierarchyCache.get(mgKey);
 			
-			B[i] = new DMatrixRMaj(numVars, 1);
+			trace.setCacheHit(hierarchy != null);
 			
-			i_row = 0;
-			for (int y = 0; y < h; y++)
+			if (hierarchy == null)
 			{
-				for (int x = 0; x < w; x++)
-				{				
-					if (isMattePixel[x][y])
-					{	
-						g[i] = getRGBArrayNormalized(sourceImg.getRGB(x, y))[i];
-						fstar[i] = getRGBArrayNormalized(result.getRGB(x+px, y+py))[i];
-						
-						// >>> TODO: add edges check to avoid crash when pasteX,pasteY are unfit
-						
-						// Computing the final gradient, summing up the corresponding gradients per each pixel's neighbour
-						// This is our right-hand side in the equation (7)
-						float grad = 
-								vpq(fstar[i], getRGBArrayNormalized(result.getRGB(x+px, y+py-1))[i], 
-										g[i], getRGBArrayNormalized(sourceImg.getRGB(x, y-1))[i]) +
-								vpq(fstar[i], getRGBArrayNormalized(result.getRGB(x+1+px, y+py))[i],
-										g[i], getRGBArrayNormalized(sourceImg.getRGB(x+1, y))[i]) +
-								vpq(fstar[i], getRGBArrayNormalized(result.getRGB(x+px, y+1+py))[i],
-										g[i], getRGBArrayNormalized(sourceImg.getRGB(x, y+1))[i]) +
-								vpq(fstar[i], getRGBArrayNormalized(result.getRGB(x-1+px, y+py))[i],
-										g[i], getRGBArrayNormalized(sourceImg.getRGB(x-1, y))[i]);
-						
-						// Finally, we add here some values that didn't end up in the matrix A, because they
-						// are not unknowns. And they are not unknowns because they reside on the boundary 
-						// of the region where known target image values begin - the boundary condition that
-						// the paper is talking about.
-						
-						if (!isMattePixel[x][y-1])
-							grad += getRGBArrayNormalized(result.getRGB(x+px, y+py-1))[i];
-						if (!isMattePixel[x+1][y])
-							grad += getRGBArrayNormalized(result.getRGB(x+px+1, y+py))[i];
-						if (!isMattePixel[x][y+1])
-							grad += getRGBArrayNormalized(result.getRGB(x+px, y+py+1))[i];
-						if (!isMattePixel[x-1][y])
-							grad += getRGBArrayNormalized(result.getRGB(x+px-1, y+py))[i];
-							
-						B[i].unsafe_set(i_row, 0, grad);
-						
-						i_row++;
-					}
+				hierarchy = mg.prepare(matte.toStencil());
+				hierarchyCache.put(mgKey, hierarchy, hierarchy.sizeInBytes());
+			}
+			
+			final MultigridSolver.Hierarchy[] hierarchies = new MultigridSolver.Hierarchy[3];
+			for (int c : channels)
+				hierarchies[c] = hierarchy.workingCopy();
+			trace.end(PastePhase.ASSEMBLY);
+			
+			trace.begin(PastePhase.SOLVE);
+			solveChannels(channels, new ChannelSolve() {
+				public void solve(int channel) {
+					if (mg.solve(hierarchies[channel], B[channel], solution[channel], cancel) == MultigridSolver.NOT_CONVERGED)
+						trace.addUnconverged();
 				}
+			});
+			trace.end(PastePhase.SOLVE);
+			break;
+			
+		case DOMAIN_DECOMPOSITION:
+			/*
+			 * Omega is cut into overlapping tiles which are solved in parallel. The tiles 
+			 * already keep all the workers busy, so the channels go one after another.
+			 */
+			trace.begin(PastePhase.ASSEMBLY);
+			SchwarzSolver.Decomposition decomposition = schwarzSolver.decompose(matte.toStencil());
+			trace.end(PastePhase.ASSEMBLY);
+			
+			trace.begin(PastePhase.SOLVE);
+			for (int i : channels)
+			{
+				if (schwarzSolver.solve(decomposition, B[i], solution[i], cancel) == SchwarzSolver.NOT_CONVERGED)
+					trace.addUnconverged();
+			}
+			trace.end(PastePhase.SOLVE);
+			break;
+			
+		case MEAN_VALUE_CLONING:
+			/*
+			 * No system at all: the difference between the target and the source along the 
+			 * contour is spread over Omega with mean-value coordinates, every pixel on its own
+			 */
+			trace.begin(PastePhase.ASSEMBLY);
+			MeanValueCloner.Contour contour = meanValueCloner.trace(src, matte, dst);
+			trace.end(PastePhase.ASSEMBLY);
+			
+			trace.begin(PastePhase.SOLVE);
+			meanValueCloner.interpolate(contour, src, matte, solution, cancel);
+			trace.end(PastePhase.SOLVE);
+			break;
+			
+		case CONVOLUTION_PYRAMID:
+			/*
+			 * No system either: the boundary differences go through a pyramid of small, fixed
+			 * kernels, in a time that only depends on the size of the bounding box
+			 */
+			trace.begin(PastePhase.SOLVE);
+			convolutionPyramid.interpolate(src, matte, dst, solution, cancel);
+			trace.end(PastePhase.SOLVE);
+			break;
+			
+		case QUADTREE:
+			/*
+			 * Only the smooth correction to the source is solved for, on a quadtree that is fine
+			 * along the boundary and coarse inside: a much smaller system, factorized directly
+			 */
+			trace.begin(PastePhase.ASSEMBLY);
+			QuadtreeSolver.Reduction reduction = quadtreeSolver.reduce(src, matte, B, cancel);
+			trace.end(PastePhase.ASSEMBLY);
+			
+			trace.begin(PastePhase.FACTORIZATION);
+			quadtreeSolver.factorize(reduction, ordering);
+			trace.end(PastePhase.FACTORIZATION);
+			
+			trace.begin(PastePhase.SOLVE);
+			quadtreeSolver.solve(reduction, solution);
+			trace.end(PastePhase.SOLVE);
+			break;
+			
+		case DIRECT_CHOLESKY:
+		default:
+			/*
+			 * A only depends on the shape of the matte, so if the same selection has been pasted
+			 * before we can skip straight to the triangular solves
+			 */
+			MatteKey key = matte.getKey();
+			LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver = factorizationCache.get(key);
+			
+			trace.setCacheHit(solver != null);
+			
+			// How much the factorization filled in, for the events of every phase from here on
+			if (solver != null)
+				trace.setFactorNonZeros(factorNonZeros(solver));
+			
+			if (solver == null)
+			{
+				trace.begin(PastePhase.ASSEMBLY);
+				DMatrixSparseCSC A = assembleMatrix(matte);
+				trace.end(PastePhase.ASSEMBLY);
+				
+				trace.begin(PastePhase.FACTORIZATION);
+				solver = createCholesky(matte, ordering, precision);
+				solver.setA(A);
+				trace.setFactorNonZeros(factorNonZeros(solver));
+				trace.end(PastePhase.FACTORIZATION);
+				
+				factorizationCache.put(key, solver, factorSizeInBytes(solver, numVars));
+			}
+			
+			trace.begin(PastePhase.SOLVE);
+			
+			// All the channels as the columns of one right-hand side, so the factor is 
+			// walked through by a single solve call
+			final int columns = channels.length;
+			DMatrixRMaj Bmat = new DMatrixRMaj(numVars, columns);
+			DMatrixRMaj Xmat = new DMatrixRMaj(numVars, columns);
+			
+			for (int row = 0; row < numVars; row++)
+			{
+				for (int j = 0; j < columns; j++)
+					Bmat.data[row * columns + j] = B[channels[j]][row];
+			}
+			
+			// The solver keeps its work arrays inside, so a cached one must not be used by 
+			// two pastes at the same time
+			synchronized (solver)
+			{
+				solver.solve(Bmat, Xmat);
+			}
+			
+			for (int row = 0; row < numVars; row++)
+			{
+				for (int j = 0; j < columns; j++)
+					solution[channels[j]][row] = Xmat.data[row * columns + j];
 			}
+			trace.end(PastePhase.SOLVE);
+			break;
 		}
 		
-		DMatrixRMaj[] solution = new DMatrixRMaj[3];
-		solution[0] = new DMatrixRMaj(numVars);
-		solution[1] = new DMatrixRMaj(numVars);
-		solution[2] = new DMatrixRMaj(numVars);
+		// Writing the solution into the target planes, the caller packs them back in one go
+		trace.begin(PastePhase.WRITE_BACK);
+		boolean[] written = new boolean[src.width * src.height];
 		
-		LinearSolver<DMatrixSparseCSC, DMatrixRMaj> solver = LinearSolverFactory_DSCC.cholesky(FillReducing.NONE);
-		solver.setA(A);
-		solver.solve(B[0], solution[0]);
-		solver.solve(B[1], solution[1]);
-		solver.solve(B[2], solution[2]);
-			
-		for (int y = 0; y < h; y++)
+		int varIndex = 0;
+		for (int y = matte.y0; y < matte.y0 + matte.height; y++)
 		{
-			for (int x = 0; x < w; x++)
+			for (int x = matte.x0; x < matte.x0 + matte.width; x++)
 			{	
-				if (isMattePixel[x][y])
+				if (matte.contains(x, y))
 				{
-					int varIndex = vars[x][y];
+					int k = src.index(x, y);
 					
-					int r_val = clip(getByte((float)solution[0].unsafe_get(varIndex, 0)));
-					int g_val = clip(getByte((float)solution[1].unsafe_get(varIndex, 0)));
-					int b_val = clip(getByte((float)solution[2].unsafe_get(varIndex, 0)));
+					for (int c : channels)
+						dst.planes[c][k] = (float)solution[c][varIndex];
+					written[k] = true;
 					
-					int rgb = getRGB(r_val, g_val, b_val);
-					result.setRGB(x + pasteX, y + pasteY, rgb);
+					varIndex++;
 				}
 			}
 		}
 		
-		return result;
+		return written;
+	}
+	
+	/**
+	 * The blending in YCbCr (ColorSpace.YCBCR): the luma is solved at full resolution, the two
+	 * chroma channels on the matte downsampled 2x, a quarter of the unknowns. What is upsampled
+	 * (bilinearly) into the pixels of the full matte is only the correction, the solution minus
+	 * the downsampled source, which is added to the source chroma at full resolution: the
+	 * correction is smooth away from the seam, the source is not. The parts of a selection too
+	 * thin to survive the downsampling get the correction of the target around them.
+	 * 
+	 * Otherwise the same as blend(), except that src needs a border of 2 pixels, so that the 
+	 * matte at half the resolution still has one all around.
+	 * 
+	 * @param src converted to YCbCr in place
+	 * @param matte
+	 * @param dst target planes under the same area, solved in YCbCr and converted back
+	 * @param solverType
+	 * @param trace
+	 * @param guess initial guess per RGB channel for the iterative engines, null to start from zero
+	 * @return flags of the pixels of dst that have been changed
+	 */
+	private boolean[] blendLumaChroma(PlanarImage src, Matte matte, PlanarImage dst, SolverType solverType, 
+			PasteTrace trace, double[][] guess)
+	{
+		trace.begin(PastePhase.CHROMA);
+		
+		src.toYCbCr();
+		dst.toYCbCr();
+		
+		// Pixel (X, Y) of the half resolution stands for the block at (2X, 2Y) from the top-left of src
+		PlanarImage srcHalf = src.downsample();
+		PlanarImage dstHalf = dst.downsample();
+		Matte matteHalf = matte.downsample(src.x0, src.y0);
+		
+		// The phases of the chroma solve are not recorded on their own, CHROMA covers them all
+		PasteTrace chromaTrace = new PasteTrace(null, solverType.name(), trace.getMonitor());
+		blend(srcHalf, matteHalf, dstHalf, solverType, chromaTrace, null, false, CHROMA);
+		
+		trace.end(PastePhase.CHROMA);
+		
+		// The guess goes through the same (linear) conversion as the planes
+		double[][] lumaGuess = null;
+		
+		if (guess != null)
+		{
+			lumaGuess = new double[3][];
+			lumaGuess[0] = new double[matte.getCount()];
+			
+			for (int i = 0; i < lumaGuess[0].length; i++)
+				lumaGuess[0][i] = 0.299 * guess[0][i] + 0.587 * guess[1][i] + 0.114 * guess[2][i];
+		}
+		
+		boolean[] written = blend(src, matte, dst, solverType, trace, lumaGuess, false, LUMA);
+		
+		// Still in the WRITE_BACK phase begun by blend(). Only the correction to the source
+		// chroma is upsampled, so the detail of the source survives.
+		for (int c : CHROMA)
+		{
+			float[] correction = dstHalf.planes[c];
+			for (int i = 0; i < correction.length; i++)
+				correction[i] -= srcHalf.planes[c][i];
+		}
+		
+		for (int y = matte.y0; y < matte.y0 + matte.height; y++)
+		{
+			for (int x = matte.x0; x < matte.x0 + matte.width; x++)
+			{
+				if (!matte.contains(x, y)) continue;
+				
+				int k = src.index(x, y);
+				
+				for (int c : CHROMA)
+					dst.planes[c][k] = src.planes[c][k] + 
+							sampleCoarse(dstHalf.planes[c], dstHalf.width, dstHalf.height, x - src.x0, y - src.y0, 2);
+			}
+		}
+		
+		dst.toRGB();
+		
+		return written;
+	}
+	
+	/**
+	 * Assembles the sparse matrix A for the direct solver (public so it can be benchmarked
+	 * on its own). The fill itself is LaplacianStencil.toMatrix, so that there is only one 
+	 * place that knows how A looks.
+	 * 
+	 * @param matte
+	 * @return
+	 */
+	public static DMatrixSparseCSC assembleMatrix(Matte matte)
+	{
+		// This corresponds to the equation (7) in the original paper: 4 on the diagonal, since
+		// |N_p| equals 4 (each pixel has four direct neighbours), -1 for every neighbour in Omega
+		return matte.toStencil().toMatrix();
+	}
+	
+	/**
+	 * A sparse Cholesky solver for A, eliminating the unknowns in the given order
+	 * 
+	 * @param matte
+	 * @param ordering
+	 * @param precision
+	 * @return
+	 */
+	private static LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> createCholesky(Matte matte, Ordering ordering, 
+			Precision precision)
+	{
+		LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> cholesky = (precision == Precision.MIXED) ? 
+				new MixedPrecisionCholesky() : LinearSolverFactory_DSCC.cholesky(FillReducing.NONE);
+		
+		if (ordering == Ordering.NATURAL)
+			return cholesky;
+		
+		// The positions of the unknowns, in the order the matte numbers them
+		int[] xs = new int[matte.getCount()];
+		int[] ys = new int[matte.getCount()];
+		
+		int var = 0;
+		for (int y = matte.y0; y < matte.y0 + matte.height; y++)
+		{
+			for (int x = matte.x0; x < matte.x0 + matte.width; x++)
+			{
+				if (!matte.contains(x, y)) continue;
+				
+				xs[var] = x;
+				ys[var] = y;
+				var++;
+			}
+		}
+		
+		return new PermutedCholesky(NestedDissection.order(xs, ys), cholesky);
+	}
+	
+	/**
+	 * Number of non-zero entries of the factor L of a Cholesky factorization, -1 if unknown
+	 * 
+	 * @param solver
+	 * @return
+	 */
+	private static long factorNonZeros(LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver)
+	{
+		DecompositionInterface<?> decomposition = solver.getDecomposition();
+		
+		if (decomposition instanceof CholeskyUpLooking_DSCC)
+			return ((CholeskyUpLooking_DSCC)decomposition).getL().nz_length;
+		if (decomposition instanceof CholeskyUpLooking_FSCC)
+			return ((CholeskyUpLooking_FSCC)decomposition).getL().nz_length;
+		
+		return -1;
+	}
+	
+	/**
+	 * Estimates the memory held by a Cholesky factorization (the factor L in CSC form)
+	 * 
+	 * @param solver
+	 * @param numVars
+	 * @return
+	 */
+	private static long factorSizeInBytes(LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver, int numVars)
+	{
+		long nonZeros = factorNonZeros(solver);
+		if (nonZeros < 0)
+			nonZeros = 5L * numVars;
+		
+		// values (double, or float in mixed precision) + row indices (int), column pointers, plus 
+		// the solver's work arrays
+		final boolean single = solver.getDecomposition() instanceof CholeskyUpLooking_FSCC;
+		long bytes = nonZeros * ((single ? 4 : 8) + 4) + (numVars + 1) * 4L + numVars * 3 * 8L;
+		
+		// A (in float) for the refinement, and the residual and the correction
+		if (single)
+			bytes += 5L * numVars * (4 + 4) + numVars * 3 * (8 + 4 + 4L);
+		
+		// The order and its inverse, and the permuted right-hand side and solution
+		if (solver instanceof PermutedCholesky)
+			bytes += numVars * 2 * 4L + numVars * 3 * 8L * 2;
+		
+		return bytes;
 	}
 	
 	/**
@@ -228,7 +1487,31 @@ public class PoissonImageEditor extends ImageUtil {
 	 */
 	public boolean MatteTest(BufferedImage matte, int x, int y)
 	{
-		return (getRed(matte.getRGB(x, y)) == 255);
+		return isMatteColor(matte.getRGB(x, y));
+	}
+	
+	/**
+	 * Same as above, for a matte that has already been read (see Matte.fromImage)
+	 * 
+	 * @param matte
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean MatteTest(Matte matte, int x, int y)
+	{
+		return matte.contains(x, y);
+	}
+	
+	/**
+	 * The colour test behind MatteTest: the pixel belongs to the matte if its red is full
+	 * 
+	 * @param rgb
+	 * @return
+	 */
+	public static boolean isMatteColor(int rgb)
+	{
+		return getRed(rgb) == 255;
 	}
 	
 	/**
@@ -246,23 +1529,6 @@ public class PoissonImageEditor extends ImageUtil {
 		int w = srcImage.getWidth();
 		int h = srcImage.getHeight();
 		
-		BufferedImage result = new BufferedImage(w, h, srcImage.getType());
-		
-		int rgb_bg = 0xFF000000;
-		int rgb_matte = 0xFFFF0000;
-		int rgb;
-		
-		for (int y = 0; y < h; y++)
-		{
-			for (int x = 0; x < w; x++)
-			{
-				boolean inMask = maskShape.contains(x, y);
-				rgb = inMask ? rgb_matte : rgb_bg;
-				
-				result.setRGB(x, y, rgb);
-			}
-		}
-		
-		return result;
+		return Matte.fromPolygon(maskShape, w, h).toImage(w, h, srcImage.getType());
 	}
 }
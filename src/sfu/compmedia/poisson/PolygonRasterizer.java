@@ -0,0 +1,172 @@
+package sfu.compmedia.poisson;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+
+/**
+ *
+ * Turns a polygon into horizontal runs of pixels, row by row, with an edge table.
+ *
+ * Testing every pixel with Polygon.contains() goes through all the vertices each time, which for
+ * a lasso path of a few thousand points adds up to billions of operations on a big image. Here
+ * the edges are sorted by the row they start on, and every row only looks at the edges crossing
+ * it (the "active" ones), so the cost is proportional to the number of pixels plus edges.
+ *
+ * The runs are exactly the pixels Polygon.contains(x, y) says yes to: a row crosses an edge if
+ * the row lies in [top, bottom) of the edge, the crossings are computed with the same arithmetic,
+ * and the pixels between every odd crossing and the next even one are in (even-odd rule).
+ *
+ */
+public final class PolygonRasterizer {
+
+	/**
+	 * Receives the runs of a rasterized polygon
+	 */
+	public interface SpanVisitor {
+		/**
+		 * Pixels x0 (inclusive) to x1 (exclusive) of row y are inside the polygon. The runs of
+		 * a row come left to right and the rows top to bottom.
+		 */
+		void span(int y, int x0, int x1);
+	}
+
+	private PolygonRasterizer()
+	{
+		//
+	}
+
+	/**
+	 * Rasterizes the polygon, clipped to an image of the given size
+	 *
+	 * @param shape
+	 * @param w
+	 * @param h
+	 * @param visitor
+	 */
+	public static void rasterize(Polygon shape, int w, int h, SpanVisitor visitor)
+	{
+		final int n = shape.npoints;
+		if (n <= 2) return;
+
+		final int[] px = shape.xpoints;
+		final int[] py = shape.ypoints;
+
+		/*
+		 * The edge table. Horizontal edges never cross a row and are left out. For the others we
+		 * keep the same numbers Polygon.contains() works with: the rows they span, their leftmost
+		 * and rightmost x, the vertex the crossing is measured from and the slope terms.
+		 */
+		int[] top = new int[n], bottom = new int[n];
+		int[] left = new int[n], right = new int[n];
+		int[] refX = new int[n], refY = new int[n];
+		int[] dx = new int[n], dy = new int[n];
+		int numEdges = 0;
+
+		int lastx = px[n - 1];
+		int lasty = py[n - 1];
+		for (int i = 0; i < n; i++)
+		{
+			int curx = px[i];
+			int cury = py[i];
+
+			if (cury != lasty)
+			{
+				int e = numEdges++;
+
+				// The crossing is measured from the upper end of the edge
+				refX[e] = cury < lasty ? curx : lastx;
+				refY[e] = cury < lasty ? cury : lasty;
+				top[e] = Math.min(cury, lasty);
+				bottom[e] = Math.max(cury, lasty);
+				left[e] = Math.min(curx, lastx);
+				right[e] = Math.max(curx, lastx);
+				dx[e] = lastx - curx;
+				dy[e] = lasty - cury;
+			}
+
+			lastx = curx;
+			lasty = cury;
+		}
+
+		if (numEdges == 0) return;
+
+		// Rows covered by the polygon, within the image
+		int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+		for (int e = 0; e < numEdges; e++)
+		{
+			minY = Math.min(minY, top[e]);
+			maxY = Math.max(maxY, bottom[e]);
+		}
+
+		final int ys = Math.max(minY, 0);
+		final int ye = Math.min(maxY, h);
+		if (ys >= ye || w <= 0) return;
+
+		/*
+		 * Bucketing the edges by the first row they cross (counting sort), so each row only
+		 * has to pick up the edges that start on it
+		 */
+		int[] bucketStart = new int[ye - ys + 1];
+		for (int e = 0; e < numEdges; e++)
+		{
+			if (bottom[e] > ys && top[e] < ye)
+				bucketStart[Math.max(top[e], ys) - ys + 1]++;
+		}
+		for (int i = 1; i < bucketStart.length; i++)
+			bucketStart[i] += bucketStart[i - 1];
+
+		int[] buckets = new int[bucketStart[bucketStart.length - 1]];
+		int[] fill = Arrays.copyOf(bucketStart, bucketStart.length);
+		for (int e = 0; e < numEdges; e++)
+		{
+			if (bottom[e] > ys && top[e] < ye)
+				buckets[fill[Math.max(top[e], ys) - ys]++] = e;
+		}
+
+		int[] active = new int[buckets.length];
+		int numActive = 0;
+		int[] crossings = new int[buckets.length];
+
+		for (int y = ys; y < ye; y++)
+		{
+			// Dropping the edges that ended above this row, adding the ones starting on it
+			int kept = 0;
+			for (int i = 0; i < numActive; i++)
+			{
+				if (bottom[active[i]] > y)
+					active[kept++] = active[i];
+			}
+			numActive = kept;
+
+			for (int i = bucketStart[y - ys]; i < bucketStart[y - ys + 1]; i++)
+				active[numActive++] = buckets[i];
+
+			/*
+			 * Where each edge crosses the row. Polygon.contains() counts the edge for a pixel x if
+			 * x < right and either x < left or x - refX < (y - refY) / dy * dx, computed in
+			 * doubles. For an integer x this is the same as x being less than the threshold below.
+			 */
+			for (int i = 0; i < numActive; i++)
+			{
+				int e = active[i];
+
+				double q = (double)(y - refY[e]) / dy[e] * dx[e];
+				long t = Math.min((long)right[e], refX[e] + (long)Math.ceil(q));
+
+				crossings[i] = (int)Math.max(left[e], t);
+			}
+
+			Arrays.sort(crossings, 0, numActive);
+
+			// Inside between every odd crossing and the next one
+			for (int i = 0; i + 1 < numActive; i += 2)
+			{
+				int x0 = Math.max(crossings[i], 0);
+				int x1 = Math.min(crossings[i + 1], w);
+
+				if (x0 < x1)
+					visitor.span(y, x0, x1);
+			}
+		}
+	}
+}
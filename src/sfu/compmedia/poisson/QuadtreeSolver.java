@@ -0,0 +1,762 @@
+package sfu.compmedia.poisson;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.interfaces.linsol.LinearSolverSparse;
+import org.ejml.sparse.FillReducing;
+import org.ejml.sparse.csc.CommonOps_DSCC;
+import org.ejml.sparse.csc.factory.LinearSolverFactory_DSCC;
+
+import sfu.compmedia.poisson.solver.Cancellation;
+import sfu.compmedia.poisson.solver.LaplacianStencil;
+import sfu.compmedia.poisson.solver.NestedDissection;
+import sfu.compmedia.poisson.solver.Ordering;
+import sfu.compmedia.poisson.solver.PermutedCholesky;
+
+/**
+ *
+ * Solves for the smooth part of the blend only, on an adaptive quadtree, as described by
+ * Agarwala ("Efficient Gradient-Domain Compositing Using Quadtrees").
+ *
+ * The solution is the source plus a correction: x = g + c, where A c = B - A g. With the plain
+ * source gradients as the guidance field, B - A g is zero everywhere but next to the boundary of
+ * Omega, and c is the smooth membrane that MeanValueCloner interpolates. Here c is restricted to
+ * functions that are bilinear over the cells of a quadtree instead: cells of a single pixel along
+ * the boundary, growing with the distance from it (see gradingRatio). The unknowns are the values
+ * at the corners of the cells (the nodes), far fewer than the pixels. With S interpolating the
+ * nodes to the pixels, the reduced system
+ *
+ *   S^T A S y = S^T (B - A g)
+ *
+ * gives the c closest to the exact one (in the energy of A), and x = g + S y.
+ *
+ * Where the mixed gradients of StencilKernels.guidance() pick the target gradient, B - A g is not
+ * zero inside Omega either, and on a textured photo it is not zero almost anywhere: c has detail
+ * all over, which no coarse cell can represent. Refining wherever that detail is, the tree ends up
+ * with about as many nodes as there are pixels. So the detail is taken care of the way multigrid
+ * does it instead, with the tree as the coarse grid: a few sweeps of symmetric Gauss-Seidel on
+ * A c = B - A g (smoothingSweeps) resolve the detail at the scale of a few pixels first, and
+ * become part of g; what is left of B - A g is smooth, which is what the cells can represent,
+ * and the same sweeps once more after the reduced solve clean up what the bilinear cells leave
+ * at the scale of a cell. Cells are kept small enough (maxCellSize) for the two to meet. Pixels
+ * where B - A g is still above detailThreshold after the first sweeps are refined just like the
+ * boundary.
+ *
+ * The result is not the exact solution of A x = B, but close to it: against the direct engine,
+ * on the sampleImages pairs with the mixed gradients, at most 5 levels off and 0.5 on average.
+ * There are 10-15 times fewer unknowns than pixels on mattes of 100k pixels or more, fewer on
+ * small ones, where the boundary is a bigger part of the matte.
+ *
+ * A corner of a small cell lying on the edge of a bigger cell is not a node: its value is
+ * interpolated along that edge, so the correction has no seams between cells of different sizes.
+ *
+ */
+public class QuadtreeSolver {
+
+	/**
+	 * A cell of size s stays whole only if no boundary (or detail) pixel lies within
+	 * gradingRatio * s pixels of it
+	 */
+	double gradingRatio = 1;
+
+	/**
+	 * Pixels where B - A g is bigger than this after the smoothing (in any channel) are kept
+	 * at full resolution
+	 */
+	double detailThreshold = 0.02;
+
+	/**
+	 * Cells are never bigger than this, in pixels (a power of two)
+	 */
+	int maxCellSize = 8;
+
+	/**
+	 * Symmetric Gauss-Seidel sweeps (a forward and a backward one each) on the pixels, before
+	 * the reduced solve and after it
+	 */
+	int smoothingSweeps = 16;
+
+	public QuadtreeSolver()
+	{
+		//
+	}
+
+	public double getGradingRatio()
+	{
+		return gradingRatio;
+	}
+
+	/**
+	 * @param gradingRatio bigger is more accurate and slower
+	 */
+	public void setGradingRatio(double gradingRatio)
+	{
+		if (!(gradingRatio >= 0))
+			throw new IllegalArgumentException("gradingRatio must not be negative");
+
+		this.gradingRatio = gradingRatio;
+	}
+
+	public double getDetailThreshold()
+	{
+		return detailThreshold;
+	}
+
+	/**
+	 * @param detailThreshold in the units of the planes (0..1); 0 refines every pixel where the
+	 *        mixed gradients differ from the source ones at all
+	 */
+	public void setDetailThreshold(double detailThreshold)
+	{
+		if (!(detailThreshold >= 0))
+			throw new IllegalArgumentException("detailThreshold must not be negative");
+
+		this.detailThreshold = detailThreshold;
+	}
+
+	public int getSmoothingSweeps()
+	{
+		return smoothingSweeps;
+	}
+
+	/**
+	 * @param smoothingSweeps more is more accurate (and allows bigger cells); 0 leaves the
+	 *        detail to the refinement alone
+	 */
+	public void setSmoothingSweeps(int smoothingSweeps)
+	{
+		if (smoothingSweeps < 0)
+			throw new IllegalArgumentException("smoothingSweeps must not be negative");
+
+		this.smoothingSweeps = smoothingSweeps;
+	}
+
+	public int getMaxCellSize()
+	{
+		return maxCellSize;
+	}
+
+	/**
+	 * @param maxCellSize a power of two; smaller is more accurate where the correction is not
+	 *        quite harmonic (e.g. with the mixed gradients), bigger needs more smoothingSweeps
+	 */
+	public void setMaxCellSize(int maxCellSize)
+	{
+		if (maxCellSize < 1 || Integer.bitCount(maxCellSize) != 1)
+			throw new IllegalArgumentException("maxCellSize must be a power of two");
+
+		this.maxCellSize = maxCellSize;
+	}
+
+	/**
+	 * The reduced system of one paste
+	 */
+	public static class Reduction {
+
+		final int numVars, numNodes;
+
+		/**
+		 * The interpolation from the nodes to the pixels, transposed: column p holds the
+		 * weights of the nodes at unknown p
+		 */
+		final DMatrixSparseCSC St;
+
+		/**
+		 * S^T A S, and its factorization once there is one
+		 */
+		final DMatrixSparseCSC R;
+		LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver;
+
+		/**
+		 * Pixel position of every node, for the fill-reducing order of the factorization
+		 */
+		final int[] nodeXs, nodeYs;
+
+		/**
+		 * The full system, for the smoothing after the reduced solve
+		 */
+		final LaplacianStencil A;
+
+		/**
+		 * Per channel: the source at every unknown plus the first smoothing (g), B - A g,
+		 * and S^T (B - A g)
+		 */
+		final double[][] source, residual, rhs;
+
+		Reduction(int numVars, QuadTree tree, DMatrixSparseCSC St, DMatrixSparseCSC R, LaplacianStencil A,
+				double[][] source, double[][] residual, double[][] rhs)
+		{
+			this.numVars = numVars;
+			this.numNodes = tree.numNodes;
+			this.nodeXs = tree.nodeXs;
+			this.nodeYs = tree.nodeYs;
+			this.St = St;
+			this.R = R;
+			this.A = A;
+			this.source = source;
+			this.residual = residual;
+			this.rhs = rhs;
+		}
+
+		/**
+		 * @return the number of unknowns of the reduced system
+		 */
+		public int getNumNodes()
+		{
+			return numNodes;
+		}
+
+		/**
+		 * @return the number of non-zero entries of S^T A S
+		 */
+		public int getNonZeros()
+		{
+			return R.nz_length;
+		}
+	}
+
+	/**
+	 * Builds the quadtree over the matte and the reduced system on it
+	 *
+	 * @param src source planes around the matte (with at least a 1 pixel border)
+	 * @param matte not empty
+	 * @param B right-hand sides of the full system, per channel
+	 * @param cancel may be null
+	 * @return
+	 * @throws CancellationException if cancelled on the way
+	 */
+	public Reduction reduce(PlanarImage src, Matte matte, double[][] B, Cancellation cancel)
+	{
+		if (matte.isEmpty())
+			throw new IllegalArgumentException("the matte is empty");
+
+		final int w = matte.width, h = matte.height;
+		final int numVars = matte.getCount();
+
+		/*
+		 * The source at the unknowns and what is left of B once the source is taken out:
+		 * B - A g, with A g = 4 g(p) minus the neighbours of p in the matte
+		 */
+		double[][] source = new double[3][numVars];
+		double[][] residual = new double[3][numVars];
+
+		int var = 0;
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				int mx = matte.x0 + x, my = matte.y0 + y;
+				if (!matte.contains(mx, my)) continue;
+
+				int k = src.index(mx, my);
+
+				for (int c = 0; c < 3; c++)
+				{
+					float[] g = src.planes[c];
+					double Ag = 4.0 * g[k];
+
+					if (matte.contains(mx, my - 1)) Ag -= g[k - src.width];
+					if (matte.contains(mx + 1, my)) Ag -= g[k + 1];
+					if (matte.contains(mx, my + 1)) Ag -= g[k + src.width];
+					if (matte.contains(mx - 1, my)) Ag -= g[k - 1];
+
+					source[c][var] = g[k];
+					residual[c][var] = B[c][var] - Ag;
+				}
+
+				var++;
+			}
+		}
+
+		/*
+		 * The detail of c first: smoothing from c = 0, then g += c and B - A g -= A c. Where
+		 * the guidance is the plain source gradient, the residual is zero inside and only the
+		 * pixels along the boundary change.
+		 */
+		LaplacianStencil A = matte.toStencil();
+
+		if (smoothingSweeps > 0)
+		{
+			double[] c0 = new double[numVars];
+			double[] Ac0 = new double[numVars];
+
+			for (int c = 0; c < 3; c++)
+			{
+				checkCancelled(cancel);
+
+				Arrays.fill(c0, 0);
+				smooth(A, residual[c], c0, smoothingSweeps);
+				A.apply(c0, Ac0);
+
+				for (int i = 0; i < numVars; i++)
+				{
+					source[c][i] += c0[i];
+					residual[c][i] -= Ac0[i];
+				}
+			}
+		}
+
+		// Pixels the tree has to resolve: outside the matte, next to its boundary or with detail
+		boolean[] fine = new boolean[w * h];
+
+		var = 0;
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				int mx = matte.x0 + x, my = matte.y0 + y;
+
+				if (!matte.contains(mx, my))
+				{
+					fine[y * w + x] = true;
+					continue;
+				}
+
+				boolean detail = false;
+				for (int c = 0; c < 3; c++)
+				{
+					if (Math.abs(residual[c][var]) > detailThreshold) detail = true;
+				}
+
+				fine[y * w + x] = matte.boundaryFlags(mx, my) != 0 || detail;
+				var++;
+			}
+		}
+
+		checkCancelled(cancel);
+
+		QuadTree tree = new QuadTree(matte, fine, gradingRatio, maxCellSize);
+
+		checkCancelled(cancel);
+
+		/*
+		 * S^T, a column per unknown. Most pixels are inside a cell and get the four corners of
+		 * it, more if a corner is itself interpolated from a bigger cell.
+		 */
+		DMatrixSparseCSC St = new DMatrixSparseCSC(tree.numNodes, numVars, 4 * numVars);
+		Weights weights = new Weights();
+
+		var = 0;
+		int nz = 0;
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				if (!matte.contains(matte.x0 + x, matte.y0 + y)) continue;
+
+				weights.clear();
+				tree.interpolate(x, y, 1.0, weights);
+				weights.sort();
+
+				if (nz + weights.size > St.nz_rows.length)
+					St.growMaxLength(Math.max(2 * St.nz_rows.length, nz + weights.size), true);
+
+				for (int i = 0; i < weights.size; i++)
+				{
+					St.nz_rows[nz] = weights.nodes[i];
+					St.nz_values[nz] = weights.values[i];
+					nz++;
+				}
+
+				St.col_idx[++var] = nz;
+			}
+		}
+
+		St.nz_length = nz;
+		St.indicesSorted = true;
+
+		checkCancelled(cancel);
+
+		// S^T A S, with A just as the direct engine assembles it
+		DMatrixSparseCSC Amat = A.toMatrix();
+		DMatrixSparseCSC S = CommonOps_DSCC.transpose(St, null, null);
+		DMatrixSparseCSC AS = CommonOps_DSCC.mult(Amat, S, null);
+
+		// Not needed anymore, and they are the biggest things around
+		Amat = null;
+		S = null;
+
+		DMatrixSparseCSC R = CommonOps_DSCC.mult(St, AS, null);
+
+		double[][] rhs = new double[3][tree.numNodes];
+		for (int p = 0; p < numVars; p++)
+		{
+			for (int i = St.col_idx[p]; i < St.col_idx[p + 1]; i++)
+			{
+				for (int c = 0; c < 3; c++)
+					rhs[c][St.nz_rows[i]] += St.nz_values[i] * residual[c][p];
+			}
+		}
+
+		return new Reduction(numVars, tree, St, R, A, source, residual, rhs);
+	}
+
+	/**
+	 * Factorizes the reduced system (Cholesky, like the direct engine), in nested dissection
+	 * order
+	 *
+	 * @param reduction
+	 */
+	public void factorize(Reduction reduction)
+	{
+		factorize(reduction, Ordering.NESTED_DISSECTION);
+	}
+
+	/**
+	 * Same as above, eliminating the nodes in the given order. The nodes are numbered row by
+	 * row, so NATURAL fills in just like the direct engine does in that order. The nested
+	 * dissection works from the positions of the nodes: a cut across the bounding box no
+	 * longer separates the two halves completely, as the bigger cells couple nodes a few pixels
+	 * apart, but it still keeps most of the fill within them.
+	 *
+	 * @param reduction
+	 * @param ordering
+	 */
+	public void factorize(Reduction reduction, Ordering ordering)
+	{
+		if (ordering == null)
+			throw new IllegalArgumentException("ordering must not be null");
+
+		LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver = (ordering == Ordering.NATURAL) ?
+				LinearSolverFactory_DSCC.cholesky(FillReducing.NONE) :
+				new PermutedCholesky(NestedDissection.order(reduction.nodeXs, reduction.nodeYs));
+		solver.setA(reduction.R);
+
+		reduction.solver = solver;
+	}
+
+	/**
+	 * Solves the reduced system for all three channels, interpolates the correction back to
+	 * the pixels and smooths it there
+	 *
+	 * @param reduction already factorized
+	 * @param solution receives x = g + S y (then smoothed), per channel
+	 */
+	public void solve(Reduction reduction, double[][] solution)
+	{
+		if (reduction.solver == null)
+			throw new IllegalStateException("the reduced system has not been factorized");
+
+		final int m = reduction.numNodes;
+
+		// All three channels as the columns of one right-hand side, as in the direct engine
+		DMatrixRMaj Bmat = new DMatrixRMaj(m, 3);
+		DMatrixRMaj Ymat = new DMatrixRMaj(m, 3);
+
+		for (int row = 0; row < m; row++)
+		{
+			for (int c = 0; c < 3; c++)
+				Bmat.data[row * 3 + c] = reduction.rhs[c][row];
+		}
+
+		reduction.solver.solve(Bmat, Ymat);
+
+		DMatrixSparseCSC St = reduction.St;
+
+		for (int p = 0; p < reduction.numVars; p++)
+		{
+			double r = reduction.source[0][p], g = reduction.source[1][p], b = reduction.source[2][p];
+
+			for (int i = St.col_idx[p]; i < St.col_idx[p + 1]; i++)
+			{
+				int row = St.nz_rows[i] * 3;
+				double weight = St.nz_values[i];
+
+				r += weight * Ymat.data[row];
+				g += weight * Ymat.data[row + 1];
+				b += weight * Ymat.data[row + 2];
+			}
+
+			solution[0][p] = r;
+			solution[1][p] = g;
+			solution[2][p] = b;
+		}
+
+		if (smoothingSweeps == 0) return;
+
+		// The same smoothing on A c = B - A g, from c = S y this time
+		final int n = reduction.numVars;
+		double[] c0 = new double[n];
+
+		for (int c = 0; c < 3; c++)
+		{
+			for (int p = 0; p < n; p++)
+				c0[p] = solution[c][p] - reduction.source[c][p];
+
+			smooth(reduction.A, reduction.residual[c], c0, smoothingSweeps);
+
+			for (int p = 0; p < n; p++)
+				solution[c][p] = reduction.source[c][p] + c0[p];
+		}
+	}
+
+	/**
+	 * Symmetric Gauss-Seidel on A x = b: every sweep goes through the unknowns forward, then
+	 * backward
+	 */
+	private static void smooth(LaplacianStencil A, double[] b, double[] x, int sweeps)
+	{
+		final int n = A.getNumVars();
+
+		for (int s = 0; s < sweeps; s++)
+		{
+			for (int i = 0; i < n; i++)
+				x[i] = relax(A, b, x, i);
+			for (int i = n - 1; i >= 0; i--)
+				x[i] = relax(A, b, x, i);
+		}
+	}
+
+	private static double relax(LaplacianStencil A, double[] b, double[] x, int i)
+	{
+		double sum = b[i];
+
+		for (int d = 0; d < 4; d++)
+		{
+			int j = A.neighbour(i, d);
+			if (j >= 0) sum += x[j];
+		}
+
+		return sum / LaplacianStencil.DIAGONAL;
+	}
+
+	private static void checkCancelled(Cancellation cancel)
+	{
+		if (cancel != null && cancel.isCancelled())
+			throw new CancellationException("Reduction cancelled");
+	}
+
+	/**
+	 * The cells of the tree, in the coordinates of the bounding box of the matte. A cell of size s
+	 * at (x, y) spans the pixels x..x+s and y..y+s (corners included), so neighbouring cells share
+	 * their edges and the pixels on them.
+	 */
+	static class QuadTree {
+
+		final int width, height;
+
+		/**
+		 * For every pixel, the biggest cell it belongs to: its top-left pixel and its size
+		 */
+		final int[] cellOrigin, cellSize;
+
+		/**
+		 * Number of the node at every pixel, -1 if the pixel is not a node
+		 */
+		final int[] node;
+		final int numNodes;
+
+		/**
+		 * Position of every node, in the coordinates of the bounding box
+		 */
+		final int[] nodeXs, nodeYs;
+
+		/**
+		 * Number of fine pixels in the rectangle from (0, 0) to (x, y), exclusive, at
+		 * (y * (width + 1) + x)
+		 */
+		private final int[] fineSums;
+
+		private final double gradingRatio;
+		private final int maxCellSize;
+
+		QuadTree(Matte matte, boolean[] fine, double gradingRatio, int maxCellSize)
+		{
+			this.width = matte.width;
+			this.height = matte.height;
+			this.gradingRatio = gradingRatio;
+			this.maxCellSize = maxCellSize;
+
+			fineSums = new int[(width + 1) * (height + 1)];
+			for (int y = 0; y < height; y++)
+			{
+				int row = 0;
+				for (int x = 0; x < width; x++)
+				{
+					if (fine[y * width + x]) row++;
+					fineSums[(y + 1) * (width + 1) + x + 1] = fineSums[y * (width + 1) + x + 1] + row;
+				}
+			}
+
+			cellOrigin = new int[width * height];
+			cellSize = new int[width * height];
+
+			// The root covers the pixels 0..size both ways
+			int size = 1;
+			while (size < Math.max(width, height) - 1)
+				size <<= 1;
+
+			split(0, 0, size);
+
+			// The nodes: corners of the biggest cell of their pixel, numbered row by row
+			node = new int[width * height];
+
+			int count = 0;
+			for (int y = 0; y < height; y++)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					int p = y * width + x;
+					int s = cellSize[p];
+					int dx = x - cellOrigin[p] % width, dy = y - cellOrigin[p] / width;
+
+					boolean corner = (dx == 0 || dx == s) && (dy == 0 || dy == s);
+					node[p] = corner && matte.contains(matte.x0 + x, matte.y0 + y) ? count++ : -1;
+				}
+			}
+
+			numNodes = count;
+
+			nodeXs = new int[count];
+			nodeYs = new int[count];
+			for (int p = 0; p < node.length; p++)
+			{
+				if (node[p] < 0) continue;
+
+				nodeXs[node[p]] = p % width;
+				nodeYs[node[p]] = p / width;
+			}
+		}
+
+		/**
+		 * Splits the cell until no fine pixel is too close to its parts
+		 */
+		private void split(int x, int y, int size)
+		{
+			// Entirely outside the bounding box
+			if (x >= width || y >= height) return;
+
+			if (size > 1)
+			{
+				int margin = (int)Math.ceil(gradingRatio * size);
+
+				if (size > maxCellSize || !isCoarse(x - margin, y - margin, x + size + margin, y + size + margin))
+				{
+					int half = size / 2;
+					split(x, y, half);
+					split(x + half, y, half);
+					split(x, y + half, half);
+					split(x + half, y + half, half);
+					return;
+				}
+			}
+
+			// A leaf: the pixels it spans remember it, unless they are in a bigger one
+			for (int py = y; py <= Math.min(y + size, height - 1); py++)
+			{
+				for (int px = x; px <= Math.min(x + size, width - 1); px++)
+				{
+					int p = py * width + px;
+					if (size > cellSize[p])
+					{
+						cellSize[p] = size;
+						cellOrigin[p] = y * width + x;
+					}
+				}
+			}
+		}
+
+		/**
+		 * True if the pixels x0..x1, y0..y1 are all inside the bounding box and none of them is fine
+		 */
+		private boolean isCoarse(int x0, int y0, int x1, int y1)
+		{
+			if (x0 < 0 || y0 < 0 || x1 >= width || y1 >= height) return false;
+
+			int stride = width + 1;
+			int sum = fineSums[(y1 + 1) * stride + x1 + 1] - fineSums[y0 * stride + x1 + 1] -
+					fineSums[(y1 + 1) * stride + x0] + fineSums[y0 * stride + x0];
+
+			return sum == 0;
+		}
+
+		/**
+		 * Adds the weights of the nodes at a pixel (of the matte) to the list: the pixel itself
+		 * if it is a node, otherwise the bilinear interpolation over the biggest cell it is in.
+		 * The corners of that cell are nodes or lie on the edge of an even bigger cell, so this
+		 * goes at most as deep as the tree.
+		 */
+		void interpolate(int x, int y, double weight, Weights out)
+		{
+			int p = y * width + x;
+
+			if (node[p] >= 0)
+			{
+				out.add(node[p], weight);
+				return;
+			}
+
+			int s = cellSize[p];
+			int ox = cellOrigin[p] % width, oy = cellOrigin[p] / width;
+			double fx = (double)(x - ox) / s, fy = (double)(y - oy) / s;
+
+			if (fx < 1 && fy < 1) interpolate(ox, oy, weight * (1 - fx) * (1 - fy), out);
+			if (fx > 0 && fy < 1) interpolate(ox + s, oy, weight * fx * (1 - fy), out);
+			if (fx < 1 && fy > 0) interpolate(ox, oy + s, weight * (1 - fx) * fy, out);
+			if (fx > 0 && fy > 0) interpolate(ox + s, oy + s, weight * fx * fy, out);
+		}
+	}
+
+	/**
+	 * The weights of the nodes at one pixel, merged and sorted by node
+	 */
+	static class Weights {
+
+		int[] nodes = new int[16];
+		double[] values = new double[16];
+		int size;
+
+		void clear()
+		{
+			size = 0;
+		}
+
+		void add(int node, double value)
+		{
+			for (int i = 0; i < size; i++)
+			{
+				if (nodes[i] == node)
+				{
+					values[i] += value;
+					return;
+				}
+			}
+
+			if (size == nodes.length)
+			{
+				nodes = Arrays.copyOf(nodes, 2 * size);
+				values = Arrays.copyOf(values, 2 * size);
+			}
+
+			nodes[size] = node;
+			values[size] = value;
+			size++;
+		}
+
+		/**
+		 * Insertion sort, there are only a handful
+		 */
+		void sort()
+		{
+			for (int i = 1; i < size; i++)
+			{
+				int n = nodes[i];
+				double v = values[i];
+				int j = i - 1;
+
+				while (j >= 0 && nodes[j] > n)
+				{
+					nodes[j + 1] = nodes[j];
+					values[j + 1] = values[j];
+					j--;
+				}
+
+				nodes[j + 1] = n;
+				values[j + 1] = v;
+			}
+		}
+	}
+}
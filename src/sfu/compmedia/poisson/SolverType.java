@@ -0,0 +1,18 @@
+package sfu.compmedia.poisson;
+
+/*
+ * Selects the engine that PoissonImageEditor uses to solve Ax=B (or, for MEAN_VALUE_CLONING and
+ * CONVOLUTION_PYRAMID, to interpolate the boundary instead, see MeanValueCloner and
+ * ConvolutionPyramid; for QUADTREE, to solve a reduced system, see QuadtreeSolver)
+ */
+
+public enum SolverType {
+	DIRECT_CHOLESKY,
+	CONJUGATE_GRADIENT,
+	MULTIGRID,
+	DOMAIN_DECOMPOSITION,
+	MEAN_VALUE_CLONING,
+	SPECTRAL,
+	QUADTREE,
+	CONVOLUTION_PYRAMID
+}
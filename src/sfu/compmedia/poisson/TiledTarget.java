@@ -0,0 +1,326 @@
+package sfu.compmedia.poisson;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * A target image that the pastes are written into in place, with an undo/redo history.
+ *
+ * Instead of a copy of the whole image per paste (and one more to reset to), the image is
+ * divided into square tiles, and a paste copies only the tiles it writes to, just before it
+ * writes to them. These copies are the history: undoing a paste swaps its tiles back into the
+ * image, which leaves the pasted ones in the history for a redo, and the other way around. An
+ * edit thus takes memory in proportion to the area pasted, not to the size of the target.
+ *
+ * The first copy of every tile is kept as well, as the original, so that reset() gets back to
+ * the image as it was loaded however many edits have been dropped from the history since. The
+ * reset is an edit of its own, and can be undone.
+ *
+ * The copies are never changed once made, so the history and the originals share them.
+ *
+ * Not thread safe: the image and the history are changed by one thread (the event thread in
+ * the GUI), and the image is only read by others while it is not being changed.
+ *
+ */
+public class TiledTarget {
+
+	public static final int DEFAULT_TILE_SIZE = 64;
+	public static final int DEFAULT_MAX_EDITS = 100;
+
+	final BufferedImage image;
+	final WritableRaster raster;
+	final int tileSize;
+	final int tilesAcross, tilesDown;
+
+	/**
+	 * The tiles as they were before anything was written to them, by tile index (row by row),
+	 * in the raster's own layout (see WritableRaster.getDataElements)
+	 */
+	private final Map<Integer, Object> originals = new LinkedHashMap<Integer, Object>();
+
+	// Most recent edit first
+	private final Deque<Edit> undos = new ArrayDeque<Edit>();
+	private final Deque<Edit> redos = new ArrayDeque<Edit>();
+
+	private int maxEdits = DEFAULT_MAX_EDITS;
+
+	/**
+	 * The tiles of one edit, with the pixels that are not in the image at the moment: from
+	 * before the edit while it is done, from after it while it is undone
+	 */
+	private static class Edit {
+		final int[] tiles;
+		final Object[] pixels;
+
+		Edit(int[] tiles)
+		{
+			this.tiles = tiles;
+			this.pixels = new Object[tiles.length];
+		}
+	}
+
+	/**
+	 * @param image changed in place from now on
+	 * @param tileSize side of a tile in pixels
+	 */
+	public TiledTarget(BufferedImage image, int tileSize)
+	{
+		if (image == null)
+			throw new IllegalArgumentException("image must not be null");
+		if (tileSize < 16)
+			throw new IllegalArgumentException("tileSize must be at least 16");
+
+		this.image = image;
+		this.raster = image.getRaster();
+		this.tileSize = tileSize;
+		this.tilesAcross = (image.getWidth() + tileSize - 1) / tileSize;
+		this.tilesDown = (image.getHeight() + tileSize - 1) / tileSize;
+	}
+
+	public TiledTarget(BufferedImage image)
+	{
+		this(image, DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * @return the image with all the edits done so far in it (the one given to the constructor)
+	 */
+	public BufferedImage getImage()
+	{
+		return image;
+	}
+
+	public int getTileSize()
+	{
+		return tileSize;
+	}
+
+	public int getMaxEdits()
+	{
+		return maxEdits;
+	}
+
+	/**
+	 * @param maxEdits how many edits can be undone; the oldest ones are forgotten beyond that
+	 *        (reset() still works)
+	 */
+	public void setMaxEdits(int maxEdits)
+	{
+		if (maxEdits < 1)
+			throw new IllegalArgumentException("maxEdits must be at least 1");
+
+		this.maxEdits = maxEdits;
+		trim();
+	}
+
+	/**
+	 * Writes a paste into the image, as a new edit (which forgets the edits undone so far)
+	 *
+	 * @param patch
+	 * @return the area of the tiles that have changed, null if the paste did not write anything
+	 */
+	public Rectangle apply(PastePatch patch)
+	{
+		// The tiles under the written pixels (pack() skips the ones outside the image)
+		PlanarImage planes = patch.planes;
+		boolean[] touched = new boolean[tilesAcross * tilesDown];
+		int count = 0;
+
+		for (int y = Math.max(planes.y0, 0); y < Math.min(planes.y0 + planes.height, image.getHeight()); y++)
+		{
+			for (int x = Math.max(planes.x0, 0); x < Math.min(planes.x0 + planes.width, image.getWidth()); x++)
+			{
+				if (!patch.written[planes.index(x, y)]) continue;
+
+				int tile = (y / tileSize) * tilesAcross + x / tileSize;
+				if (!touched[tile])
+				{
+					touched[tile] = true;
+					count++;
+				}
+			}
+		}
+
+		if (count == 0) return null;
+
+		int[] tiles = new int[count];
+		for (int tile = 0, i = 0; tile < touched.length; tile++)
+		{
+			if (touched[tile]) tiles[i++] = tile;
+		}
+
+		// Copy on write: the tiles as they are, right before the paste goes into them
+		Edit edit = new Edit(tiles);
+		for (int i = 0; i < tiles.length; i++)
+		{
+			edit.pixels[i] = read(tiles[i]);
+
+			if (!originals.containsKey(tiles[i]))
+				originals.put(tiles[i], edit.pixels[i]);
+		}
+
+		ImageUtil.pack(planes, image, patch.written);
+		push(edit);
+
+		return bounds(tiles);
+	}
+
+	/**
+	 * Takes back the last edit
+	 *
+	 * @return the area that has changed, null if there was nothing to undo
+	 */
+	public Rectangle undo()
+	{
+		Edit edit = undos.pollFirst();
+		if (edit == null) return null;
+
+		swap(edit);
+		redos.addFirst(edit);
+
+		return bounds(edit.tiles);
+	}
+
+	/**
+	 * Does the last undone edit again
+	 *
+	 * @return the area that has changed, null if there was nothing to redo
+	 */
+	public Rectangle redo()
+	{
+		Edit edit = redos.pollFirst();
+		if (edit == null) return null;
+
+		swap(edit);
+		undos.addFirst(edit);
+
+		return bounds(edit.tiles);
+	}
+
+	public boolean canUndo()
+	{
+		return !undos.isEmpty();
+	}
+
+	public boolean canRedo()
+	{
+		return !redos.isEmpty();
+	}
+
+	/**
+	 * Puts all the tiles that have ever been written to back the way they were, as a new edit
+	 *
+	 * @return the area that has changed, null if nothing has been written yet
+	 */
+	public Rectangle reset()
+	{
+		if (originals.isEmpty()) return null;
+
+		int[] tiles = new int[originals.size()];
+		Edit edit = new Edit(tiles);
+
+		int i = 0;
+		for (Map.Entry<Integer, Object> e : originals.entrySet())
+		{
+			tiles[i] = e.getKey();
+			edit.pixels[i] = e.getValue();
+			i++;
+		}
+
+		swap(edit);
+		push(edit);
+
+		return bounds(tiles);
+	}
+
+	/**
+	 * Memory taken by the copies of the tiles (the history and the originals)
+	 *
+	 * @return
+	 */
+	public long getBytesUsed()
+	{
+		Set<Object> copies = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		copies.addAll(originals.values());
+
+		for (Edit edit : undos)
+			Collections.addAll(copies, edit.pixels);
+		for (Edit edit : redos)
+			Collections.addAll(copies, edit.pixels);
+
+		long bytes = 0;
+		for (Object pixels : copies)
+			bytes += (long)Array.getLength(pixels) * DataBuffer.getDataTypeSize(raster.getTransferType()) / 8;
+
+		return bytes;
+	}
+
+	private void push(Edit edit)
+	{
+		undos.addFirst(edit);
+		redos.clear();
+		trim();
+	}
+
+	private void trim()
+	{
+		while (undos.size() > maxEdits)
+			undos.pollLast();
+	}
+
+	/**
+	 * Exchanges the pixels of the edit with the ones in the image
+	 */
+	private void swap(Edit edit)
+	{
+		for (int i = 0; i < edit.tiles.length; i++)
+		{
+			Object current = read(edit.tiles[i]);
+			write(edit.tiles[i], edit.pixels[i]);
+			edit.pixels[i] = current;
+		}
+	}
+
+	private Object read(int tile)
+	{
+		Rectangle r = bounds(tile);
+		return raster.getDataElements(r.x, r.y, r.width, r.height, null);
+	}
+
+	private void write(int tile, Object pixels)
+	{
+		Rectangle r = bounds(tile);
+		raster.setDataElements(r.x, r.y, r.width, r.height, pixels);
+	}
+
+	/**
+	 * The tiles on the right and bottom edges are cut to the image
+	 */
+	private Rectangle bounds(int tile)
+	{
+		int x = (tile % tilesAcross) * tileSize;
+		int y = (tile / tilesAcross) * tileSize;
+
+		return new Rectangle(x, y, Math.min(tileSize, image.getWidth() - x), Math.min(tileSize, image.getHeight() - y));
+	}
+
+	private Rectangle bounds(int[] tiles)
+	{
+		Rectangle area = bounds(tiles[0]);
+		for (int i = 1; i < tiles.length; i++)
+			area.add(bounds(tiles[i]));
+
+		return area;
+	}
+}
@@ -0,0 +1,125 @@
+package sfu.compmedia.poisson.batch;
+
+import java.io.File;
+
+/**
+ *
+ * One line of a batch manifest: paste the source (cut out by the matte) into the target at
+ * (x, y) and save the composite. Once the job has gone through the BatchRunner it also
+ * holds the time spent in every stage, or the reason it failed.
+ *
+ */
+public class BatchJob {
+
+	final int id;
+	final File source, matte, target, output;
+	final int x, y;
+
+	// Filled in by the runner
+	long submitted, finished;
+	long decodeNanos, solveNanos, encodeNanos;
+	String error;
+
+	/**
+	 * @param id number of the job, used for reporting
+	 * @param source
+	 * @param matte white (255 in the red channel) where the source should be pasted
+	 * @param target
+	 * @param x paste position of the top-left corner of the source in the target
+	 * @param y
+	 * @param output where the composite goes, the format is taken from the extension
+	 */
+	public BatchJob(int id, File source, File matte, File target, int x, int y, File output)
+	{
+		this.id = id;
+		this.source = source;
+		this.matte = matte;
+		this.target = target;
+		this.x = x;
+		this.y = y;
+		this.output = output;
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public File getSource()
+	{
+		return source;
+	}
+
+	public File getMatte()
+	{
+		return matte;
+	}
+
+	public File getTarget()
+	{
+		return target;
+	}
+
+	public File getOutput()
+	{
+		return output;
+	}
+
+	public int getX()
+	{
+		return x;
+	}
+
+	public int getY()
+	{
+		return y;
+	}
+
+	public boolean isFailed()
+	{
+		return error != null;
+	}
+
+	/**
+	 * @return what went wrong, or null if the job succeeded
+	 */
+	public String getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Time from entering the pipeline to the composite being saved (waiting in the queues included)
+	 *
+	 * @return
+	 */
+	public long getLatencyNanos()
+	{
+		return finished - submitted;
+	}
+
+	public long getDecodeNanos()
+	{
+		return decodeNanos;
+	}
+
+	public long getSolveNanos()
+	{
+		return solveNanos;
+	}
+
+	public long getEncodeNanos()
+	{
+		return encodeNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (isFailed())
+			return String.format("job %d FAILED after %.1f ms: %s", id, getLatencyNanos() / 1e6, error);
+
+		return String.format("job %d ok  latency %.1f ms (decode %.1f, solve %.1f, encode %.1f) -> %s", id,
+				getLatencyNanos() / 1e6, decodeNanos / 1e6, solveNanos / 1e6, encodeNanos / 1e6, output);
+	}
+}
@@ -0,0 +1,97 @@
+package sfu.compmedia.poisson.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Reads the list of jobs for the batch mode. One job per line:
+ *
+ *     source matte target x y [output]
+ *
+ * The fields are separated by spaces, tabs or commas. Empty lines and lines starting with #
+ * are skipped. Relative paths are relative to the folder of the manifest. Without an output,
+ * the composite is saved as "<job number>_<target name>.png" into the output folder.
+ *
+ */
+public class BatchManifest {
+
+	private BatchManifest()
+	{
+		//
+	}
+
+	/**
+	 * @param manifest
+	 * @param outputDir where the composites without an explicit output go
+	 * @return
+	 * @throws IOException if the file can't be read or a line is malformed
+	 */
+	public static List<BatchJob> read(File manifest, File outputDir) throws IOException
+	{
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		File base = manifest.getAbsoluteFile().getParentFile();
+
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+
+		try
+		{
+			String line;
+			int lineNumber = 0;
+
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+
+				if (line.isEmpty() || line.startsWith("#")) continue;
+
+				String[] fields = line.split("[\\s,]+");
+				if (fields.length != 5 && fields.length != 6)
+					throw new IOException(String.format("%s:%d: expected 'source matte target x y [output]'", manifest, lineNumber));
+
+				int x, y;
+				try
+				{
+					x = Integer.parseInt(fields[3]);
+					y = Integer.parseInt(fields[4]);
+				}
+				catch (NumberFormatException e)
+				{
+					throw new IOException(String.format("%s:%d: bad paste coordinates", manifest, lineNumber));
+				}
+
+				int id = jobs.size() + 1;
+				File target = resolve(base, fields[2]);
+				File output = fields.length == 6 ? resolve(base, fields[5]) :
+						new File(outputDir, id + "_" + baseName(target) + ".png");
+
+				jobs.add(new BatchJob(id, resolve(base, fields[0]), resolve(base, fields[1]), target, x, y, output));
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return jobs;
+	}
+
+	private static File resolve(File base, String path)
+	{
+		File f = new File(path);
+		return f.isAbsolute() ? f : new File(base, path);
+	}
+
+	private static String baseName(File f)
+	{
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+}
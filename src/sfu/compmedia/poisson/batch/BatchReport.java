@@ -0,0 +1,113 @@
+package sfu.compmedia.poisson.batch;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * Summary of a batch run: how many jobs went through, the overall throughput and the
+ * distribution of the per-job latencies.
+ *
+ */
+public class BatchReport {
+
+	final List<BatchJob> jobs;
+	final long wallNanos;
+	final int failed;
+
+	// Sorted latencies of the successful jobs
+	final long[] latencies;
+
+	BatchReport(List<BatchJob> jobs, long wallNanos)
+	{
+		this.jobs = jobs;
+		this.wallNanos = wallNanos;
+
+		int f = 0;
+		for (BatchJob job : jobs)
+			if (job.isFailed()) f++;
+		this.failed = f;
+
+		latencies = new long[jobs.size() - failed];
+		int i = 0;
+		for (BatchJob job : jobs)
+			if (!job.isFailed()) latencies[i++] = job.getLatencyNanos();
+		Arrays.sort(latencies);
+	}
+
+	public List<BatchJob> getJobs()
+	{
+		return jobs;
+	}
+
+	public int getFailed()
+	{
+		return failed;
+	}
+
+	public long getWallNanos()
+	{
+		return wallNanos;
+	}
+
+	/**
+	 * @return finished jobs (failed ones included) per second of wall time
+	 */
+	public double getThroughput()
+	{
+		return wallNanos == 0 ? 0 : jobs.size() / (wallNanos / 1e9);
+	}
+
+	/**
+	 * Latency of the successful jobs at the given percentile (nearest rank), 0 if there are none
+	 *
+	 * @param percentile between 0 and 100
+	 * @return
+	 */
+	public long getLatencyPercentile(double percentile)
+	{
+		if (latencies.length == 0) return 0;
+
+		int rank = (int)Math.ceil(percentile / 100 * latencies.length);
+		return latencies[Math.min(latencies.length - 1, Math.max(0, rank - 1))];
+	}
+
+	/**
+	 * Average time spent in each stage by the successful jobs, in nanoseconds: decode, solve, encode
+	 *
+	 * @return
+	 */
+	public long[] getMeanStageNanos()
+	{
+		long[] sum = new long[3];
+		if (latencies.length == 0) return sum;
+
+		for (BatchJob job : jobs)
+		{
+			if (job.isFailed()) continue;
+
+			sum[0] += job.decodeNanos;
+			sum[1] += job.solveNanos;
+			sum[2] += job.encodeNanos;
+		}
+
+		for (int i = 0; i < 3; i++)
+			sum[i] /= latencies.length;
+
+		return sum;
+	}
+
+	@Override
+	public String toString()
+	{
+		long[] stages = getMeanStageNanos();
+
+		return String.format("%d jobs (%d failed) in %.2f s, %.2f jobs/s%n" +
+				"latency ms: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n" +
+				"mean stage ms: decode %.1f  solve %.1f  encode %.1f",
+				jobs.size(), failed, wallNanos / 1e9, getThroughput(),
+				getLatencyPercentile(50) / 1e6, getLatencyPercentile(90) / 1e6,
+				getLatencyPercentile(99) / 1e6, getLatencyPercentile(100) / 1e6,
+				stages[0] / 1e6, stages[1] / 1e6, stages[2] / 1e6);
+	}
+}
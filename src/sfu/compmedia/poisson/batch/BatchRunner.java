@@ -0,0 +1,381 @@
+package sfu.compmedia.poisson.batch;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+
+import sfu.compmedia.poisson.PoissonImageEditor;
+import sfu.compmedia.poisson.SolverType;
+
+/**
+ *
+ * Headless batch compositing: runs a list of jobs through PoissonImageEditor without the GUI.
+ *
+ * Every job goes through three stages - decode (reading the images), solve (Paste) and encode
+ * (writing the composite) - and every stage has a thread pool of its own, so that while one job
+ * is being solved the next ones are already being read and the previous ones written. The number
+ * of jobs in the pipeline at the same time is limited, which keeps the memory use bounded no
+ * matter how long the manifest is.
+ *
+ * Usage: BatchRunner manifest [-o outputDir] [-solver TYPE] [-decoders n] [-solvers n]
+ *        [-encoders n] [-inflight n] [-quiet]
+ *
+ */
+public class BatchRunner {
+
+	int decoders = 2;
+	int solvers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	int encoders = 2;
+
+	/**
+	 * Maximum number of jobs between the start of decoding and the end of encoding
+	 */
+	int inFlight = 8;
+
+	SolverType solverType = SolverType.DIRECT_CHOLESKY;
+	final PoissonImageEditor pie;
+
+	/**
+	 * The images of a job while it travels down the pipeline
+	 */
+	private static class Work {
+		final BatchJob job;
+		BufferedImage source, matte, target, composite;
+
+		Work(BatchJob job)
+		{
+			this.job = job;
+		}
+	}
+
+	public BatchRunner()
+	{
+		this(new PoissonImageEditor());
+	}
+
+	/**
+	 * @param pie the editor shared by all the solver threads (and its factorization cache with it)
+	 */
+	public BatchRunner(PoissonImageEditor pie)
+	{
+		this.pie = pie;
+	}
+
+	/**
+	 * @param decoders threads reading images
+	 * @param solvers threads running Paste
+	 * @param encoders threads writing images
+	 */
+	public void setThreads(int decoders, int solvers, int encoders)
+	{
+		if (decoders < 1 || solvers < 1 || encoders < 1)
+			throw new IllegalArgumentException("every stage needs at least one thread");
+
+		this.decoders = decoders;
+		this.solvers = solvers;
+		this.encoders = encoders;
+	}
+
+	public int getInFlight()
+	{
+		return inFlight;
+	}
+
+	public void setInFlight(int inFlight)
+	{
+		if (inFlight < 1)
+			throw new IllegalArgumentException("inFlight must be at least 1");
+
+		this.inFlight = inFlight;
+	}
+
+	public SolverType getSolverType()
+	{
+		return solverType;
+	}
+
+	public void setSolverType(SolverType solverType)
+	{
+		this.solverType = solverType;
+	}
+
+	public PoissonImageEditor getEditor()
+	{
+		return pie;
+	}
+
+	/**
+	 * Runs all the jobs and waits for them to finish. A failing job is reported and does not
+	 * stop the others.
+	 *
+	 * @param jobs
+	 * @param log every finished job is printed here, may be null
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public BatchReport run(List<BatchJob> jobs, final PrintStream log) throws InterruptedException
+	{
+		final ExecutorService decodePool = Executors.newFixedThreadPool(decoders);
+		final ExecutorService solvePool = Executors.newFixedThreadPool(solvers);
+		final ExecutorService encodePool = Executors.newFixedThreadPool(encoders);
+
+		final Semaphore slots = new Semaphore(inFlight);
+		final CountDownLatch done = new CountDownLatch(jobs.size());
+
+		long start = System.nanoTime();
+
+		try
+		{
+			for (BatchJob job : jobs)
+			{
+				// Blocks while the pipeline is full
+				slots.acquire();
+
+				final Work work = new Work(job);
+				job.submitted = System.nanoTime();
+
+				decodePool.execute(new Runnable() {
+					public void run() {
+						if (!decode(work))
+						{
+							finish(work, slots, done, log);
+							return;
+						}
+
+						solvePool.execute(new Runnable() {
+							public void run() {
+								if (!solve(work))
+								{
+									finish(work, slots, done, log);
+									return;
+								}
+
+								encodePool.execute(new Runnable() {
+									public void run() {
+										encode(work);
+										finish(work, slots, done, log);
+									}
+								});
+							}
+						});
+					}
+				});
+			}
+
+			done.await();
+		}
+		finally
+		{
+			decodePool.shutdownNow();
+			solvePool.shutdownNow();
+			encodePool.shutdownNow();
+		}
+
+		return new BatchReport(jobs, System.nanoTime() - start);
+	}
+
+	private boolean decode(Work work)
+	{
+		BatchJob job = work.job;
+		long t = System.nanoTime();
+
+		try
+		{
+			work.source = read(job.source);
+			work.matte = read(job.matte);
+			work.target = read(job.target);
+
+			if (work.matte.getWidth() != work.source.getWidth() || work.matte.getHeight() != work.source.getHeight())
+				throw new IOException("the matte is not the same size as the source");
+
+			work.matte = constrainMatte(work.matte, work.target, job.x, job.y);
+		}
+		catch (Exception e)
+		{
+			job.error = "decode: " + e.getMessage();
+		}
+
+		job.decodeNanos = System.nanoTime() - t;
+		return job.error == null;
+	}
+
+	private boolean solve(Work work)
+	{
+		BatchJob job = work.job;
+		long t = System.nanoTime();
+
+		try
+		{
+			work.composite = pie.Paste(work.source, work.matte, work.target, job.x, job.y, solverType);
+		}
+		catch (Exception e)
+		{
+			job.error = "solve: " + e;
+		}
+
+		// The inputs are not needed anymore
+		work.source = work.matte = work.target = null;
+
+		job.solveNanos = System.nanoTime() - t;
+		return job.error == null;
+	}
+
+	private void encode(Work work)
+	{
+		BatchJob job = work.job;
+		long t = System.nanoTime();
+
+		try
+		{
+			File parent = job.output.getAbsoluteFile().getParentFile();
+			if (parent != null) parent.mkdirs();
+
+			String name = job.output.getName();
+			String format = name.lastIndexOf('.') > 0 ? name.substring(name.lastIndexOf('.') + 1) : "png";
+
+			if (!ImageIO.write(work.composite, format, job.output))
+				throw new IOException("no writer for the '" + format + "' format");
+		}
+		catch (Exception e)
+		{
+			job.error = "encode: " + e.getMessage();
+		}
+
+		work.composite = null;
+		job.encodeNanos = System.nanoTime() - t;
+	}
+
+	private static void finish(Work work, Semaphore slots, CountDownLatch done, PrintStream log)
+	{
+		work.job.finished = System.nanoTime();
+
+		if (log != null)
+		{
+			synchronized (log)
+			{
+				log.println(work.job);
+			}
+		}
+
+		slots.release();
+		done.countDown();
+	}
+
+	private static BufferedImage read(File f) throws IOException
+	{
+		if (!f.isFile())
+			throw new IOException("no such file: " + f);
+
+		BufferedImage img = ImageIO.read(f);
+		if (img == null)
+			throw new IOException("unsupported image format: " + f);
+
+		return img;
+	}
+
+	/**
+	 * Removes the parts of the matte that Paste can't handle: pixels on the edge of the source
+	 * and pixels that would land on or outside the edge of the target. This is what the GUI does
+	 * to the lasso selection before pasting it.
+	 *
+	 * @param matte
+	 * @param target
+	 * @param pasteX
+	 * @param pasteY
+	 * @return
+	 */
+	static BufferedImage constrainMatte(BufferedImage matte, BufferedImage target, int pasteX, int pasteY)
+	{
+		final int w = matte.getWidth();
+		final int h = matte.getHeight();
+
+		BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[w];
+
+		for (int y = 0; y < h; y++)
+		{
+			matte.getRGB(0, y, w, 1, row, 0, w);
+
+			int ty = pasteY + y;
+			boolean rowInside = y > 0 && y < h - 1 && ty > 0 && ty < target.getHeight() - 1;
+
+			for (int x = 0; x < w; x++)
+			{
+				int tx = pasteX + x;
+				boolean inside = rowInside && x > 0 && x < w - 1 && tx > 0 && tx < target.getWidth() - 1;
+
+				if (!inside) row[x] = 0xFF000000;
+			}
+
+			result.setRGB(0, y, w, 1, row, 0, w);
+		}
+
+		return result;
+	}
+
+	public static void main(String[] args)
+	{
+		File manifest = null;
+		File outputDir = new File("batch-output");
+		boolean quiet = false;
+
+		BatchRunner runner = new BatchRunner();
+		int decoders = runner.decoders, solvers = runner.solvers, encoders = runner.encoders;
+
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				String arg = args[i];
+
+				if (arg.equals("-o")) outputDir = new File(args[++i]);
+				else if (arg.equals("-solver")) runner.setSolverType(SolverType.valueOf(args[++i]));
+				else if (arg.equals("-decoders")) decoders = Integer.parseInt(args[++i]);
+				else if (arg.equals("-solvers")) solvers = Integer.parseInt(args[++i]);
+				else if (arg.equals("-encoders")) encoders = Integer.parseInt(args[++i]);
+				else if (arg.equals("-inflight")) runner.setInFlight(Integer.parseInt(args[++i]));
+				else if (arg.equals("-quiet")) quiet = true;
+				else if (manifest == null && !arg.startsWith("-")) manifest = new File(arg);
+				else throw new IllegalArgumentException("unknown option " + arg);
+			}
+
+			if (manifest == null)
+				throw new IllegalArgumentException("no manifest given");
+
+			runner.setThreads(decoders, solvers, encoders);
+		}
+		catch (RuntimeException e)
+		{
+			System.err.println(e.getMessage());
+			System.err.println("Usage: BatchRunner manifest [-o outputDir] [-solver TYPE] [-decoders n] [-solvers n] "
+					+ "[-encoders n] [-inflight n] [-quiet]");
+			System.exit(2);
+		}
+
+		try
+		{
+			List<BatchJob> jobs = BatchManifest.read(manifest, outputDir);
+			BatchReport report = runner.run(jobs, quiet ? null : System.out);
+
+			System.out.println(report);
+			System.exit(report.getFailed() == 0 ? 0 : 1);
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("Unable to read the manifest (%s)", e.getMessage()));
+			System.exit(2);
+		}
+		catch (InterruptedException e)
+		{
+			System.exit(130);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package sfu.compmedia.poisson.gui;
+
+import java.awt.EventQueue;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+import sfu.compmedia.poisson.LivePaste;
+import sfu.compmedia.poisson.Matte;
+import sfu.compmedia.poisson.PoissonImageEditor;
+import sfu.compmedia.poisson.solver.Cancellation;
+
+/**
+ *
+ * The live preview of the selection being carried over the target: the selection is blended
+ * (roughly) wherever the mouse is, before it is even dropped.
+ *
+ * The mouse moves far more often than a blend can be solved, so the positions are not queued
+ * up. Every move just replaces the position waiting to be blended, and the frames are spaced
+ * at least FRAME_INTERVAL apart, so whatever the mouse did in the meantime comes down to a
+ * single blend at its latest position. The blends run on the paste thread, one after another,
+ * each starting from the solution of the previous one (see LivePaste).
+ *
+ * Like PasteJob, the frames are handed back to Main on the event thread.
+ *
+ */
+class DragPreview implements Runnable, Cancellation {
+
+	/**
+	 * Shortest time between two frames, in ms (about 30 frames per second)
+	 */
+	static final long FRAME_INTERVAL = 33;
+
+	final Main owner;
+	final BufferedImage sourceImg, targetImg;
+	final LivePaste session;
+	final Executor executor;
+
+	volatile boolean cancelled;
+
+	// The position waiting to be blended, guarded by this
+	private Polygon pendingSelection;
+	private int pendingX, pendingY;
+	private boolean scheduled;
+
+	/**
+	 * When the last frame started (paste thread only)
+	 */
+	private long lastFrame;
+
+	/**
+	 * Copy of the target the frames are drawn into, and the area the last frame covers
+	 * (event thread only)
+	 */
+	BufferedImage previewImg;
+	Rectangle previewArea;
+
+	/**
+	 * @param owner
+	 * @param pie
+	 * @param sourceImg
+	 * @param targetImg
+	 * @param executor runs the blends
+	 */
+	DragPreview(Main owner, PoissonImageEditor pie, BufferedImage sourceImg, BufferedImage targetImg,
+			Executor executor)
+	{
+		this.owner = owner;
+		this.sourceImg = sourceImg;
+		this.targetImg = targetImg;
+		this.session = new LivePaste(pie, sourceImg, targetImg);
+		this.executor = executor;
+	}
+
+	/**
+	 * Asks for a blend at a new position, replacing the one waiting (if any)
+	 *
+	 * @param selection already constrained to the target, not changed afterwards
+	 * @param pasteX
+	 * @param pasteY
+	 */
+	void moveTo(Polygon selection, int pasteX, int pasteY)
+	{
+		synchronized (this)
+		{
+			pendingSelection = selection;
+			pendingX = pasteX;
+			pendingY = pasteY;
+
+			if (scheduled) return;
+			scheduled = true;
+		}
+
+		executor.execute(this);
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	@Override
+	public void run()
+	{
+		while (!cancelled)
+		{
+			// Letting the mouse moves pile up until the next frame is due
+			long wait = lastFrame + FRAME_INTERVAL - System.currentTimeMillis();
+			if (wait > 0)
+			{
+				try
+				{
+					Thread.sleep(wait);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+
+			Polygon selection;
+			int pasteX, pasteY;
+
+			synchronized (this)
+			{
+				if (pendingSelection == null || cancelled)
+				{
+					scheduled = false;
+					return;
+				}
+
+				selection = pendingSelection;
+				pasteX = pendingX;
+				pasteY = pendingY;
+				pendingSelection = null;
+			}
+
+			lastFrame = System.currentTimeMillis();
+
+			try
+			{
+				Matte matte = Matte.fromPolygon(selection, sourceImg.getWidth(), sourceImg.getHeight());
+				if (matte.isEmpty()) continue;
+
+				final BufferedImage patch = session.blendAt(matte, pasteX, pasteY, this);
+				final int x = pasteX + matte.x0, y = pasteY + matte.y0;
+
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						owner.dragPreviewFrame(DragPreview.this, patch, x, y);
+					}
+				});
+			}
+			catch (CancellationException e)
+			{
+				// The preview has been ended, nothing to show anymore
+			}
+			catch (RuntimeException e)
+			{
+				// Only a preview: the drop will report the error, if it happens again
+				System.err.print("Preview failed: ");
+				e.printStackTrace(System.err);
+			}
+		}
+
+		synchronized (this)
+		{
+			scheduled = false;
+		}
+	}
+}
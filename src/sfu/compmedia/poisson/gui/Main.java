@@ -7,15 +7,24 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
 import javax.swing.JFileChooser;
 
 import sfu.compmedia.poisson.ImageUtil;
+import sfu.compmedia.poisson.PastePatch;
 import sfu.compmedia.poisson.PoissonImageEditor;
+import sfu.compmedia.poisson.TiledTarget;
+import sfu.compmedia.poisson.batch.BatchRunner;
 import sfu.compmedia.poisson.gui.lassotool.LassoMouseListener;
 import sfu.compmedia.poisson.gui.lassotool.LassoToolActionListener;
 import sfu.compmedia.poisson.gui.lassotool.Lasso;
+import sfu.compmedia.poisson.gui.lassotool.LassoHint;
 
 public class Main extends Frame implements LassoToolActionListener {
 	
@@ -30,7 +39,13 @@ public class Main extends Frame implements LassoToolActionListener {
 	
 	BufferedImage sourceImg;
 	BufferedImage sourceImgMatte;
-	BufferedImage targetImg, targetImgUndo;
+	BufferedImage targetImg;
+	
+	/**
+	 * The pastes go into targetImg in place, through this, which keeps the tiles they have 
+	 * overwritten for undo, redo and reset (event thread only)
+	 */
+	TiledTarget target;
 
 	ImageContainer imgContainerA, imgContainerB;
 	
@@ -46,6 +61,24 @@ public class Main extends Frame implements LassoToolActionListener {
 	
 	PoissonImageEditor pie;
 	
+	/**
+	 * Pastes are solved here, one after another, instead of on the event thread
+	 */
+	ExecutorService pasteExecutor;
+	
+	/**
+	 * The paste whose result is still wanted (null if none). A newer drop, a right-click, Esc or 
+	 * a change of the target image all take it out of here, and a job can only put its composite
+	 * into the target if it is still the one in here.
+	 */
+	final AtomicReference<PasteJob> currentPaste = new AtomicReference<PasteJob>();
+	
+	/**
+	 * The live preview of the selection carried over the target, null if there is none 
+	 * (event thread only)
+	 */
+	DragPreview dragPreview;
+	
 	boolean initialized;
 
 	public Main()
@@ -91,6 +124,13 @@ public class Main extends Frame implements LassoToolActionListener {
 	// entry point
 	public static void main(String[] args)
 	{	
+		// "--batch manifest ..." runs the jobs of the manifest without opening the window
+		if (args.length > 0 && args[0].equals("--batch"))
+		{
+			BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
 	    Main gui = new Main();  //instantiate self
 	    gui.repaint();
 	}
@@ -98,15 +138,83 @@ public class Main extends Frame implements LassoToolActionListener {
 	
 	@Override
 	public void pasteSelection(int x, int y, Polygon selection, BufferedImage selectionImg) {
-			
+		
+		endPreview();
+		
+		Point pastePos = pastePosition(x, y, selection);
+		
+		// The central part, in the background
+		PasteJob job = new PasteJob(this, pie, sourceImg, targetImg, 
+				constrainSelection(selection, pastePos.x, pastePos.y), pastePos.x, pastePos.y);
+		
+		// A paste still running is about to be outdated by this one
+		PasteJob stale = currentPaste.getAndSet(job);
+		if (stale != null)
+		{
+			stale.cancel();
+			discardPreview(stale);
+		}
+		
+		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		pasteExecutor.execute(job);
+	}
+	
+	@Override
+	public void previewSelection(int x, int y, Polygon selection, BufferedImage selectionImg) {
+		
+		// The previews of a paste in progress have the target to themselves
+		if (targetImg == null || currentPaste.get() != null) return;
+		
+		// A new session once the images change, the old one's solutions are of no use then
+		if (dragPreview != null && (dragPreview.sourceImg != sourceImg || dragPreview.targetImg != targetImg))
+			endPreview();
+		
+		if (dragPreview == null)
+			dragPreview = new DragPreview(this, pie, sourceImg, targetImg, pasteExecutor);
+		
+		Point pastePos = pastePosition(x, y, selection);
+		dragPreview.moveTo(constrainSelection(selection, pastePos.x, pastePos.y), pastePos.x, pastePos.y);
+	}
+	
+	@Override
+	public void endPreview() {
+		
+		DragPreview preview = dragPreview;
+		if (preview == null) return;
+		
+		dragPreview = null;
+		preview.cancel();
+		
+		if (preview.previewImg != null)
+		{
+			imgContainerB.changeImage(targetImg);
+			repaintTarget(preview.previewArea);
+		}
+	}
+	
+	/**
+	 * Where the top-left corner of the source goes for the selection to be centred at (x, y)
+	 */
+	private Point pastePosition(int x, int y, Polygon selection)
+	{
 		// Compensating for the difference between position of the selection mask and 
 		// the position of the origin of the image (top-left)
 		Rectangle maskBounds = selection.getBounds();
 		int pasteX = (int)(x - maskBounds.x - maskBounds.getWidth() / 2) - lasso.getPadding();
 		int pasteY = (int)(y - maskBounds.y - maskBounds.getHeight() / 2) - lasso.getPadding();
 		
-		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		return new Point(pasteX, pasteY);
+	}
 	
+	/**
+	 * A copy of the selection cut to what fits into the target when pasted at (pasteX, pasteY).
+	 * The lasso keeps the selection itself, since it can be dropped (and previewed) at other
+	 * places as well.
+	 */
+	private Polygon constrainSelection(Polygon selection, int pasteX, int pasteY)
+	{
+		Polygon constrained = new Polygon(selection.xpoints, selection.ypoints, selection.npoints);
+		
 		/*
 		 * Cutting away the mask if it goes beyond the bounds of the target image
 		 * (without this, the algorithm will fail when pasting close to the edges)
@@ -117,25 +225,209 @@ public class Main extends Frame implements LassoToolActionListener {
 		
 		pastedAreaConstrained.setLocation(pastedAreaConstrained.x - pasteX, pastedAreaConstrained.y - pasteY);
 		
-		for (int i = 0; i < selection.xpoints.length; i++)
+		for (int i = 0; i < constrained.npoints; i++)
+		{
+			constrained.xpoints[i] = Math.max(pastedAreaConstrained.x + 1, 
+					Math.min(constrained.xpoints[i], pastedAreaConstrained.x + pastedAreaConstrained.width - 1));
+		}
+		for (int i = 0; i < constrained.npoints; i++)
+		{
+			constrained.ypoints[i] = Math.max(pastedAreaConstrained.y + 1, 
+					Math.min(constrained.ypoints[i], pastedAreaConstrained.y + pastedAreaConstrained.height - 1));
+		}
+		
+		return constrained;
+	}
+	
+	/**
+	 * Shows a frame of the live preview: the area of the previous frame gets the target back,
+	 * and the new blend goes over it (event thread only)
+	 * 
+	 * @param preview
+	 * @param patch
+	 * @param x
+	 * @param y
+	 */
+	void dragPreviewFrame(DragPreview preview, BufferedImage patch, int x, int y)
+	{
+		if (dragPreview != preview) return;
+		
+		if (preview.previewImg == null)
 		{
-			selection.xpoints[i] = Math.max(pastedAreaConstrained.x + 1, 
-					Math.min(selection.xpoints[i], pastedAreaConstrained.x + pastedAreaConstrained.width - 1));
+			preview.previewImg = ImageUtil.deepCopy(preview.targetImg);
+			imgContainerB.changeImage(preview.previewImg);
 		}
-		for (int i = 0; i < selection.ypoints.length; i++)
+		
+		Rectangle area = new Rectangle(x, y, patch.getWidth(), patch.getHeight());
+		Graphics g = preview.previewImg.getGraphics();
+		
+		if (preview.previewArea != null)
 		{
-			selection.ypoints[i] = Math.max(pastedAreaConstrained.y + 1, 
-					Math.min(selection.ypoints[i], pastedAreaConstrained.y + pastedAreaConstrained.height - 1));
+			g.setClip(preview.previewArea);
+			g.drawImage(preview.targetImg, 0, 0, null);
+			g.setClip(null);
 		}
+		g.drawImage(patch, x, y, null);
+		g.dispose();
 		
-		// The central part
-		BufferedImage matte = PoissonImageEditor.CreateMatte(sourceImg, selection);
-		BufferedImage composite = pie.Paste(sourceImg, matte, targetImg, pasteX, pasteY);
+		repaintTarget(preview.previewArea != null ? preview.previewArea.union(area) : area);
+		preview.previewArea = area;
+	}
+	
+	private void repaintTarget(Rectangle area)
+	{
+		// Nothing to repaint if an edit has not changed anything
+		if (area == null) return;
+		
+		imgContainerB.repaint(area.x, area.y, area.width, area.height);
+	}
+	
+	/**
+	 * Takes back the last paste (or reset) of the target (event thread only)
+	 */
+	void undo()
+	{
+		if (target == null) return;
 		
-		targetImg = composite;
-		imgContainerB.changeImage(targetImg);
-		imgContainerB.repaint();	
-		setCursor(null);		
+		cancelPaste();
+		repaintTarget(target.undo());
+	}
+	
+	/**
+	 * Does the last undone paste (or reset) of the target again (event thread only)
+	 */
+	void redo()
+	{
+		if (target == null) return;
+		
+		cancelPaste();
+		repaintTarget(target.redo());
+	}
+	
+	/**
+	 * Shows how far the current paste has got (event thread only)
+	 * 
+	 * @param job
+	 * @param text
+	 */
+	void pasteProgress(PasteJob job, String text)
+	{
+		if (currentPaste.get() != job) return;
+		
+		statusBar.setText(text);
+		statusBar.repaint();
+	}
+	
+	/**
+	 * Draws a rough result of the current paste over the target, repainting just that area 
+	 * (event thread only)
+	 * 
+	 * @param job
+	 * @param patch
+	 * @param x
+	 * @param y
+	 */
+	void pastePreview(PasteJob job, BufferedImage patch, int x, int y)
+	{
+		if (currentPaste.get() != job) return;
+		
+		/*
+		 * The previews are drawn straight into the target (the job has read it already), over a 
+		 * copy of just the area they cover, which puts the target back before the paste goes in
+		 */
+		if (job.previewBackup == null)
+		{
+			Rectangle area = new Rectangle(x, y, patch.getWidth(), patch.getHeight())
+					.intersection(new Rectangle(0, 0, targetImg.getWidth(), targetImg.getHeight()));
+			if (area.isEmpty()) return;
+			
+			job.previewArea = area;
+			job.previewBackup = targetImg.getRaster().getDataElements(area.x, area.y, area.width, area.height, null);
+		}
+		
+		Graphics g = targetImg.getGraphics();
+		g.drawImage(patch, x, y, null);
+		g.dispose();
+		
+		repaintTarget(job.previewArea);
+	}
+	
+	/**
+	 * Puts the target back the way it was under the previews of a paste (event thread only)
+	 * 
+	 * @param job
+	 */
+	private void discardPreview(PasteJob job)
+	{
+		if (job.previewBackup == null) return;
+		
+		Rectangle area = job.previewArea;
+		targetImg.getRaster().setDataElements(area.x, area.y, area.width, area.height, job.previewBackup);
+		
+		repaintTarget(job.previewArea);
+		job.previewBackup = null;
+	}
+	
+	/**
+	 * Writes the blend of a finished paste into the target, unless the paste has been 
+	 * cancelled or superseded in the meantime (event thread only)
+	 * 
+	 * @param job
+	 * @param patch
+	 */
+	void pasteFinished(PasteJob job, PastePatch patch)
+	{
+		if (!currentPaste.compareAndSet(job, null)) return;
+		
+		// The tiles saved for undo must not have the previews in them
+		discardPreview(job);
+		repaintTarget(target.apply(patch));
+		
+		setCursor(null);
+		
+		lasso.showHint(LassoHint.HINT_5);
+	}
+	
+	/**
+	 * (event thread only)
+	 * 
+	 * @param job
+	 * @param e
+	 */
+	void pasteFailed(PasteJob job, RuntimeException e)
+	{
+		if (!currentPaste.compareAndSet(job, null)) return;
+		
+		System.err.print("Pasting failed: ");
+		e.printStackTrace(System.err);
+		
+		discardPreview(job);
+		setCursor(null);
+		statusBar.setText(String.format("Pasting failed (%s)", e.getMessage()));
+		statusBar.repaint();
+	}
+	
+	/**
+	 * Stops the paste in progress (and the live preview), if there is one; the target image 
+	 * stays as it was
+	 * 
+	 * @return false if there was nothing to cancel
+	 */
+	boolean cancelPaste()
+	{
+		endPreview();
+		
+		PasteJob job = currentPaste.getAndSet(null);
+		if (job == null) return false;
+		
+		job.cancel();
+		discardPreview(job);
+		
+		setCursor(null);
+		statusBar.setText("Pasting cancelled");
+		statusBar.repaint();
+		
+		return true;
 	}
 	
 	private void init() throws Exception
@@ -145,7 +437,7 @@ public class Main extends Frame implements LassoToolActionListener {
 			sourceImg = ImageIO.read(new File("sampleImages/kitten.png"));
 			//sourceImgMatte = ImageIO.read(new File("kittenmask.png"));
 			targetImg = ImageIO.read(new File("sampleImages/library.png"));
-			targetImgUndo = ImageUtil.deepCopy(targetImg);
+			target = new TiledTarget(targetImg);
 		}
 		catch (IOException e)
 		{
@@ -213,12 +505,14 @@ public class Main extends Frame implements LassoToolActionListener {
 		    btnBBrowse.setBounds(688, 601, 130, 40);
 		    btnBBrowse.addActionListener(new ActionListener() {    
 		    	public void actionPerformed (ActionEvent e) {    
+		    		cancelPaste();
+		    		
 	        		String filename = showFileDialog("Choose an image file", FileDialog.LOAD);
 	        		
 	        		try
 	        		{
 	        			targetImg = ImageIO.read(new File(filename));
-	        			targetImgUndo = ImageUtil.deepCopy(targetImg);
+	        			target = new TiledTarget(targetImg);
 	        			
 	        			imgContainerB.changeImage(targetImg);
 	        			imgContainerB.repaint();
@@ -237,8 +531,10 @@ public class Main extends Frame implements LassoToolActionListener {
 		    btnBClear.addActionListener(new ActionListener() {  
 		    	
 		    	public void actionPerformed (ActionEvent e) {   
+		    		cancelPaste();
+		    		
 		    		targetImg = null;
-		    		targetImgUndo = null;	    		
+		    		target = null;
 	        		imgContainerB.clear();
 	        		imgContainerB.repaint();
 		        }    
@@ -251,12 +547,11 @@ public class Main extends Frame implements LassoToolActionListener {
 		    btnBReset.addActionListener(new ActionListener() { 
 		    	
 		    	public void actionPerformed (ActionEvent e) {   
-		    		if (targetImgUndo != null)
-		    		{
-		    			targetImg = ImageUtil.deepCopy(targetImgUndo);	    		
-			    		imgContainerB.changeImage(targetImg);
-		        		imgContainerB.repaint();
-		    		}	    		
+		    		cancelPaste();
+		    		
+		    		// An edit of its own, Ctrl+Z brings the pastes back
+		    		if (target != null)
+		    			repaintTarget(target.reset());
 		        }  
 		    	
 		    });
@@ -319,7 +614,35 @@ public class Main extends Frame implements LassoToolActionListener {
 		    imgContainerB.addMouseListener(lassoMouseListener);
 		    imgContainerB.addMouseMotionListener(lassoMouseListener);  	
 		    
-		    pie = new PoissonImageEditor(); 		    
+		    pie = new PoissonImageEditor(); 	
+		    
+		    pasteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		    	public Thread newThread(Runnable r) {
+		    		Thread t = new Thread(r, "paste");
+		    		t.setDaemon(true);
+		    		return t;
+		    	}
+		    });
+		    
+		    // Esc or a right-click anywhere in the window stops the paste in progress, Ctrl+Z and 
+		    // Ctrl+Y (or Ctrl+Shift+Z) undo and redo the pastes
+		    Toolkit.getDefaultToolkit().addAWTEventListener(new AWTEventListener() {
+		    	public void eventDispatched(AWTEvent e) {
+		    		if (e.getID() == KeyEvent.KEY_PRESSED && ((KeyEvent)e).getKeyCode() == KeyEvent.VK_ESCAPE)
+		    			cancelPaste();
+		    		else if (e.getID() == KeyEvent.KEY_PRESSED && ((KeyEvent)e).isControlDown())
+		    		{
+		    			KeyEvent key = (KeyEvent)e;
+		    			
+		    			if (key.getKeyCode() == KeyEvent.VK_Y || (key.getKeyCode() == KeyEvent.VK_Z && key.isShiftDown()))
+		    				redo();
+		    			else if (key.getKeyCode() == KeyEvent.VK_Z)
+		    				undo();
+		    		}
+		    		else if (e.getID() == MouseEvent.MOUSE_PRESSED && ((MouseEvent)e).getButton() == MouseEvent.BUTTON3)
+		    			cancelPaste();
+		    	}
+		    }, AWTEvent.KEY_EVENT_MASK | AWTEvent.MOUSE_EVENT_MASK);
 		}
 		catch (Exception e)
 		{
@@ -0,0 +1,153 @@
+package sfu.compmedia.poisson.gui;
+
+import java.awt.EventQueue;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+
+import sfu.compmedia.poisson.Matte;
+import sfu.compmedia.poisson.PastePatch;
+import sfu.compmedia.poisson.PastePreview;
+import sfu.compmedia.poisson.PoissonImageEditor;
+import sfu.compmedia.poisson.metrics.PasteMonitor;
+import sfu.compmedia.poisson.metrics.PastePhase;
+
+/**
+ *
+ * One drop of the lasso selection onto the target image, solved in the background so that
+ * the window stays responsive (and the paste can be cancelled) while it runs.
+ *
+ * The job works on the images as they were at the time of the drop and never touches the GUI
+ * itself: progress, previews, the blend and errors are all handed back to Main on the event
+ * thread, which decides whether they are still wanted (and writes the blend into the target).
+ *
+ * Big selections are pasted progressively (see PoissonImageEditor.PasteProgressive), so a rough
+ * blend shows up almost at once and sharpens while the exact one is being solved.
+ *
+ */
+class PasteJob implements Runnable, PasteMonitor, PastePreview {
+
+	final Main owner;
+	final PoissonImageEditor pie;
+
+	final BufferedImage sourceImg, targetImg;
+	final Polygon selection;
+	final int pasteX, pasteY;
+
+	volatile boolean cancelled;
+
+	/**
+	 * The area the previews cover (the same at every level) and a copy of the target pixels
+	 * under it from before they were drawn into the target, as WritableRaster.getDataElements
+	 * returns them (event thread only)
+	 */
+	Rectangle previewArea;
+	Object previewBackup;
+
+	/**
+	 * @param owner
+	 * @param pie
+	 * @param sourceImg
+	 * @param targetImg
+	 * @param selection already constrained to the target, not changed afterwards
+	 * @param pasteX
+	 * @param pasteY
+	 */
+	PasteJob(Main owner, PoissonImageEditor pie, BufferedImage sourceImg, BufferedImage targetImg,
+			Polygon selection, int pasteX, int pasteY)
+	{
+		this.owner = owner;
+		this.pie = pie;
+		this.sourceImg = sourceImg;
+		this.targetImg = targetImg;
+		this.selection = selection;
+		this.pasteX = pasteX;
+		this.pasteY = pasteY;
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	@Override
+	public void phaseStarted(PastePhase phase)
+	{
+		final String text = describe(phase);
+
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				owner.pasteProgress(PasteJob.this, text);
+			}
+		});
+	}
+
+	@Override
+	public void preview(final BufferedImage patch, final int x, final int y, int level)
+	{
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				owner.pastePreview(PasteJob.this, patch, x, y);
+			}
+		});
+	}
+
+	@Override
+	public void run()
+	{
+		// Superseded before it even started
+		if (cancelled) return;
+
+		try
+		{
+			Matte matte = Matte.fromPolygon(selection, sourceImg.getWidth(), sourceImg.getHeight());
+			final PastePatch patch = pie.PasteProgressivePatch(sourceImg, matte, targetImg, pasteX, pasteY,
+					this, this);
+
+			EventQueue.invokeLater(new Runnable() {
+				public void run() {
+					owner.pasteFinished(PasteJob.this, patch);
+				}
+			});
+		}
+		catch (CancellationException e)
+		{
+			// Whoever cancelled the job has already dealt with the GUI
+		}
+		catch (final RuntimeException e)
+		{
+			EventQueue.invokeLater(new Runnable() {
+				public void run() {
+					owner.pasteFailed(PasteJob.this, e);
+				}
+			});
+		}
+	}
+
+	private static String describe(PastePhase phase)
+	{
+		String step;
+
+		switch (phase)
+		{
+		case ENUMERATION:     step = "reading the selection"; break;
+		case UNPACK:          step = "reading the images"; break;
+		case CHROMA:          step = "solving the colours"; break;
+		case RIGHT_HAND_SIDE: step = "computing the guidance field"; break;
+		case ASSEMBLY:        step = "building the equations"; break;
+		case FACTORIZATION:   step = "factorizing the matrix"; break;
+		case SOLVE:           step = "solving the equations"; break;
+		case WRITE_BACK:      step = "writing the result"; break;
+		default:              step = "starting"; break;
+		}
+
+		return "Pasting: " + step + "... Press Esc or right-click to cancel";
+	}
+}
@@ -16,6 +16,7 @@ import java.util.ArrayList;
 
 import sfu.compmedia.poisson.ImageOperator;
 import sfu.compmedia.poisson.ImageUtil;
+import sfu.compmedia.poisson.PolygonRasterizer;
 import sfu.compmedia.poisson.gui.ImageContainer;
 import sfu.compmedia.poisson.gui.StatusBar;
 
@@ -55,7 +56,7 @@ public class Lasso {
 	BufferedImage selection;
 	BufferedImage selectionTransparent;
 	
-	Cursor transferringCursor, transferringCursorHover;
+	Cursor transferringCursor;
 	
 	
 	/**
@@ -156,6 +157,9 @@ public class Lasso {
 				if (e.getComponent() != targetContainer || e.getButton() == MouseEvent.BUTTON3 
 						|| ((ImageContainer)targetContainer).getImage() == null)
 				{
+					for (LassoToolActionListener listener : listeners)
+						listener.endPreview();
+					
 					parentFrame.setCursor(null);
 					subjectContainer = null;
 					state = LassoToolState.INACTIVE;
@@ -167,12 +171,13 @@ public class Lasso {
 				int maskIndex = panels.indexOf(subjectContainer);
 				Polygon mask = masks.get(maskIndex);
 				
+				// The listener reports the progress of the paste from here on
+				// (and shows HINT_5 once it is done)
 				for (LassoToolActionListener listener : listeners)
 				{
 					listener.pasteSelection(e.getX(), e.getY(), mask, selection);
 					
 					state = LassoToolState.INACTIVE;
-					showHint(LassoHint.HINT_5);	
 				}
 			}
 		}
@@ -221,7 +226,6 @@ public class Lasso {
 			// The values chosen are such that feel the most natural during the interaction
 			Point hotSpot = new Point(selection.getWidth() / 2, selection.getHeight() / 2);
 			transferringCursor = Toolkit.getDefaultToolkit().createCustomCursor(selectionTransparent, hotSpot, "transferringCursor");
-			transferringCursorHover = Toolkit.getDefaultToolkit().createCustomCursor(selection, hotSpot, "transferringCursorHover");
 			
 			parentFrame.setCursor(transferringCursor);
 		}
@@ -230,16 +234,39 @@ public class Lasso {
 		{
 			if (state == LassoToolState.TRANSFERRING_THE_SELECTED)
 			{
-				// Apply the hover effect to let the user know they can now drop the selection 
-				// onto the target image (otherwise it's semi-transparent)
+				int maskIndex = panels.indexOf(subjectContainer);
+				Polygon mask = masks.get(maskIndex);
+				
+				// Over the target the selection is blended live where it would be dropped, so
+				// the cursor shrinks to a crosshair marking its centre (the image of the 
+				// selection would hide the blend). Elsewhere it's semi-transparent.
 				if (e.getComponent() == targetContainer && ((ImageContainer)targetContainer).getImage() != null)
-					parentFrame.setCursor(transferringCursorHover);
+				{
+					parentFrame.setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+					
+					for (LassoToolActionListener listener : listeners)
+						listener.previewSelection(e.getX(), e.getY(), mask, selection);
+				}
 				else
 				{
 					parentFrame.setCursor(transferringCursor);
+					
+					for (LassoToolActionListener listener : listeners)
+						listener.endPreview();
 				}					
 			}
 		}
+		
+		else if (e.getID() == MouseEvent.MOUSE_EXITED)
+		{
+			if (state == LassoToolState.TRANSFERRING_THE_SELECTED && e.getComponent() == targetContainer)
+			{
+				parentFrame.setCursor(transferringCursor);
+				
+				for (LassoToolActionListener listener : listeners)
+					listener.endPreview();
+			}
+		}
 	}
 	
 	private void processMouseDragged(MouseEvent e, Panel parent)
@@ -346,41 +373,35 @@ public class Lasso {
 	 * @param mask
 	 * @return
 	 */
-	private BufferedImage createSelection(BufferedImage srcImg, Polygon mask)
+	private BufferedImage createSelection(final BufferedImage srcImg, Polygon mask)
 	{
 		Rectangle maskBounds = mask.getBounds();
 		
-		BufferedImage result = new BufferedImage(maskBounds.width + 10, maskBounds.height + 10, BufferedImage.TYPE_INT_ARGB);		
-		int rgb;
-		int rgb_out;
-		int maskX = (int)mask.getBounds().getX();
-		int maskY = (int)mask.getBounds().getY();
+		final BufferedImage result = new BufferedImage(maskBounds.width + 10, maskBounds.height + 10, BufferedImage.TYPE_INT_ARGB);		
+		final int maskX = maskBounds.x;
+		final int maskY = maskBounds.y;
+		final int[] row = new int[maskBounds.width + 1];
 		
-		for (int y = 0; y < srcImg.getHeight(); y++)
-		{
-			for (int x = 0; x < srcImg.getWidth(); x++)
-			{
-				boolean isPixelInMask = mask.contains(x, y);
-				
-				rgb = srcImg.getRGB(x, y);
-				rgb_out = isPixelInMask ? rgb : 0xFFFFFF00;
-				
-				if (isPixelInMask)
-					result.setRGB(x - maskX, y - maskY, rgb_out);				
+		// Copying the pixels of the mask run by run, instead of testing every pixel of the 
+		// source against the polygon; the rest stays transparent
+		PolygonRasterizer.rasterize(mask, srcImg.getWidth(), srcImg.getHeight(), new PolygonRasterizer.SpanVisitor() {
+			public void span(int y, int x0, int x1) {
+				srcImg.getRGB(x0, y, x1 - x0, 1, row, 0, row.length);
+				result.setRGB(x0 - maskX, y - maskY, x1 - x0, 1, row, 0, row.length);
 			}
-		}
+		});
 		
 		return result;
 	}
 	
-	private void showHint(LassoHint hintId)
+	public void showHint(LassoHint hintId)
 	{
 		String[] hints = {
 				"Draw a selection mask on top of the left image using the mouse", 
 				"Encircle the desired region and return to the starting point to initiate an automatic closure",
 				"Release the mouse to create the cutout",
 				"Move the portion to the image at the right and drop at desired location. Right-click to cancel",
-				"Pasting completed!"
+				"Pasting completed! Ctrl+Z to undo, Ctrl+Y to redo"
 		};
 		
 		statusBar.setText(hints[hintId.ordinal()]);
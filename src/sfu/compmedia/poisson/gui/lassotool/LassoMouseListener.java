@@ -32,4 +32,8 @@ public class LassoMouseListener extends MouseInputAdapter {
     public void mouseReleased(MouseEvent e) {
     	lasso.processMouseEvent(e);
     }
+
+    public void mouseExited(MouseEvent e) {
+    	lasso.processMouseEvent(e);
+    }
 }
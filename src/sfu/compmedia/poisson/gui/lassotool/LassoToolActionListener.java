@@ -10,4 +10,14 @@ import java.awt.image.BufferedImage;
  */
 public interface LassoToolActionListener {
 	void pasteSelection(int x, int y, Polygon selection, BufferedImage selectionImg);
+	
+	/**
+	 * The selection is being carried over the target, at (x, y) now
+	 */
+	void previewSelection(int x, int y, Polygon selection, BufferedImage selectionImg);
+	
+	/**
+	 * The selection has left the target, or has been dropped or discarded
+	 */
+	void endPreview();
 }
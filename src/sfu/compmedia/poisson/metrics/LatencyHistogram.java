@@ -0,0 +1,141 @@
+package sfu.compmedia.poisson.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * A histogram of durations in nanoseconds that can be recorded from many threads at once
+ * without locking.
+ *
+ * The buckets grow exponentially: every power of two is split into 16 equal buckets, so a
+ * value is known to within about 6% whatever its magnitude, and the whole histogram is a
+ * fixed array of a thousand counters.
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// Values below SUB_BUCKETS get a bucket each, then 16 buckets per power of two up to 2^63
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	static int bucketOf(long value)
+	{
+		if (value < SUB_BUCKETS) return (int)value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * The biggest value that falls into the bucket
+	 */
+	static long upperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS) return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+
+		return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+	}
+
+	/**
+	 * @param nanos duration, negative values count as 0
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0) nanos = 0;
+
+		counts.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+		{
+			// somebody else updated the maximum, try again
+		}
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getMaxNanos()
+	{
+		return max.get();
+	}
+
+	public double getMeanNanos()
+	{
+		long n = count.get();
+		return n == 0 ? 0 : (double)sum.get() / n;
+	}
+
+	/**
+	 * The duration below which the given percentage of the recorded ones lie (within the
+	 * precision of the buckets), 0 if nothing has been recorded
+	 *
+	 * @param percentile between 0 and 100
+	 * @return
+	 */
+	public long getPercentileNanos(double percentile)
+	{
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+
+		// The counters are read one by one while others may be recording, so the total is
+		// taken from the same pass
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		if (total == 0) return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+
+		return max.get();
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("count=%d mean=%.3f ms p50=%.3f ms p90=%.3f ms p99=%.3f ms max=%.3f ms",
+				getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(90) / 1e6,
+				getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+	}
+}
@@ -0,0 +1,86 @@
+package sfu.compmedia.poisson.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Latency histograms of every phase of Paste, for the code embedding the editor to query
+ * (e.g. getHistogram(PastePhase.SOLVE).getPercentileNanos(99)) or to print.
+ *
+ */
+public class PasteMetrics {
+
+	private final Map<PastePhase, LatencyHistogram> histograms = new EnumMap<PastePhase, LatencyHistogram>(PastePhase.class);
+
+	/**
+	 * Pastes written with a channel that had not converged (see PasteTrace.addUnconverged)
+	 */
+	private final AtomicLong unconverged = new AtomicLong();
+
+	public PasteMetrics()
+	{
+		for (PastePhase phase : PastePhase.values())
+			histograms.put(phase, new LatencyHistogram());
+	}
+
+	public void record(PastePhase phase, long nanos)
+	{
+		histograms.get(phase).record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(PastePhase phase)
+	{
+		return histograms.get(phase);
+	}
+
+	public void recordUnconverged()
+	{
+		unconverged.incrementAndGet();
+	}
+
+	/**
+	 * @return how many of the finished pastes had a channel whose solve ran out of iterations
+	 *         before meeting its tolerance
+	 */
+	public long getUnconvergedCount()
+	{
+		return unconverged.get();
+	}
+
+	/**
+	 * @return how many pastes have finished since the start (or the last reset)
+	 */
+	public long getPasteCount()
+	{
+		return histograms.get(PastePhase.TOTAL).getCount();
+	}
+
+	public void reset()
+	{
+		for (LatencyHistogram h : histograms.values())
+			h.reset();
+
+		unconverged.set(0);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		for (PastePhase phase : PastePhase.values())
+		{
+			LatencyHistogram h = histograms.get(phase);
+			if (h.getCount() == 0) continue;
+
+			sb.append(String.format("%-16s %s%n", phase, h));
+		}
+
+		if (unconverged.get() > 0)
+			sb.append(String.format("%-16s %d pastes%n", "UNCONVERGED", unconverged.get()));
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,22 @@
+package sfu.compmedia.poisson.metrics;
+
+import sfu.compmedia.poisson.solver.Cancellation;
+
+/**
+ *
+ * Follows a paste while it runs, e.g. to show its progress in the GUI, and can stop it.
+ *
+ * Paste asks isCancelled() at the start of every phase and the iterative engines once per
+ * iteration as well; when it says yes, Paste gives up with a CancellationException and the
+ * target image is left as it was.
+ *
+ */
+public interface PasteMonitor extends Cancellation {
+
+	/**
+	 * Called on the thread running Paste, as every phase starts (TOTAL first)
+	 *
+	 * @param phase
+	 */
+	void phaseStarted(PastePhase phase);
+}
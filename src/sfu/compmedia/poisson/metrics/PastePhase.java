@@ -0,0 +1,16 @@
+package sfu.compmedia.poisson.metrics;
+
+/**
+ * The parts a paste is timed in, in the order they happen
+ */
+public enum PastePhase {
+	ENUMERATION,     // reading the matte image into a Matte (skipped when Paste is given one)
+	UNPACK,          // reading the source and the target into float planes (and their pyramids)
+	CHROMA,          // with ColorSpace.YCBCR, the conversion and the whole solve of the chroma at half the resolution
+	RIGHT_HAND_SIDE, // building B for the three channels (only the luma with ColorSpace.YCBCR)
+	ASSEMBLY,        // the sparse matrix A, or the stencil / tiles of the iterative engines
+	FACTORIZATION,   // Cholesky of A (only when it is not in the cache)
+	SOLVE,           // the solves of the three channels
+	WRITE_BACK,      // the solution into the target planes, and those into (a copy of) the target image
+	TOTAL            // the whole Paste call
+}
@@ -0,0 +1,71 @@
+package sfu.compmedia.poisson.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ *
+ * Flight Recorder event for one phase of a paste. Recorded with the usual JFR tooling, e.g.
+ * java -XX:StartFlightRecording=filename=paste.jfr ..., and then "jfr print --events
+ * sfu.compmedia.poisson.PastePhase paste.jfr".
+ *
+ */
+@Name("sfu.compmedia.poisson.PastePhase")
+@Label("Paste Phase")
+@Category({"Poisson Image Editing"})
+@Description("One phase of PoissonImageEditor.Paste")
+@StackTrace(false)
+class PastePhaseEvent extends Event {
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Solver")
+	String solver;
+
+	@Label("Unknowns")
+	@Description("Number of pixels of the matte, i.e. rows of A")
+	int unknowns;
+
+	@Label("Non-zeros")
+	@Description("Number of non-zero entries of A")
+	long nonZeros;
+
+	@Label("Matte X")
+	@Description("Bounding box of the matte, in target image coordinates")
+	int matteX;
+
+	@Label("Matte Y")
+	int matteY;
+
+	@Label("Matte Width")
+	int matteWidth;
+
+	@Label("Matte Height")
+	int matteHeight;
+
+	@Label("Elapsed")
+	@Timespan(Timespan.NANOSECONDS)
+	long elapsed;
+
+	@Label("Cache Hit")
+	@Description("The factorization (direct solver) or the grid hierarchy (multigrid) came from the cache")
+	boolean cacheHit;
+
+	@Label("Factor Non-zeros")
+	@Description("Number of non-zero entries of the Cholesky factor L, -1 if there is none (direct solver only)")
+	long factorNonZeros;
+
+	@Label("Fill Ratio")
+	@Description("Non-zeros of L over the non-zeros of the lower triangle of A (direct solver only)")
+	double fillRatio;
+
+	@Label("Unconverged Channels")
+	@Description("Channels whose iterative solve stopped at its iteration cap so far, short of the tolerance")
+	int unconverged;
+}
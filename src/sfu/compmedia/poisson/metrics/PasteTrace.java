@@ -0,0 +1,190 @@
+package sfu.compmedia.poisson.metrics;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Times the phases of one paste: every phase goes into the histograms of PasteMetrics and,
+ * when a Flight Recorder recording is running, out as a PastePhaseEvent carrying the size of
+ * the problem known at that point.
+ *
+ * The start of every phase is also where a paste notices that its monitor (if any) wants it
+ * cancelled.
+ *
+ * One trace per Paste call, used by one thread.
+ *
+ */
+public class PasteTrace {
+
+	private final PasteMetrics metrics;
+	private String solver;
+	private final PasteMonitor monitor;
+
+	private final long[] starts = new long[PastePhase.values().length];
+	private final PastePhaseEvent[] events = new PastePhaseEvent[PastePhase.values().length];
+
+	private int unknowns;
+	private long nonZeros;
+	private int matteX, matteY, matteWidth, matteHeight;
+	private boolean cacheHit;
+	private long factorNonZeros = -1;
+
+	// Counted by the solves of the channels, which may run on other threads
+	private final AtomicInteger unconverged = new AtomicInteger();
+
+	/**
+	 * @param metrics
+	 * @param solver name of the engine, as reported in the events
+	 */
+	public PasteTrace(PasteMetrics metrics, String solver)
+	{
+		this(metrics, solver, null);
+	}
+
+	/**
+	 * @param metrics null for work that should not be recorded (neither in histograms nor as
+	 *        events), such as the preview levels of a progressive paste
+	 * @param solver name of the engine, as reported in the events
+	 * @param monitor told about every phase as it starts, may be null
+	 */
+	public PasteTrace(PasteMetrics metrics, String solver, PasteMonitor monitor)
+	{
+		this.metrics = metrics;
+		this.solver = solver;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * @return the monitor of the paste, null if there is none
+	 */
+	public PasteMonitor getMonitor()
+	{
+		return monitor;
+	}
+
+	/**
+	 * @param solver name of the engine, if it is only picked once the matte is known
+	 */
+	public void setSolver(String solver)
+	{
+		this.solver = solver;
+	}
+
+	/**
+	 * @param unknowns
+	 * @param nonZeros
+	 */
+	public void setProblemSize(int unknowns, long nonZeros)
+	{
+		this.unknowns = unknowns;
+		this.nonZeros = nonZeros;
+	}
+
+	/**
+	 * Bounding box of the matte, in target image coordinates
+	 */
+	public void setMatteBounds(int x, int y, int width, int height)
+	{
+		this.matteX = x;
+		this.matteY = y;
+		this.matteWidth = width;
+		this.matteHeight = height;
+	}
+
+	public void setCacheHit(boolean cacheHit)
+	{
+		this.cacheHit = cacheHit;
+	}
+
+	/**
+	 * @param factorNonZeros number of non-zero entries of the Cholesky factor L, fill included
+	 */
+	public void setFactorNonZeros(long factorNonZeros)
+	{
+		this.factorNonZeros = factorNonZeros;
+	}
+
+	/**
+	 * Notes that the solve of a channel stopped at its iteration cap before it met its
+	 * tolerance: the paste goes on with what it has, and the metrics count it
+	 */
+	public void addUnconverged()
+	{
+		unconverged.incrementAndGet();
+	}
+
+	/**
+	 * @return how many channels have not converged so far
+	 */
+	public int getUnconverged()
+	{
+		return unconverged.get();
+	}
+
+	/**
+	 * @param phase
+	 * @throws CancellationException if the monitor says the paste has been cancelled
+	 */
+	public void begin(PastePhase phase)
+	{
+		if (monitor != null)
+		{
+			if (monitor.isCancelled())
+				throw new CancellationException("Paste cancelled before " + phase);
+
+			monitor.phaseStarted(phase);
+		}
+
+		if (metrics == null) return;
+
+		int i = phase.ordinal();
+
+		PastePhaseEvent event = new PastePhaseEvent();
+		if (event.isEnabled())
+		{
+			event.begin();
+			events[i] = event;
+		}
+
+		starts[i] = System.nanoTime();
+	}
+
+	public void end(PastePhase phase)
+	{
+		if (metrics == null) return;
+
+		int i = phase.ordinal();
+		long elapsed = System.nanoTime() - starts[i];
+
+		metrics.record(phase, elapsed);
+
+		if (phase == PastePhase.TOTAL && unconverged.get() > 0)
+			metrics.recordUnconverged();
+
+		PastePhaseEvent event = events[i];
+		if (event == null) return;
+
+		events[i] = null;
+		event.end();
+
+		if (event.shouldCommit())
+		{
+			event.phase = phase.name();
+			event.solver = solver;
+			event.unknowns = unknowns;
+			event.nonZeros = nonZeros;
+			event.matteX = matteX;
+			event.matteY = matteY;
+			event.matteWidth = matteWidth;
+			event.matteHeight = matteHeight;
+			event.elapsed = elapsed;
+			event.cacheHit = cacheHit;
+			event.factorNonZeros = factorNonZeros;
+			event.unconverged = unconverged.get();
+			event.fillRatio = factorNonZeros < 0 || nonZeros == 0 ? 0 : 
+				factorNonZeros / ((nonZeros + unknowns) / 2.0);
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package sfu.compmedia.poisson.solver;
+
+/**
+ *
+ * Lets a solve that is taking too long be stopped from another thread. The iterative solvers
+ * ask once per iteration (or cycle) and throw a CancellationException when the answer is yes,
+ * leaving x somewhere between the initial guess and the solution.
+ *
+ */
+public interface Cancellation {
+
+	boolean isCancelled();
+}
@@ -0,0 +1,256 @@
+package sfu.compmedia.poisson.solver;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ *
+ * Preconditioned conjugate gradient solver for the Poisson equation, working directly
+ * on a LaplacianStencil (no assembled matrix, no factorization).
+ *
+ * The direct Cholesky solve runs out of memory on big selections because of the fill-in;
+ * here we only keep a handful of vectors of the size of the unknowns, so the memory
+ * grows linearly and much larger regions can be pasted.
+ *
+ */
+public class ConjugateGradientSolver {
+
+	/**
+	 * Returned by solve() when the iterations ran out before the tolerance was met
+	 */
+	public static final int NOT_CONVERGED = -1;
+
+	Preconditioner preconditioner = Preconditioner.INCOMPLETE_CHOLESKY;
+
+	/**
+	 * The iterations stop when ||b - Ax|| <= tolerance * ||b||
+	 */
+	double tolerance = 1e-6;
+	int maxIterations = 10000;
+
+	public ConjugateGradientSolver()
+	{
+		//
+	}
+
+	public ConjugateGradientSolver(Preconditioner preconditioner, double tolerance, int maxIterations)
+	{
+		setPreconditioner(preconditioner);
+		setTolerance(tolerance);
+		setMaxIterations(maxIterations);
+	}
+
+	public Preconditioner getPreconditioner()
+	{
+		return preconditioner;
+	}
+
+	public void setPreconditioner(Preconditioner preconditioner)
+	{
+		if (preconditioner == null)
+			throw new IllegalArgumentException("preconditioner must not be null");
+
+		this.preconditioner = preconditioner;
+	}
+
+	public double getTolerance()
+	{
+		return tolerance;
+	}
+
+	public void setTolerance(double tolerance)
+	{
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("tolerance must be positive");
+
+		this.tolerance = tolerance;
+	}
+
+	public int getMaxIterations()
+	{
+		return maxIterations;
+	}
+
+	public void setMaxIterations(int maxIterations)
+	{
+		if (maxIterations < 1)
+			throw new IllegalArgumentException("maxIterations must be at least 1");
+
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Solves Ax=b. Whatever x holds on entry is used as the initial guess.
+	 *
+	 * @param A
+	 * @param b
+	 * @param x
+	 * @return the number of iterations performed, or NOT_CONVERGED if the tolerance was not met
+	 *         within maxIterations (x then holds the last iterate)
+	 */
+	public int solve(LaplacianStencil A, double[] b, double[] x)
+	{
+		return solve(A, b, x, null);
+	}
+
+	/**
+	 * Same as above, checking for cancellation before every iteration
+	 *
+	 * @param A
+	 * @param b
+	 * @param x
+	 * @param cancel may be null
+	 * @return the number of iterations performed, or NOT_CONVERGED
+	 * @throws CancellationException
+	 */
+	public int solve(LaplacianStencil A, double[] b, double[] x, Cancellation cancel)
+	{
+		final int n = A.getNumVars();
+
+		double[] r = new double[n];
+		double[] z = new double[n];
+		double[] p = new double[n];
+		double[] q = new double[n];
+
+		double[] icDiag = (preconditioner == Preconditioner.INCOMPLETE_CHOLESKY) ? factorIC(A) : null;
+		FastPoissonSolver box = (preconditioner == Preconditioner.SPECTRAL) ? new FastPoissonSolver(A) : null;
+
+		double bNorm = Math.sqrt(dot(b, b, n));
+		if (bNorm == 0)
+		{
+			// The only solution of Ax=0 is x=0, A being positive definite
+			for (int i = 0; i < n; i++) x[i] = 0;
+			return 0;
+		}
+
+		// r = b - Ax
+		A.apply(x, r);
+		for (int i = 0; i < n; i++) r[i] = b[i] - r[i];
+
+		if (Math.sqrt(dot(r, r, n)) <= tolerance * bNorm)
+			return 0;
+
+		precondition(A, icDiag, box, r, z);
+		System.arraycopy(z, 0, p, 0, n);
+		double rz = dot(r, z, n);
+
+		int it = 0;
+		while (it < maxIterations)
+		{
+			if (cancel != null && cancel.isCancelled())
+				throw new CancellationException("Solve cancelled after " + it + " iterations");
+
+			it++;
+
+			A.apply(p, q);
+			double alpha = rz / dot(p, q, n);
+
+			for (int i = 0; i < n; i++)
+			{
+				x[i] += alpha * p[i];
+				r[i] -= alpha * q[i];
+			}
+
+			if (Math.sqrt(dot(r, r, n)) <= tolerance * bNorm)
+				return it;
+
+			precondition(A, icDiag, box, r, z);
+			double rzNew = dot(r, z, n);
+			double beta = rzNew / rz;
+			rz = rzNew;
+
+			for (int i = 0; i < n; i++)
+				p[i] = z[i] + beta * p[i];
+		}
+
+		return NOT_CONVERGED;
+	}
+
+	/**
+	 * Computes z = M^-1 * r for the selected preconditioner
+	 */
+	private void precondition(LaplacianStencil A, double[] icDiag, FastPoissonSolver box, double[] r, double[] z)
+	{
+		final int n = A.getNumVars();
+
+		switch (preconditioner)
+		{
+		case JACOBI:
+			for (int i = 0; i < n; i++)
+				z[i] = r[i] / LaplacianStencil.DIAGONAL;
+			break;
+
+		case INCOMPLETE_CHOLESKY:
+			/*
+			 * M = (D + L) D^-1 (D + L^T), L being the strictly lower part of A (all -1's).
+			 * First the forward substitution with (D + L), then the backward one
+			 * with D^-1 (D + L^T).
+			 */
+			for (int i = 0; i < n; i++)
+			{
+				double sum = r[i];
+				for (int d = 0; d < 4; d++)
+				{
+					int j = A.neighbours[i * 4 + d];
+					if (j >= 0 && j < i) sum += z[j];
+				}
+				z[i] = sum / icDiag[i];
+			}
+
+			for (int i = n - 1; i >= 0; i--)
+			{
+				double sum = 0;
+				for (int d = 0; d < 4; d++)
+				{
+					int j = A.neighbours[i * 4 + d];
+					if (j > i) sum += z[j];
+				}
+				z[i] += sum / icDiag[i];
+			}
+			break;
+
+		case SPECTRAL:
+			// The exact inverse on the bounding rectangle (see FastPoissonSolver)
+			box.solve(r, z);
+			break;
+
+		default:
+			System.arraycopy(r, 0, z, 0, n);
+			break;
+		}
+	}
+
+	/**
+	 * Zero fill-in incomplete Cholesky factorization, IC(0).
+	 *
+	 * With the 5-point stencil the factor keeps the sparsity of A and only the diagonal D
+	 * has to be computed: d_i = 4 - sum(1 / d_j) over the neighbours j that come before i.
+	 *
+	 * @param A
+	 * @return the diagonal D
+	 */
+	static double[] factorIC(LaplacianStencil A)
+	{
+		final int n = A.getNumVars();
+		double[] diag = new double[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			double d = LaplacianStencil.DIAGONAL;
+			for (int k = 0; k < 4; k++)
+			{
+				int j = A.neighbours[i * 4 + k];
+				if (j >= 0 && j < i) d -= 1.0 / diag[j];
+			}
+			diag[i] = d;
+		}
+
+		return diag;
+	}
+
+	private static double dot(double[] a, double[] b, int n)
+	{
+		double sum = 0;
+		for (int i = 0; i < n; i++) sum += a[i] * b[i];
+		return sum;
+	}
+}
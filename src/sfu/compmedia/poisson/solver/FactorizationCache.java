@@ -0,0 +1,175 @@
+package sfu.compmedia.poisson.solver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Keeps the factorizations of A around between pastes, keyed by the matte topology (MatteKey).
+ *
+ * Dropping the same lasso selection again, at another position or onto another target image,
+ * produces exactly the same A, so the expensive factorization can be reused and only the
+ * triangular solves are left to do. Least recently used entries are evicted once the total
+ * size goes over the byte budget.
+ *
+ * Anything else that only depends on A can be kept the same way, e.g. the grid hierarchies of
+ * the multigrid solver.
+ *
+ */
+public class FactorizationCache<T> {
+
+	public static final long DEFAULT_BYTE_BUDGET = 256L * 1024 * 1024;
+
+	/**
+	 * A cached factorization and its (approximate) memory footprint
+	 */
+	static class Entry<T> {
+		final T value;
+		final long bytes;
+
+		Entry(T value, long bytes)
+		{
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	// Access-ordered, so iteration starts from the least recently used entry
+	private final LinkedHashMap<MatteKey, Entry<T>> entries = new LinkedHashMap<MatteKey, Entry<T>>(16, 0.75f, true);
+
+	private long byteBudget;
+	private long bytesUsed;
+
+	private long hits, misses, evictions;
+
+	public FactorizationCache()
+	{
+		this(DEFAULT_BYTE_BUDGET);
+	}
+
+	/**
+	 * @param byteBudget maximum total size of the cached factorizations, 0 disables caching
+	 */
+	public FactorizationCache(long byteBudget)
+	{
+		setByteBudget(byteBudget);
+	}
+
+	public synchronized long getByteBudget()
+	{
+		return byteBudget;
+	}
+
+	public synchronized void setByteBudget(long byteBudget)
+	{
+		if (byteBudget < 0)
+			throw new IllegalArgumentException("byteBudget must not be negative");
+
+		this.byteBudget = byteBudget;
+		evict();
+	}
+
+	/**
+	 * Returns the cached factorization for the matte, or null (counted as a miss)
+	 *
+	 * @param key
+	 * @return
+	 */
+	public synchronized T get(MatteKey key)
+	{
+		Entry<T> entry = entries.get(key);
+
+		if (entry == null)
+		{
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Whether there is a factorization for the matte, without counting a hit or a miss (and 
+	 * without making it the most recently used)
+	 *
+	 * @param key
+	 * @return
+	 */
+	public synchronized boolean contains(MatteKey key)
+	{
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Stores a factorization. Entries bigger than the whole budget are not kept at all.
+	 *
+	 * @param key
+	 * @param value
+	 * @param bytes approximate size of the factorization
+	 */
+	public synchronized void put(MatteKey key, T value, long bytes)
+	{
+		long total = bytes + key.sizeInBytes();
+
+		Entry<T> old = entries.remove(key);
+		if (old != null) bytesUsed -= old.bytes;
+
+		if (total > byteBudget) return;
+
+		entries.put(key, new Entry<T>(value, total));
+		bytesUsed += total;
+		evict();
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		bytesUsed = 0;
+	}
+
+	private void evict()
+	{
+		Iterator<Map.Entry<MatteKey, Entry<T>>> it = entries.entrySet().iterator();
+
+		while (bytesUsed > byteBudget && it.hasNext())
+		{
+			bytesUsed -= it.next().getValue().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	public synchronized long getBytesUsed()
+	{
+		return bytesUsed;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("FactorizationCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+				entries.size(), bytesUsed, byteBudget, hits, misses, evictions);
+	}
+}
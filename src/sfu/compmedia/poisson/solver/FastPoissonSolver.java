@@ -0,0 +1,148 @@
+package sfu.compmedia.poisson.solver;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Solves the equation on the bounding rectangle of Omega directly, with the fast sine transform
+ * (no factorization, no iterations): O(n log n) time and O(n) memory.
+ *
+ * On a rectangle the 5-point Laplacian with Dirichlet boundary values separates. The sine
+ * transform along the rows diagonalizes the horizontal part, leaving one tridiagonal system
+ * per frequency along the columns, which the Thomas algorithm solves in linear time. The
+ * transform back along the rows gives the solution.
+ *
+ * For a matte that fills its bounding box this is A^-1 itself. For any other matte the
+ * rectangle is a slightly different problem (the pixels of the box outside the matte are
+ * unknowns of it, with a zero right-hand side), so it serves as the SPECTRAL preconditioner of
+ * ConjugateGradientSolver instead: the closer the matte is to its box, the fewer iterations
+ * it takes to correct the difference.
+ *
+ * Keeps its work arrays, so one instance is used by one thread at a time.
+ *
+ */
+public class FastPoissonSolver {
+
+	final int numVars;
+
+	// The bounding rectangle of the unknowns
+	final int width, height;
+
+	/**
+	 * Cell of the rectangle of every unknown
+	 */
+	final int[] cell;
+
+	/**
+	 * The Thomas algorithm factors: 1 / (pivot of row k) for every column j, at k * width + j
+	 */
+	final double[] pivots;
+
+	final SineTransform transform;
+	final double[] work;
+
+	public FastPoissonSolver(LaplacianStencil A)
+	{
+		numVars = A.getNumVars();
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < numVars; i++)
+		{
+			minX = Math.min(minX, A.xs[i]);
+			minY = Math.min(minY, A.ys[i]);
+			maxX = Math.max(maxX, A.xs[i]);
+			maxY = Math.max(maxY, A.ys[i]);
+		}
+
+		width = numVars == 0 ? 0 : maxX - minX + 1;
+		height = numVars == 0 ? 0 : maxY - minY + 1;
+
+		cell = new int[numVars];
+		for (int i = 0; i < numVars; i++)
+			cell[i] = (A.ys[i] - minY) * width + (A.xs[i] - minX);
+
+		/*
+		 * After the transform, column j solves d_j u[k] - u[k-1] - u[k+1] = f[k], where
+		 * d_j = 4 - 2 cos(pi (j + 1) / (width + 1)) is the diagonal left after the horizontal
+		 * part has been diagonalized. The pivots of the elimination only depend on j and k.
+		 */
+		pivots = new double[width * height];
+		for (int j = 0; j < width; j++)
+		{
+			double d = LaplacianStencil.DIAGONAL - 2 * Math.cos(Math.PI * (j + 1) / (width + 1));
+			double c = 0;
+
+			for (int k = 0; k < height; k++)
+			{
+				double pivot = 1 / (d + c);
+				pivots[k * width + j] = pivot;
+				c = -pivot;
+			}
+		}
+
+		transform = new SineTransform(width);
+		work = new double[width * height];
+	}
+
+	/**
+	 * @return true if the unknowns fill their bounding rectangle, i.e. the solution is exact
+	 */
+	public boolean isExact()
+	{
+		return numVars == width * height;
+	}
+
+	/**
+	 * z = A_box^-1 r, the unknowns outside the matte (if any) having a zero right-hand side
+	 * and being dropped afterwards
+	 *
+	 * @param r
+	 * @param z
+	 */
+	public void solve(double[] r, double[] z)
+	{
+		if (numVars == 0) return;
+
+		final int w = width, h = height;
+		final double[] u = work;
+
+		Arrays.fill(u, 0);
+		for (int i = 0; i < numVars; i++)
+			u[cell[i]] = r[i];
+
+		transformRows(u);
+
+		// Forward elimination down the columns, all of them a row at a time
+		for (int j = 0; j < w; j++)
+			u[j] *= pivots[j];
+
+		for (int k = 1; k < h; k++)
+		{
+			int row = k * w;
+			for (int j = 0; j < w; j++)
+				u[row + j] = (u[row + j] + u[row - w + j]) * pivots[row + j];
+		}
+
+		// Back substitution: u[k] += pivot[k] * u[k + 1]
+		for (int k = h - 2; k >= 0; k--)
+		{
+			int row = k * w;
+			for (int j = 0; j < w; j++)
+				u[row + j] += pivots[row + j] * u[row + w + j];
+		}
+
+		transformRows(u);
+
+		// The sine transform is its own inverse up to this factor
+		final double scale = 2.0 / (w + 1);
+		for (int i = 0; i < numVars; i++)
+			z[i] = u[cell[i]] * scale;
+	}
+
+	private void transformRows(double[] u)
+	{
+		for (int k = 0; k < height; k += 2)
+			transform.transform(u, k * width, k + 1 < height ? (k + 1) * width : -1);
+	}
+}
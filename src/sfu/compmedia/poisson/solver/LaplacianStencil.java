@@ -0,0 +1,189 @@
+package sfu.compmedia.poisson.solver;
+
+import java.util.Arrays;
+
+import org.ejml.data.DMatrixSparseCSC;
+
+/**
+ *
+ * A matrix-free form of the matrix A that PoissonImageEditor builds for the equation (7).
+ *
+ * Every row of A is the same 5-point Laplacian stencil: 4 on the diagonal and -1 for each
+ * neighbour that is an unknown as well. So instead of assembling a sparse matrix we only keep,
+ * for every unknown, the indices of its four neighbours, and the memory grows linearly with
+ * the number of unknowns.
+ *
+ */
+public class LaplacianStencil {
+
+	// Neighbour directions, going clockwise (same order as the assembly in Paste)
+	public static final int UP = 0;
+	public static final int RIGHT = 1;
+	public static final int DOWN = 2;
+	public static final int LEFT = 3;
+
+	public static final double DIAGONAL = 4;
+
+	final int numVars;
+
+	/**
+	 * Four entries per unknown, -1 means the neighbour is not an unknown (it either lies
+	 * on the boundary of Omega or outside of the image)
+	 */
+	final int[] neighbours;
+
+	/**
+	 * Pixel coordinates of every unknown (needed by the solvers that work on grids)
+	 */
+	final int[] xs, ys;
+
+	/**
+	 * Builds the stencil out of a ready neighbour table (see Matte.toStencil). The arrays
+	 * are not copied.
+	 *
+	 * @param numVars
+	 * @param neighbours four entries per unknown, in the order UP, RIGHT, DOWN, LEFT, -1 for none
+	 * @param xs pixel coordinates of every unknown
+	 * @param ys
+	 */
+	public LaplacianStencil(int numVars, int[] neighbours, int[] xs, int[] ys)
+	{
+		if (neighbours.length != numVars * 4 || xs.length != numVars || ys.length != numVars)
+			throw new IllegalArgumentException("array sizes do not match numVars");
+
+		this.numVars = numVars;
+		this.neighbours = neighbours;
+		this.xs = xs;
+		this.ys = ys;
+	}
+
+	/**
+	 * Builds the stencil of a sub-problem made of some of the unknowns of another stencil.
+	 * Neighbours that are not part of the subset become boundary.
+	 *
+	 * @param parent
+	 * @param subset indices of the unknowns in the parent, in the order they get here
+	 * @param localIndex scratch array with parent.getNumVars() entries, all -1; left that way
+	 */
+	LaplacianStencil(LaplacianStencil parent, int[] subset, int[] localIndex)
+	{
+		this.numVars = subset.length;
+		this.neighbours = new int[numVars * 4];
+		this.xs = new int[numVars];
+		this.ys = new int[numVars];
+
+		for (int i = 0; i < numVars; i++)
+			localIndex[subset[i]] = i;
+
+		for (int i = 0; i < numVars; i++)
+		{
+			int p = subset[i];
+			xs[i] = parent.xs[p];
+			ys[i] = parent.ys[p];
+
+			for (int d = 0; d < 4; d++)
+			{
+				int n = parent.neighbours[p * 4 + d];
+				neighbours[i * 4 + d] = n >= 0 ? localIndex[n] : -1;
+			}
+		}
+
+		for (int i = 0; i < numVars; i++)
+			localIndex[subset[i]] = -1;
+	}
+
+	public int getNumVars()
+	{
+		return numVars;
+	}
+
+	public int getX(int var)
+	{
+		return xs[var];
+	}
+
+	public int getY(int var)
+	{
+		return ys[var];
+	}
+
+	/**
+	 * Returns the index of the neighbouring unknown in the given direction, or -1
+	 *
+	 * @param var
+	 * @param direction one of UP, RIGHT, DOWN, LEFT
+	 * @return
+	 */
+	public int neighbour(int var, int direction)
+	{
+		return neighbours[var * 4 + direction];
+	}
+
+	/**
+	 * Forms A as a sparse matrix after all, for the direct solvers. The entries go straight
+	 * into the CSC arrays: A is symmetric, so column i holds the neighbours of unknown i, and
+	 * only need sorting by row.
+	 * 
+	 * @return
+	 */
+	public DMatrixSparseCSC toMatrix()
+	{
+		int nonZeros = numVars;
+		for (int k = 0; k < neighbours.length; k++)
+			if (neighbours[k] >= 0) nonZeros++;
+
+		DMatrixSparseCSC A = new DMatrixSparseCSC(numVars, numVars, nonZeros);
+		int[] column = new int[5];
+		int nz = 0;
+
+		for (int i = 0; i < numVars; i++)
+		{
+			A.col_idx[i] = nz;
+
+			int count = 0;
+			column[count++] = i;
+			for (int d = 0; d < 4; d++)
+			{
+				int n = neighbours[i * 4 + d];
+				if (n >= 0) column[count++] = n;
+			}
+
+			Arrays.sort(column, 0, count);
+
+			for (int k = 0; k < count; k++)
+			{
+				A.nz_rows[nz] = column[k];
+				A.nz_values[nz++] = column[k] == i ? DIAGONAL : -1;
+			}
+		}
+
+		A.col_idx[numVars] = nz;
+		A.nz_length = nz;
+		A.indicesSorted = true;
+
+		return A;
+	}
+
+	/**
+	 * Computes out = A * x without ever forming A
+	 *
+	 * @param x
+	 * @param out
+	 */
+	public void apply(double[] x, double[] out)
+	{
+		for (int i = 0; i < numVars; i++)
+		{
+			int base = i * 4;
+			double sum = DIAGONAL * x[i];
+
+			for (int d = 0; d < 4; d++)
+			{
+				int n = neighbours[base + d];
+				if (n >= 0) sum -= x[n];
+			}
+
+			out[i] = sum;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package sfu.compmedia.poisson.solver;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Identifies the topology of a matte, i.e. everything the matrix A depends on.
+ *
+ * A is built from the neighbour relations between the matte pixels only, so neither the
+ * paste position nor the pixels of either image matter, and neither does where the matte
+ * sits inside the source image. The key therefore holds the matte bitmap cropped to its
+ * bounding box, packed into bits, together with a precomputed hash.
+ *
+ */
+public final class MatteKey {
+
+	final int width, height;
+	final long[] bits;
+	final int hash;
+
+	/**
+	 * A key for a matte that is already cropped and packed: the bits of row y start at long
+	 * y * ((width + 63) / 64). The array is not copied, so it must not change afterwards.
+	 *
+	 * @param width
+	 * @param height
+	 * @param bits
+	 */
+	public MatteKey(int width, int height, long[] bits)
+	{
+		this.width = width;
+		this.height = height;
+		this.bits = bits;
+
+		hash = 31 * (31 * width + height) + Arrays.hashCode(bits);
+	}
+
+	/**
+	 * Approximate memory held by the key itself
+	 */
+	public long sizeInBytes()
+	{
+		return 32 + bits.length * 8L;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (!(o instanceof MatteKey)) return false;
+
+		MatteKey other = (MatteKey)o;
+		return hash == other.hash && width == other.width && height == other.height
+				&& Arrays.equals(bits, other.bits);
+	}
+}
@@ -0,0 +1,221 @@
+package sfu.compmedia.poisson.solver;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.data.FMatrixRMaj;
+import org.ejml.data.FMatrixSparseCSC;
+import org.ejml.interfaces.decomposition.DecompositionInterface;
+import org.ejml.interfaces.linsol.LinearSolverSparse;
+import org.ejml.ops.DConvertMatrixStruct;
+import org.ejml.sparse.FillReducing;
+import org.ejml.sparse.csc.CommonOps_DSCC;
+import org.ejml.sparse.csc.factory.LinearSolverFactory_FSCC;
+
+/**
+ *
+ * A sparse Cholesky solver whose factor is kept in single precision, which takes two thirds of
+ * the memory of a double one (4 bytes per value instead of 8, plus the 4 of the row index) and as
+ * much less memory traffic in the factorization and the triangular solves.
+ *
+ * A float factor alone would only give the solution to about 1e-7 times the condition number of
+ * A, which can be a visible error for big mattes. So the solution is improved by iterative
+ * refinement: the residual r = b - Ax is computed in double with A itself, the correction comes
+ * from the float factor, and this goes on until the residual is as small as a double solve
+ * would leave it. Every step gains about as many digits as the float factor is accurate to, so
+ * a few steps are enough.
+ *
+ * The entries of the Poisson matrix (4 and -1) are exact in float, so for it A is only kept in
+ * float and the residual is summed up in double from that; any other A is kept in double too.
+ *
+ * Keeps work arrays inside, so one solve at a time.
+ *
+ */
+public class MixedPrecisionCholesky implements LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> {
+
+	/**
+	 * The refinement stops when max |b - Ax| <= TOLERANCE * max |b|, or after MAX_STEPS solves
+	 */
+	public static final double TOLERANCE = 1e-12;
+	public static final int MAX_STEPS = 10;
+
+	final LinearSolverSparse<FMatrixSparseCSC, FMatrixRMaj> cholesky = LinearSolverFactory_FSCC.cholesky(FillReducing.NONE);
+
+	/**
+	 * A for the residuals: in float if that holds it exactly, in double otherwise (the other one
+	 * is null)
+	 */
+	private FMatrixSparseCSC single;
+	private DMatrixSparseCSC A;
+
+	private final DMatrixRMaj residual = new DMatrixRMaj(1, 1);
+	private final FMatrixRMaj residual32 = new FMatrixRMaj(1, 1);
+	private final FMatrixRMaj correction32 = new FMatrixRMaj(1, 1);
+
+	private int steps;
+
+	public MixedPrecisionCholesky()
+	{
+		//
+	}
+
+	/**
+	 * Factorizes A rounded to float. Unless float holds it exactly, A is kept (not copied) for the
+	 * refinement, so it must not change afterwards.
+	 */
+	@Override
+	public boolean setA(DMatrixSparseCSC A)
+	{
+		FMatrixSparseCSC single = new FMatrixSparseCSC(A.numRows, A.numCols, A.nz_length);
+		boolean exact = true;
+
+		System.arraycopy(A.col_idx, 0, single.col_idx, 0, A.numCols + 1);
+		System.arraycopy(A.nz_rows, 0, single.nz_rows, 0, A.nz_length);
+		for (int i = 0; i < A.nz_length; i++)
+		{
+			single.nz_values[i] = (float)A.nz_values[i];
+			exact &= single.nz_values[i] == A.nz_values[i];
+		}
+
+		single.nz_length = A.nz_length;
+		single.indicesSorted = A.indicesSorted;
+
+		this.single = exact ? single : null;
+		this.A = exact ? null : A;
+
+		// The factorization does not change its input (see modifiesA)
+		return cholesky.setA(single);
+	}
+
+	@Override
+	public double quality()
+	{
+		return cholesky.quality();
+	}
+
+	@Override
+	public void solve(DMatrixRMaj B, DMatrixRMaj X)
+	{
+		final int n = single != null ? single.numRows : A.numRows, cols = B.numCols, size = n * cols;
+
+		X.reshape(n, cols);
+		X.zero();
+		residual.setTo(B);
+		residual32.reshape(n, cols);
+		correction32.reshape(n, cols);
+
+		final double target = TOLERANCE * maxAbs(B);
+
+		steps = 0;
+		while (steps < MAX_STEPS)
+		{
+			steps++;
+
+			for (int i = 0; i < size; i++)
+				residual32.data[i] = (float)residual.data[i];
+
+			cholesky.solve(residual32, correction32);
+
+			for (int i = 0; i < size; i++)
+				X.data[i] += correction32.data[i];
+
+			residual(B, X);
+
+			if (maxAbs(residual) <= target)
+				break;
+		}
+	}
+
+	/**
+	 * r = b - Ax, in double
+	 */
+	private void residual(DMatrixRMaj B, DMatrixRMaj X)
+	{
+		final int cols = B.numCols;
+
+		if (A != null)
+		{
+			CommonOps_DSCC.mult(A, X, residual);
+			for (int i = 0; i < B.getNumElements(); i++)
+				residual.data[i] = B.data[i] - residual.data[i];
+			return;
+		}
+
+		System.arraycopy(B.data, 0, residual.data, 0, B.getNumElements());
+
+		// Column j of A times row j of X, subtracted from the rows of its non-zeros
+		for (int j = 0; j < single.numCols; j++)
+		{
+			for (int k = single.col_idx[j]; k < single.col_idx[j + 1]; k++)
+			{
+				final double a = single.nz_values[k];
+				final int row = single.nz_rows[k] * cols;
+
+				for (int c = 0; c < cols; c++)
+					residual.data[row + c] -= a * X.data[j * cols + c];
+			}
+		}
+	}
+
+	private static double maxAbs(DMatrixRMaj M)
+	{
+		double max = 0;
+		for (int i = 0; i < M.getNumElements(); i++)
+			max = Math.max(max, Math.abs(M.data[i]));
+
+		return max;
+	}
+
+	/**
+	 * @return how many times the float factor was solved with in the last solve
+	 */
+	public int getSteps()
+	{
+		return steps;
+	}
+
+	/**
+	 * Solves as solve() does, with B and X densified: the refinement works on dense residuals
+	 */
+	@Override
+	public void solveSparse(DMatrixSparseCSC B, DMatrixSparseCSC X)
+	{
+		DMatrixRMaj dense = new DMatrixRMaj(1, 1);
+		solve(DConvertMatrixStruct.convert(B, (DMatrixRMaj)null), dense);
+
+		X.setTo(DConvertMatrixStruct.convert(dense, (DMatrixSparseCSC)null, 0));
+	}
+
+	@Override
+	public boolean modifiesA()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean modifiesB()
+	{
+		return false;
+	}
+
+	/**
+	 * The single precision decomposition
+	 */
+	@Override
+	@SuppressWarnings("rawtypes")
+	public <D extends DecompositionInterface> D getDecomposition()
+	{
+		return cholesky.getDecomposition();
+	}
+
+	@Override
+	public void setStructureLocked(boolean locked)
+	{
+		cholesky.setStructureLocked(locked);
+	}
+
+	@Override
+	public boolean isStructureLocked()
+	{
+		return cholesky.isStructureLocked();
+	}
+}
@@ -0,0 +1,11 @@
+package sfu.compmedia.poisson.solver;
+
+/*
+ * Recursion pattern of the multigrid solver: one (V) or two (W) visits of the coarser
+ * level per cycle
+ */
+
+public enum MultigridCycle {
+	V,
+	W
+}
@@ -0,0 +1,733 @@
+package sfu.compmedia.poisson.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ *
+ * Geometric multigrid solver for the Poisson equation over an irregular region (Omega).
+ *
+ * The unknowns are laid out on a grid covering the bounding box of Omega, with a mask telling
+ * which cells are unknowns; everything outside the mask is Dirichlet boundary, exactly like in
+ * PoissonImageEditor.Paste. Coarser levels keep every other pixel in both directions, and a coarse
+ * point belongs to the coarse Omega only if the fine pixel under it does, so the coarse boundary
+ * never leaves the fine one. The correction is brought back with bilinear interpolation P
+ * (limited to Omega), the residual is restricted with its transpose P^T, and the operator of each
+ * coarse level is the Galerkin product P^T A P of the one above it - a 9-point stencil stored per
+ * point, which follows the fine boundary however irregular it is. Gauss-Seidel is the smoother.
+ * The finest level keeps the plain 4/-1 stencil and holds most of the work: there the sweeps are
+ * red-black, and they and the residual go through StencilKernels (vectorized when the JVM allows
+ * it).
+ *
+ * The work per cycle is linear in the number of unknowns and there is no fill-in at all.
+ *
+ */
+public class MultigridSolver {
+
+	/**
+	 * Returned by solve() when the cycles ran out before the tolerance was met
+	 */
+	public static final int NOT_CONVERGED = -1;
+
+	MultigridCycle cycle = MultigridCycle.V;
+
+	/**
+	 * The cycles stop when ||b - Ax|| <= tolerance * ||b||
+	 */
+	double tolerance = 1e-6;
+	int maxCycles = 100;
+	int preSmoothing = 2;
+	int postSmoothing = 2;
+
+	StencilKernels kernels = StencilKernels.get();
+
+	// Levels with this many unknowns (or fewer) are not coarsened any further
+	static final int coarsestSize = 64;
+	static final int maxCoarsestSweeps = 500;
+
+	public MultigridSolver()
+	{
+		//
+	}
+
+	public MultigridSolver(MultigridCycle cycle, double tolerance, int maxCycles)
+	{
+		setCycle(cycle);
+		setTolerance(tolerance);
+		setMaxCycles(maxCycles);
+	}
+
+	public MultigridCycle getCycle()
+	{
+		return cycle;
+	}
+
+	public void setCycle(MultigridCycle cycle)
+	{
+		if (cycle == null)
+			throw new IllegalArgumentException("cycle must not be null");
+
+		this.cycle = cycle;
+	}
+
+	public double getTolerance()
+	{
+		return tolerance;
+	}
+
+	public void setTolerance(double tolerance)
+	{
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("tolerance must be positive");
+
+		this.tolerance = tolerance;
+	}
+
+	public int getMaxCycles()
+	{
+		return maxCycles;
+	}
+
+	public void setMaxCycles(int maxCycles)
+	{
+		if (maxCycles < 1)
+			throw new IllegalArgumentException("maxCycles must be at least 1");
+
+		this.maxCycles = maxCycles;
+	}
+
+	public void setSmoothing(int preSmoothing, int postSmoothing)
+	{
+		if (preSmoothing < 0 || postSmoothing < 0 || preSmoothing + postSmoothing == 0)
+			throw new IllegalArgumentException("at least one smoothing sweep is required");
+
+		this.preSmoothing = preSmoothing;
+		this.postSmoothing = postSmoothing;
+	}
+
+	public StencilKernels getKernels()
+	{
+		return kernels;
+	}
+
+	public void setKernels(StencilKernels kernels)
+	{
+		if (kernels == null)
+			throw new IllegalArgumentException("kernels must not be null");
+
+		this.kernels = kernels;
+	}
+
+	/**
+	 * One level of the grid hierarchy
+	 */
+	static class Level {
+		final int w, h;
+		final boolean[] mask;
+		final int count;
+		final double[] u, f, r;
+
+		/**
+		 * 3x3 stencil per point (row-major, centre at 4) for the coarse levels. The finest
+		 * level has none, it is the plain 5-point Laplacian.
+		 */
+		final double[] stencil;
+
+		/**
+		 * The unknowns of either colour, for the red-black sweeps of the kernels. Only the finest
+		 * level has them: it has a pixel of border all around, and u stays 0 outside Omega there.
+		 */
+		final boolean[][] colours;
+
+		Level(int w, int h, boolean[] mask, double[] stencil)
+		{
+			this.w = w;
+			this.h = h;
+			this.mask = mask;
+			this.stencil = stencil;
+
+			int c = 0;
+			for (boolean m : mask) if (m) c++;
+			this.count = c;
+
+			if (stencil == null)
+			{
+				colours = new boolean[2][w * h];
+				for (int y = 0; y < h; y++)
+				{
+					for (int x = 0; x < w; x++)
+						colours[(x + y) & 1][y * w + x] = mask[y * w + x];
+				}
+			}
+			else
+			{
+				colours = null;
+			}
+
+			u = new double[w * h];
+			f = new double[w * h];
+			r = new double[w * h];
+		}
+
+		/**
+		 * The same level with work vectors of its own (the mask and the stencil are shared,
+		 * they are never changed)
+		 */
+		Level(Level level)
+		{
+			this.w = level.w;
+			this.h = level.h;
+			this.mask = level.mask;
+			this.stencil = level.stencil;
+			this.count = level.count;
+			this.colours = level.colours;
+
+			u = new double[w * h];
+			f = new double[w * h];
+			r = new double[w * h];
+		}
+
+		/**
+		 * Value of v at (x, y), zero outside the grid or outside Omega (the boundary of the
+		 * error equation is homogeneous)
+		 */
+		double value(double[] v, int x, int y)
+		{
+			if (x < 0 || y < 0 || x >= w || y >= h) return 0;
+
+			int i = y * w + x;
+			return mask[i] ? v[i] : 0;
+		}
+
+		double diagonal(int i)
+		{
+			return stencil == null ? LaplacianStencil.DIAGONAL : stencil[9 * i + 4];
+		}
+
+		/**
+		 * Off-diagonal part of the i-th row of A times v
+		 */
+		double offDiagonal(double[] v, int x, int y, int i)
+		{
+			double sum = 0;
+
+			if (stencil == null)
+			{
+				if (y > 0 && mask[i - w]) sum -= v[i - w];
+				if (x < w - 1 && mask[i + 1]) sum -= v[i + 1];
+				if (y < h - 1 && mask[i + w]) sum -= v[i + w];
+				if (x > 0 && mask[i - 1]) sum -= v[i - 1];
+			}
+			else
+			{
+				int k = 9 * i;
+				for (int dy = -1; dy <= 1; dy++)
+				{
+					for (int dx = -1; dx <= 1; dx++, k++)
+					{
+						if ((dx != 0 || dy != 0) && stencil[k] != 0)
+							sum += stencil[k] * value(v, x + dx, y + dy);
+					}
+				}
+			}
+
+			return sum;
+		}
+
+		/**
+		 * One red-black Gauss-Seidel sweep (on the coarse levels the 9-point stencil couples
+		 * points of the same colour, which just makes it an ordinary Gauss-Seidel sweep)
+		 */
+		void relax(StencilKernels kernels)
+		{
+			if (colours != null)
+			{
+				// The first and the last row are all border
+				for (int color = 0; color < 2; color++)
+					kernels.relax(u, f, colours[color], w, w, (h - 1) * w, 1);
+				return;
+			}
+
+			for (int color = 0; color < 2; color++)
+			{
+				for (int y = 0; y < h; y++)
+				{
+					for (int x = (y + color) & 1; x < w; x += 2)
+					{
+						int i = y * w + x;
+						if (mask[i])
+							u[i] = (f[i] - offDiagonal(u, x, y, i)) / diagonal(i);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Computes r = f - Au and returns the squared norm of r
+		 */
+		double residual(StencilKernels kernels)
+		{
+			if (colours != null)
+				return kernels.residual(u, f, mask, r, w, w, (h - 1) * w);
+
+			double norm = 0;
+
+			for (int y = 0; y < h; y++)
+			{
+				for (int x = 0; x < w; x++)
+				{
+					int i = y * w + x;
+					if (mask[i])
+					{
+						r[i] = f[i] - (diagonal(i) * u[i] + offDiagonal(u, x, y, i));
+						norm += r[i] * r[i];
+					}
+					else
+					{
+						r[i] = 0;
+					}
+				}
+			}
+
+			return norm;
+		}
+
+		/**
+		 * Builds the next coarser level. Coarse point (X, Y) sits on top of fine pixel (2X, 2Y)
+		 * and belongs to the coarse Omega if that pixel is an unknown.
+		 *
+		 * The coarse operator is the Galerkin product P^T A P, P being the bilinear interpolation
+		 * limited to Omega. Simply re-discretizing the Laplacian on the coarse grid does not work
+		 * for irregular mattes: the coarse boundary ends up in the wrong place and the cycles can
+		 * diverge. The Galerkin operator follows the fine boundary exactly and keeps the cycles
+		 * convergent for any shape.
+		 */
+		Level coarsen()
+		{
+			int cw = (w + 1) / 2;
+			int ch = (h + 1) / 2;
+			boolean[] cmask = new boolean[cw * ch];
+
+			for (int y = 0; y < ch; y++)
+				for (int x = 0; x < cw; x++)
+					cmask[y * cw + x] = mask[(2 * y) * w + 2 * x];
+
+			double[] cstencil = new double[9 * cw * ch];
+			double[] av = new double[25];
+
+			for (int cy = 0; cy < ch; cy++)
+			{
+				for (int cx = 0; cx < cw; cx++)
+				{
+					int ci = cy * cw + cx;
+					if (!cmask[ci]) continue;
+
+					// A * (P e_J) on the 5x5 fine window around the point
+					for (int wy = -2; wy <= 2; wy++)
+					{
+						for (int wx = -2; wx <= 2; wx++)
+						{
+							int fx = 2 * cx + wx;
+							int fy = 2 * cy + wy;
+							double sum = 0;
+
+							if (fx >= 0 && fy >= 0 && fx < w && fy < h && mask[fy * w + fx])
+							{
+								int fi = fy * w + fx;
+								for (int dy = -1; dy <= 1; dy++)
+								{
+									for (int dx = -1; dx <= 1; dx++)
+									{
+										double a = entry(fi, fx, fy, dx, dy);
+										if (a != 0)
+											sum += a * interpolationWeight(fx + dx - 2 * cx, fy + dy - 2 * cy);
+									}
+								}
+							}
+
+							av[(wy + 2) * 5 + (wx + 2)] = sum;
+						}
+					}
+
+					// ...and restricted back with P^T onto the neighbouring coarse points
+					for (int ny = -1; ny <= 1; ny++)
+					{
+						for (int nx = -1; nx <= 1; nx++)
+						{
+							int kx = cx + nx;
+							int ky = cy + ny;
+							if (kx < 0 || ky < 0 || kx >= cw || ky >= ch || !cmask[ky * cw + kx]) continue;
+
+							double sum = 0;
+							for (int wy = -2; wy <= 2; wy++)
+							{
+								for (int wx = -2; wx <= 2; wx++)
+								{
+									double a = av[(wy + 2) * 5 + (wx + 2)];
+									if (a != 0)
+										sum += a * interpolationWeight(wx - 2 * nx, wy - 2 * ny);
+								}
+							}
+
+							cstencil[9 * ci + (ny + 1) * 3 + (nx + 1)] = sum;
+						}
+					}
+				}
+			}
+
+			return new Level(cw, ch, cmask, cstencil);
+		}
+
+		/**
+		 * The (i, neighbour at dx, dy) entry of A, zero if the neighbour is not an unknown
+		 */
+		private double entry(int i, int x, int y, int dx, int dy)
+		{
+			int nx = x + dx;
+			int ny = y + dy;
+			if (nx < 0 || ny < 0 || nx >= w || ny >= h || !mask[ny * w + nx]) return 0;
+
+			if (stencil != null)
+				return stencil[9 * i + (dy + 1) * 3 + (dx + 1)];
+
+			if (dx == 0 && dy == 0) return LaplacianStencil.DIAGONAL;
+			return (dx == 0 || dy == 0) ? -1 : 0;
+		}
+	}
+
+	/**
+	 * Bilinear interpolation weight of a coarse point for a fine pixel at offset (dx, dy)
+	 * from the pixel right under that coarse point
+	 */
+	static double interpolationWeight(int dx, int dy)
+	{
+		if (dx < -1 || dx > 1 || dy < -1 || dy > 1) return 0;
+
+		return (dx == 0 ? 1.0 : 0.5) * (dy == 0 ? 1.0 : 0.5);
+	}
+
+	/**
+	 * Solves Ax=b. Whatever x holds on entry is used as the initial guess.
+	 *
+	 * @param A
+	 * @param b
+	 * @param x
+	 * @return the number of cycles performed, or NOT_CONVERGED if the tolerance was not met
+	 *         within maxCycles (x then holds the last iterate)
+	 */
+	public int solve(LaplacianStencil A, double[] b, double[] x)
+	{
+		return solve(A, b, x, null);
+	}
+
+	/**
+	 * Same as above, checking for cancellation before every cycle
+	 *
+	 * @param A
+	 * @param b
+	 * @param x
+	 * @param cancel may be null
+	 * @return the number of cycles performed, or NOT_CONVERGED
+	 * @throws CancellationException
+	 */
+	public int solve(LaplacianStencil A, double[] b, double[] x, Cancellation cancel)
+	{
+		if (A.getNumVars() == 0) return 0;
+
+		return solve(prepare(A), b, x, cancel);
+	}
+
+	/**
+	 * The grids of one problem with their coarse operators, ready for any number of solves with
+	 * different right-hand sides (see prepare). The levels keep their work vectors, so solves on
+	 * the same hierarchy run one at a time.
+	 */
+	public static class Hierarchy {
+		final int numVars;
+
+		/**
+		 * Cell of the finest grid of every unknown
+		 */
+		final int[] cell;
+		final Level[] levels;
+
+		Hierarchy(int numVars, int[] cell, Level[] levels)
+		{
+			this.numVars = numVars;
+			this.cell = cell;
+			this.levels = levels;
+		}
+
+		public int getNumVars()
+		{
+			return numVars;
+		}
+
+		/**
+		 * A solve uses the work vectors of the hierarchy, so solves on one hierarchy run one at
+		 * a time. A working copy shares the grids and the operators, and only has work vectors
+		 * of its own, so that e.g. the channels of a paste can be solved side by side.
+		 *
+		 * @return
+		 */
+		public Hierarchy workingCopy()
+		{
+			Level[] copies = new Level[levels.length];
+			for (int l = 0; l < levels.length; l++)
+				copies[l] = new Level(levels[l]);
+
+			return new Hierarchy(numVars, cell, copies);
+		}
+
+		/**
+		 * Approximate memory footprint (grids, operators and work vectors)
+		 *
+		 * @return
+		 */
+		public long sizeInBytes()
+		{
+			long bytes = 4L * cell.length;
+
+			for (Level level : levels)
+			{
+				long points = (long)level.w * level.h;
+				bytes += points * (1 + 3 * 8);
+				if (level.stencil != null) bytes += 8L * level.stencil.length;
+				if (level.colours != null) bytes += 2 * points;
+			}
+
+			return bytes;
+		}
+	}
+
+	/**
+	 * Builds the grid hierarchy (and the Galerkin operators) of A, which is most of the work of
+	 * a solve that starts from a good guess
+	 *
+	 * @param A
+	 * @return
+	 */
+	public Hierarchy prepare(LaplacianStencil A)
+	{
+		final int n = A.getNumVars();
+		if (n == 0)
+			throw new IllegalArgumentException("A has no unknowns");
+
+		// The finest grid covers the bounding box of Omega plus a 1 pixel border
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++)
+		{
+			minX = Math.min(minX, A.xs[i]);
+			minY = Math.min(minY, A.ys[i]);
+			maxX = Math.max(maxX, A.xs[i]);
+			maxY = Math.max(maxY, A.ys[i]);
+		}
+		final int ox = minX - 1;
+		final int oy = minY - 1;
+		final int gw = maxX - minX + 3;
+		final int gh = maxY - minY + 3;
+
+		boolean[] mask = new boolean[gw * gh];
+		int[] cell = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			cell[i] = (A.ys[i] - oy) * gw + (A.xs[i] - ox);
+			mask[cell[i]] = true;
+		}
+
+		return new Hierarchy(n, cell, buildHierarchy(new Level(gw, gh, mask, null)));
+	}
+
+	/**
+	 * Solves Ax=b on a prepared hierarchy of A. Whatever x holds on entry is used as the initial
+	 * guess, checking for cancellation before every cycle.
+	 *
+	 * @param hierarchy
+	 * @param b
+	 * @param x
+	 * @param cancel may be null
+	 * @return the number of cycles performed, or NOT_CONVERGED
+	 * @throws CancellationException
+	 */
+	public int solve(Hierarchy hierarchy, double[] b, double[] x, Cancellation cancel)
+	{
+		synchronized (hierarchy)
+		{
+			return cycles(hierarchy, b, x, cancel);
+		}
+	}
+
+	private int cycles(Hierarchy hierarchy, double[] b, double[] x, Cancellation cancel)
+	{
+		final int n = hierarchy.numVars;
+		final int[] cell = hierarchy.cell;
+		final Level[] levels = hierarchy.levels;
+
+		double bNorm = 0;
+		for (int i = 0; i < n; i++) bNorm += b[i] * b[i];
+		bNorm = Math.sqrt(bNorm);
+
+		if (bNorm == 0)
+		{
+			for (int i = 0; i < n; i++) x[i] = 0;
+			return 0;
+		}
+
+		Level fine = levels[0];
+
+		for (int i = 0; i < n; i++)
+		{
+			fine.f[cell[i]] = b[i];
+			fine.u[cell[i]] = x[i];
+		}
+
+		int cycles = 0;
+		double target = tolerance * bNorm;
+		double residual = Math.sqrt(fine.residual(kernels));
+
+		while (residual > target && cycles < maxCycles)
+		{
+			if (cancel != null && cancel.isCancelled())
+				throw new CancellationException("Solve cancelled after " + cycles + " cycles");
+
+			cycles++;
+			cycle(levels, 0);
+
+			residual = Math.sqrt(fine.residual(kernels));
+		}
+
+		for (int i = 0; i < n; i++)
+			x[i] = fine.u[cell[i]];
+
+		return residual <= target ? cycles : NOT_CONVERGED;
+	}
+
+	private Level[] buildHierarchy(Level fine)
+	{
+		ArrayList<Level> list = new ArrayList<Level>();
+		list.add(fine);
+
+		Level current = fine;
+		while (current.count > coarsestSize && (current.w > 1 || current.h > 1))
+		{
+			Level coarse = current.coarsen();
+
+			// Very thin regions can vanish entirely, the smoother has to do the job then
+			if (coarse.count == 0) break;
+
+			current = coarse;
+			list.add(current);
+		}
+
+		return list.toArray(new Level[list.size()]);
+	}
+
+	private void cycle(Level[] levels, int l)
+	{
+		Level fine = levels[l];
+
+		if (l == levels.length - 1)
+		{
+			solveCoarsest(fine, kernels);
+			return;
+		}
+
+		Level coarse = levels[l + 1];
+
+		for (int s = 0; s < preSmoothing; s++)
+			fine.relax(kernels);
+
+		fine.residual(kernels);
+		restrict(fine, coarse);
+		Arrays.fill(coarse.u, 0);
+
+		int visits = (cycle == MultigridCycle.W) ? 2 : 1;
+		for (int v = 0; v < visits; v++)
+			cycle(levels, l + 1);
+
+		prolongate(coarse, fine);
+
+		for (int s = 0; s < postSmoothing; s++)
+			fine.relax(kernels);
+	}
+
+	/**
+	 * Restriction with P^T (full weighting), the counterpart of the Galerkin operator
+	 */
+	private static void restrict(Level fine, Level coarse)
+	{
+		for (int y = 0; y < coarse.h; y++)
+		{
+			for (int x = 0; x < coarse.w; x++)
+			{
+				int i = y * coarse.w + x;
+				if (!coarse.mask[i])
+				{
+					coarse.f[i] = 0;
+					continue;
+				}
+
+				int fx = 2 * x;
+				int fy = 2 * y;
+
+				coarse.f[i] = fine.value(fine.r, fx, fy)
+						+ 0.5 * (fine.value(fine.r, fx, fy - 1) + fine.value(fine.r, fx + 1, fy)
+								+ fine.value(fine.r, fx, fy + 1) + fine.value(fine.r, fx - 1, fy))
+						+ 0.25 * (fine.value(fine.r, fx - 1, fy - 1) + fine.value(fine.r, fx + 1, fy - 1)
+								+ fine.value(fine.r, fx + 1, fy + 1) + fine.value(fine.r, fx - 1, fy + 1));
+			}
+		}
+	}
+
+	/**
+	 * Adds the bilinearly interpolated coarse correction to the fine unknowns
+	 */
+	private static void prolongate(Level coarse, Level fine)
+	{
+		for (int y = 0; y < fine.h; y++)
+		{
+			int cy = y >> 1;
+			boolean oddY = (y & 1) == 1;
+
+			for (int x = 0; x < fine.w; x++)
+			{
+				int i = y * fine.w + x;
+				if (!fine.mask[i]) continue;
+
+				int cx = x >> 1;
+				boolean oddX = (x & 1) == 1;
+
+				double e = coarse.value(coarse.u, cx, cy);
+
+				if (oddX && oddY)
+					e = (e + coarse.value(coarse.u, cx + 1, cy) + coarse.value(coarse.u, cx, cy + 1)
+							+ coarse.value(coarse.u, cx + 1, cy + 1)) / 4.0;
+				else if (oddX)
+					e = (e + coarse.value(coarse.u, cx + 1, cy)) / 2.0;
+				else if (oddY)
+					e = (e + coarse.value(coarse.u, cx, cy + 1)) / 2.0;
+
+				fine.u[i] += e;
+			}
+		}
+	}
+
+	/**
+	 * The coarsest level is tiny, so plain relaxation until it settles is good enough
+	 */
+	private static void solveCoarsest(Level level, StencilKernels kernels)
+	{
+		double fNorm = 0;
+		for (int i = 0; i < level.f.length; i++) fNorm += level.f[i] * level.f[i];
+
+		for (int s = 0; s < maxCoarsestSweeps; s++)
+		{
+			level.relax(kernels);
+
+			if (level.residual(kernels) <= 1e-20 * fNorm)
+				break;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package sfu.compmedia.poisson.solver;
+
+/**
+ *
+ * A fill-reducing order for the Cholesky factorization of A, from the positions of the pixels
+ * alone (geometric nested dissection).
+ *
+ * Eliminating the unknowns row by row, as they are numbered, every unknown of a row fills in
+ * towards the whole row below it, so a w-pixel wide matte gets about w non-zeros per row of L:
+ * O(n^1.5) in all for a square one. But with the 5-point stencil, a single column of pixels
+ * cuts a matte in two halves with no entries of A between them. Numbering the two halves first
+ * and the column (the separator) last, the factorization of each half stays within that half,
+ * and only the separator fills in completely. Doing the same for the halves, recursively, down
+ * to small blocks, the fill comes to O(n log n).
+ *
+ * The cut is always across the longer side of the bounding box of the pixels, at the median
+ * pixel, so both halves get about the same number of unknowns.
+ *
+ */
+public final class NestedDissection {
+
+	/**
+	 * Blocks of at most this many unknowns keep their order
+	 */
+	static final int LEAF_SIZE = 64;
+
+	private NestedDissection()
+	{
+		//
+	}
+
+	/**
+	 * @param A
+	 * @return order[i] is the unknown to be eliminated i-th
+	 */
+	public static int[] order(LaplacianStencil A)
+	{
+		return order(A.xs, A.ys);
+	}
+
+	/**
+	 * @param xs position of every unknown, on the pixel grid
+	 * @param ys
+	 * @return order[i] is the unknown to be eliminated i-th
+	 */
+	public static int[] order(int[] xs, int[] ys)
+	{
+		final int n = xs.length;
+
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+
+		dissect(order, new int[n], 0, n, xs, ys);
+
+		return order;
+	}
+
+	/**
+	 * Orders order[from..to) in place: the part before the separator, the part after it, and the
+	 * separator itself
+	 */
+	private static void dissect(int[] order, int[] buffer, int from, int to, int[] xs, int[] ys)
+	{
+		if (to - from <= LEAF_SIZE) return;
+
+		int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+		int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+
+		for (int i = from; i < to; i++)
+		{
+			int v = order[i];
+			minX = Math.min(minX, xs[v]);
+			maxX = Math.max(maxX, xs[v]);
+			minY = Math.min(minY, ys[v]);
+			maxY = Math.max(maxY, ys[v]);
+		}
+
+		// Cutting across the longer side, by a column (or a row) of pixels
+		final boolean vertical = maxX - minX >= maxY - minY;
+		final int[] coords = vertical ? xs : ys;
+		final int min = vertical ? minX : minY, max = vertical ? maxX : maxY;
+
+		// The median position, from a histogram of the positions
+		int[] counts = new int[max - min + 1];
+		for (int i = from; i < to; i++)
+			counts[coords[order[i]] - min]++;
+
+		int cut = min, below = 0;
+		while (below + counts[cut - min] <= (to - from) / 2)
+		{
+			below += counts[cut - min];
+			cut++;
+		}
+
+		// Stable three-way split: before the cut, after it, on it
+		int before = from, after = from + below, on = to - counts[cut - min];
+		final int afterStart = after, onStart = on;
+
+		for (int i = from; i < to; i++)
+		{
+			int v = order[i];
+			int c = coords[v];
+
+			if (c < cut) buffer[before++] = v;
+			else if (c > cut) buffer[after++] = v;
+			else buffer[on++] = v;
+		}
+
+		System.arraycopy(buffer, from, order, from, to - from);
+
+		dissect(order, buffer, from, afterStart, xs, ys);
+		dissect(order, buffer, afterStart, onStart, xs, ys);
+	}
+}
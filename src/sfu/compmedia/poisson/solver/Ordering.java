@@ -0,0 +1,11 @@
+package sfu.compmedia.poisson.solver;
+
+/*
+ * Order the unknowns are eliminated in by the sparse Cholesky factorizations (see
+ * NestedDissection)
+ */
+
+public enum Ordering {
+	NATURAL,
+	NESTED_DISSECTION
+}
@@ -0,0 +1,137 @@
+package sfu.compmedia.poisson.solver;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.interfaces.decomposition.DecompositionInterface;
+import org.ejml.interfaces.linsol.LinearSolverSparse;
+import org.ejml.sparse.FillReducing;
+import org.ejml.sparse.csc.CommonOps_DSCC;
+import org.ejml.sparse.csc.factory.LinearSolverFactory_DSCC;
+
+/**
+ *
+ * The sparse Cholesky solver of EJML (or MixedPrecisionCholesky), with the unknowns eliminated in
+ * an order of our own (EJML has no fill-reducing orderings for Cholesky): A is permuted
+ * symmetrically before it is factorized, and so is every right-hand side, and the solution is put
+ * back in the original order. To the caller it is just another LinearSolverSparse.
+ *
+ * Like the solver it wraps, it keeps work arrays inside, so one solve at a time.
+ *
+ */
+public class PermutedCholesky implements LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> {
+
+	final LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> cholesky;
+
+	/**
+	 * order[i] is the unknown eliminated i-th, position[v] is where unknown v ends up
+	 */
+	final int[] order, position;
+
+	private final DMatrixRMaj permutedB = new DMatrixRMaj(1, 1);
+	private final DMatrixRMaj permutedX = new DMatrixRMaj(1, 1);
+
+	/**
+	 * @param order order[i] is the unknown to be eliminated i-th (e.g. from NestedDissection)
+	 */
+	public PermutedCholesky(int[] order)
+	{
+		this(order, LinearSolverFactory_DSCC.cholesky(FillReducing.NONE));
+	}
+
+	/**
+	 * @param order order[i] is the unknown to be eliminated i-th
+	 * @param cholesky the solver to hand the permuted A to, which must not reorder it itself
+	 */
+	public PermutedCholesky(int[] order, LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> cholesky)
+	{
+		this.cholesky = cholesky;
+		this.order = order.clone();
+		this.position = CommonOps_DSCC.permutationInverse(order, order.length);
+	}
+
+	/**
+	 * Factorizes P A P^T. A itself is left alone.
+	 */
+	@Override
+	public boolean setA(DMatrixSparseCSC A)
+	{
+		if (A.numRows != order.length || A.numCols != order.length)
+			throw new IllegalArgumentException("A does not match the order");
+
+		DMatrixSparseCSC permuted = new DMatrixSparseCSC(A.numRows, A.numCols, A.nz_length);
+		CommonOps_DSCC.permute(position, A, order, permuted);
+
+		return cholesky.setA(permuted);
+	}
+
+	@Override
+	public double quality()
+	{
+		return cholesky.quality();
+	}
+
+	@Override
+	public void solve(DMatrixRMaj B, DMatrixRMaj X)
+	{
+		final int n = order.length, cols = B.numCols;
+
+		permutedB.reshape(n, cols);
+		permutedX.reshape(n, cols);
+		X.reshape(n, cols);
+
+		for (int i = 0; i < n; i++)
+			System.arraycopy(B.data, order[i] * cols, permutedB.data, i * cols, cols);
+
+		cholesky.solve(permutedB, permutedX);
+
+		for (int i = 0; i < n; i++)
+			System.arraycopy(permutedX.data, i * cols, X.data, order[i] * cols, cols);
+	}
+
+	@Override
+	public void solveSparse(DMatrixSparseCSC B, DMatrixSparseCSC X)
+	{
+		DMatrixSparseCSC permutedB = new DMatrixSparseCSC(B.numRows, B.numCols, B.nz_length);
+		DMatrixSparseCSC permutedX = new DMatrixSparseCSC(order.length, B.numCols, 0);
+
+		// Row v of B goes to row position[v], row i of the solution back to row order[i]
+		CommonOps_DSCC.permuteRowInv(position, B, permutedB);
+		cholesky.solveSparse(permutedB, permutedX);
+		CommonOps_DSCC.permuteRowInv(order, permutedX, X);
+	}
+
+	@Override
+	public boolean modifiesA()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean modifiesB()
+	{
+		return false;
+	}
+
+	/**
+	 * The decomposition of the permuted A (its factor has the same number of non-zeros as
+	 * the one of A in this order would)
+	 */
+	@Override
+	@SuppressWarnings("rawtypes")
+	public <D extends DecompositionInterface> D getDecomposition()
+	{
+		return cholesky.getDecomposition();
+	}
+
+	@Override
+	public void setStructureLocked(boolean locked)
+	{
+		cholesky.setStructureLocked(locked);
+	}
+
+	@Override
+	public boolean isStructureLocked()
+	{
+		return cholesky.isStructureLocked();
+	}
+}
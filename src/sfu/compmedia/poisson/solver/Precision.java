@@ -0,0 +1,11 @@
+package sfu.compmedia.poisson.solver;
+
+/*
+ * Arithmetic of the sparse Cholesky factorization: all double, or the factor in float with
+ * the solution refined in double (see MixedPrecisionCholesky)
+ */
+
+public enum Precision {
+	DOUBLE,
+	MIXED
+}
@@ -0,0 +1,12 @@
+package sfu.compmedia.poisson.solver;
+
+/*
+ * Preconditioners available to the conjugate gradient solver
+ */
+
+public enum Preconditioner {
+	NONE,
+	JACOBI,
+	INCOMPLETE_CHOLESKY,
+	SPECTRAL
+}
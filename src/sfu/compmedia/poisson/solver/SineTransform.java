@@ -0,0 +1,206 @@
+package sfu.compmedia.poisson.solver;
+
+import java.util.Arrays;
+
+/**
+ *
+ * The discrete sine transform (DST-I) of a fixed length n, in O(n log n):
+ * y[k] = sum of x[j] * sin(pi * (j + 1) * (k + 1) / (n + 1)) over j = 0..n-1.
+ *
+ * The sequence is extended to an odd one of length 2(n + 1), whose Fourier transform is
+ * -2i times the sine transform. The Fourier transform is a plain radix-2 FFT when 2(n + 1) is a
+ * power of two, otherwise Bluestein's algorithm turns it into a convolution that is done with
+ * power-of-two FFTs. Since the result of the odd extension is purely imaginary, two rows are
+ * transformed at once, one in the real part and one in the imaginary part.
+ *
+ * Applying the transform twice gives back the input times (n + 1) / 2.
+ *
+ * Keeps its work arrays, so one instance is used by one thread at a time.
+ *
+ */
+final class SineTransform {
+
+	final int n;
+
+	/**
+	 * Length of the odd extension (m), and of the FFTs (size, a power of two)
+	 */
+	private final int m, size;
+
+	private final boolean bluestein;
+
+	// FFT of the given size: twiddle factors and the bit-reversed order
+	private final double[] cos, sin;
+	private final int[] reversed;
+
+	/**
+	 * Bluestein only: the chirp exp(-i pi k^2 / m), and the Fourier transform of its conjugate
+	 * laid out for the cyclic convolution
+	 */
+	private final double[] chirpRe, chirpIm;
+	private final double[] kernelRe, kernelIm;
+
+	private final double[] re, im;
+
+	SineTransform(int n)
+	{
+		this.n = n;
+		this.m = 2 * (n + 1);
+
+		bluestein = Integer.bitCount(m) != 1;
+		size = bluestein ? Integer.highestOneBit(2 * m - 1) << 1 : m;
+
+		cos = new double[size / 2];
+		sin = new double[size / 2];
+		for (int i = 0; i < size / 2; i++)
+		{
+			cos[i] = Math.cos(2 * Math.PI * i / size);
+			sin[i] = -Math.sin(2 * Math.PI * i / size);
+		}
+
+		int bits = Integer.numberOfTrailingZeros(size);
+		reversed = new int[size];
+		for (int i = 0; i < size; i++)
+			reversed[i] = Integer.reverse(i) >>> (32 - bits);
+
+		re = new double[size];
+		im = new double[size];
+
+		if (!bluestein)
+		{
+			chirpRe = chirpIm = kernelRe = kernelIm = null;
+			return;
+		}
+
+		chirpRe = new double[m];
+		chirpIm = new double[m];
+		for (int k = 0; k < m; k++)
+		{
+			// k^2 modulo 2m keeps the angle small, and so accurate
+			double angle = Math.PI * ((long)k * k % (2L * m)) / m;
+			chirpRe[k] = Math.cos(angle);
+			chirpIm[k] = -Math.sin(angle);
+		}
+
+		kernelRe = new double[size];
+		kernelIm = new double[size];
+		kernelRe[0] = chirpRe[0];
+		kernelIm[0] = -chirpIm[0];
+		for (int k = 1; k < m; k++)
+		{
+			kernelRe[k] = kernelRe[size - k] = chirpRe[k];
+			kernelIm[k] = kernelIm[size - k] = -chirpIm[k];
+		}
+		fft(kernelRe, kernelIm);
+	}
+
+	/**
+	 * Transforms rows a and b of the data in place (b < 0 for none)
+	 *
+	 * @param data
+	 * @param a offset of the first row
+	 * @param b offset of the second row, -1 if there is just one
+	 */
+	void transform(double[] data, int a, int b)
+	{
+		// The odd extensions: 0, x[0..n-1], 0, -x[n-1..0]
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+
+		for (int j = 0; j < n; j++)
+		{
+			re[j + 1] = data[a + j];
+			re[m - 1 - j] = -data[a + j];
+
+			if (b >= 0)
+			{
+				im[j + 1] = data[b + j];
+				im[m - 1 - j] = -data[b + j];
+			}
+		}
+
+		if (bluestein)
+			bluestein();
+		else
+			fft(re, im);
+
+		// FFT = -2i * DST(a) + 2 * DST(b)
+		for (int k = 0; k < n; k++)
+		{
+			data[a + k] = -im[k + 1] / 2;
+			if (b >= 0) data[b + k] = re[k + 1] / 2;
+		}
+	}
+
+	/**
+	 * Fourier transform of length m of re/im (the first m entries), by Bluestein's algorithm
+	 */
+	private void bluestein()
+	{
+		for (int k = 0; k < m; k++)
+		{
+			double r = re[k] * chirpRe[k] - im[k] * chirpIm[k];
+			double i = re[k] * chirpIm[k] + im[k] * chirpRe[k];
+			re[k] = r;
+			im[k] = i;
+		}
+
+		fft(re, im);
+
+		// Convolution with the kernel, then the inverse FFT (as a forward one of the conjugate)
+		for (int k = 0; k < size; k++)
+		{
+			double r = re[k] * kernelRe[k] - im[k] * kernelIm[k];
+			double i = re[k] * kernelIm[k] + im[k] * kernelRe[k];
+			re[k] = r;
+			im[k] = -i;
+		}
+
+		fft(re, im);
+
+		for (int k = 0; k < m; k++)
+		{
+			double r = re[k] / size, i = -im[k] / size;
+			re[k] = r * chirpRe[k] - i * chirpIm[k];
+			im[k] = r * chirpIm[k] + i * chirpRe[k];
+		}
+	}
+
+	/**
+	 * In-place iterative radix-2 FFT of length size
+	 */
+	private void fft(double[] re, double[] im)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			int j = reversed[i];
+			if (j > i)
+			{
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+
+		for (int len = 2; len <= size; len <<= 1)
+		{
+			int half = len >> 1, step = size / len;
+
+			for (int start = 0; start < size; start += len)
+			{
+				for (int k = 0; k < half; k++)
+				{
+					double wr = cos[k * step], wi = sin[k * step];
+					int p = start + k, q = p + half;
+
+					double tr = re[q] * wr - im[q] * wi;
+					double ti = re[q] * wi + im[q] * wr;
+
+					re[q] = re[p] - tr;
+					im[q] = im[p] - ti;
+					re[p] += tr;
+					im[p] += ti;
+				}
+			}
+		}
+	}
+}
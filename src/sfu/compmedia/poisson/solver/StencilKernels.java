@@ -0,0 +1,178 @@
+package sfu.compmedia.poisson.solver;
+
+/**
+ *
+ * The inner loops of the 5-point stencil over planar rows: the guidance field of the equation (7)
+ * for the right-hand sides, and the Laplacian (as a residual) and the red-black relaxation of the
+ * multigrid smoother. All of them take a run of consecutive pixels [from, to) of a plane of width w,
+ * whose four neighbours (k - w, k + 1, k + w, k - 1) all exist - callers leave a pixel of border
+ * around what they pass in.
+ *
+ * This class is the plain scalar version. With the jdk.incubator.vector module present (JDK 16 and
+ * newer, started with --add-modules jdk.incubator.vector) get() returns VectorStencilKernels
+ * instead, which does the same arithmetic on as many pixels at a time as the CPU's vector registers
+ * hold (8 floats with AVX2, 16 with AVX-512). The results are the same bit for bit, except for the
+ * order in which the squared norm of the residual is summed up.
+ *
+ */
+public class StencilKernels {
+
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	private static final String VECTOR_CLASS = "sfu.compmedia.poisson.solver.VectorStencilKernels";
+
+	private static final StencilKernels SCALAR = new StencilKernels();
+	private static final StencilKernels BEST = load();
+
+	StencilKernels()
+	{
+		//
+	}
+
+	/**
+	 * The vector kernels if the Vector API is there, the scalar ones otherwise
+	 *
+	 * @return
+	 */
+	public static StencilKernels get()
+	{
+		return BEST;
+	}
+
+	/**
+	 * @return the scalar kernels, whatever the JVM supports
+	 */
+	public static StencilKernels scalar()
+	{
+		return SCALAR;
+	}
+
+	/**
+	 * The vector kernels are compiled separately (see editor/pom.xml) and only loaded once we know
+	 * the module is there, so a JVM without it never gets to see a reference to the Vector API
+	 */
+	private static StencilKernels load()
+	{
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent())
+			return SCALAR;
+
+		try
+		{
+			return (StencilKernels)Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			// Not built in, or built for a newer JVM than this one
+			return SCALAR;
+		}
+	}
+
+	/**
+	 * @return true if the kernels work on vectors of pixels
+	 */
+	public boolean isVectorized()
+	{
+		return false;
+	}
+
+	/**
+	 * The right-hand side of the equation (7) for a run of pixels: the divergence of the mixed
+	 * gradient field (per neighbour the bigger of the source and the target gradient) plus the known
+	 * target values of the neighbours outside the matte
+	 *
+	 * @param g source plane
+	 * @param fstar target plane
+	 * @param outside 1 for the pixels that are not unknowns, 0 for the unknowns
+	 * @param w width of the planes
+	 * @param from index of the first pixel
+	 * @param to index past the last pixel
+	 * @param out receives the pixel k at out[o + k - from]
+	 * @param o
+	 */
+	public void guidance(float[] g, float[] fstar, float[] outside, int w, int from, int to, float[] out, int o)
+	{
+		for (int k = from; k < to; k++)
+		{
+			final float fp = fstar[k], gp = g[k];
+
+			float grad = mixed(fp - fstar[k - w], gp - g[k - w]) + mixed(fp - fstar[k + 1], gp - g[k + 1]) +
+					mixed(fp - fstar[k + w], gp - g[k + w]) + mixed(fp - fstar[k - 1], gp - g[k - 1]);
+
+			// The known target values on the boundary of Omega (adding 0 for the unknowns changes nothing)
+			grad += fstar[k - w] * outside[k - w];
+			grad += fstar[k + 1] * outside[k + 1];
+			grad += fstar[k + w] * outside[k + w];
+			grad += fstar[k - 1] * outside[k - 1];
+
+			out[o + k - from] = grad;
+		}
+	}
+
+	/**
+	 * Equations (11) and (13) from the paper
+	 */
+	private static float mixed(float fstarDelta, float gDelta)
+	{
+		return Math.abs(fstarDelta) > Math.abs(gDelta) ? fstarDelta : gDelta;
+	}
+
+	/**
+	 * The Laplacian applied to u and subtracted from f, r = f - Au, on the pixels of the mask (r is
+	 * 0 elsewhere). u must be 0 outside the mask, that is what makes the neighbours outside Omega
+	 * drop out of the stencil.
+	 *
+	 * @param u
+	 * @param f
+	 * @param mask the unknowns
+	 * @param r
+	 * @param w width of the grid
+	 * @param from
+	 * @param to
+	 * @return the squared norm of r over [from, to)
+	 */
+	public double residual(double[] u, double[] f, boolean[] mask, double[] r, int w, int from, int to)
+	{
+		double norm = 0;
+
+		for (int i = from; i < to; i++)
+		{
+			if (mask[i])
+			{
+				double offDiagonal = -u[i - w] - u[i + 1] - u[i + w] - u[i - 1];
+				r[i] = f[i] - (LaplacianStencil.DIAGONAL * u[i] + offDiagonal);
+				norm += r[i] * r[i];
+			}
+			else
+			{
+				r[i] = 0;
+			}
+		}
+
+		return norm;
+	}
+
+	/**
+	 * Half a red-black sweep: Gauss-Seidel (omega = 1) or SOR on the pixels of one colour. None of
+	 * them is a neighbour of another, so they can all be updated at once. u must be 0 outside Omega,
+	 * as for residual().
+	 *
+	 * @param u
+	 * @param f
+	 * @param update the unknowns of the colour being relaxed
+	 * @param w width of the grid
+	 * @param from
+	 * @param to
+	 * @param omega relaxation factor, 1 for Gauss-Seidel
+	 */
+	public void relax(double[] u, double[] f, boolean[] update, int w, int from, int to, double omega)
+	{
+		for (int i = from; i < to; i++)
+		{
+			if (!update[i]) continue;
+
+			double offDiagonal = -u[i - w] - u[i + 1] - u[i + w] - u[i - 1];
+			double gs = (f[i] - offDiagonal) / LaplacianStencil.DIAGONAL;
+
+			u[i] = omega == 1 ? gs : u[i] + omega * (gs - u[i]);
+		}
+	}
+}
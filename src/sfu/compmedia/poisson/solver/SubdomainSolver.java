@@ -0,0 +1,10 @@
+package sfu.compmedia.poisson.solver;
+
+/*
+ * How the domain decomposition solver solves the problem on every tile
+ */
+
+public enum SubdomainSolver {
+	DIRECT_CHOLESKY,
+	CONJUGATE_GRADIENT
+}
@@ -0,0 +1,155 @@
+package sfu.compmedia.poisson.solver;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ *
+ * StencilKernels on the Vector API (jdk.incubator.vector): the same arithmetic on a whole vector
+ * of consecutive pixels at a time, the four neighbours being the vectors loaded one row up and down
+ * and one pixel to either side. The branches of the scalar code become compares and blends, and
+ * the pixels left over at the end of a run go through the scalar code.
+ *
+ * Compiled on its own for Java 17 with the incubator module (see editor/pom.xml), and only ever
+ * created by StencilKernels.get().
+ *
+ */
+final class VectorStencilKernels extends StencilKernels {
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+	/**
+	 * Pixels relaxed at a time (see relax)
+	 */
+	private static final int CHUNK = 256;
+
+	VectorStencilKernels()
+	{
+		//
+	}
+
+	@Override
+	public boolean isVectorized()
+	{
+		return true;
+	}
+
+	@Override
+	public void guidance(float[] g, float[] fstar, float[] outside, int w, int from, int to, float[] out, int o)
+	{
+		final int step = FLOATS.length();
+		final int bound = from + FLOATS.loopBound(to - from);
+
+		int k = from;
+		for (; k < bound; k += step)
+		{
+			FloatVector fp = FloatVector.fromArray(FLOATS, fstar, k);
+			FloatVector gp = FloatVector.fromArray(FLOATS, g, k);
+
+			FloatVector fUp = FloatVector.fromArray(FLOATS, fstar, k - w);
+			FloatVector fRight = FloatVector.fromArray(FLOATS, fstar, k + 1);
+			FloatVector fDown = FloatVector.fromArray(FLOATS, fstar, k + w);
+			FloatVector fLeft = FloatVector.fromArray(FLOATS, fstar, k - 1);
+
+			FloatVector grad = mixed(fp.sub(fUp), gp.sub(FloatVector.fromArray(FLOATS, g, k - w)))
+					.add(mixed(fp.sub(fRight), gp.sub(FloatVector.fromArray(FLOATS, g, k + 1))))
+					.add(mixed(fp.sub(fDown), gp.sub(FloatVector.fromArray(FLOATS, g, k + w))))
+					.add(mixed(fp.sub(fLeft), gp.sub(FloatVector.fromArray(FLOATS, g, k - 1))));
+
+			// No fused multiply-add, so that the sums are rounded like the scalar ones
+			grad = grad.add(fUp.mul(FloatVector.fromArray(FLOATS, outside, k - w)));
+			grad = grad.add(fRight.mul(FloatVector.fromArray(FLOATS, outside, k + 1)));
+			grad = grad.add(fDown.mul(FloatVector.fromArray(FLOATS, outside, k + w)));
+			grad = grad.add(fLeft.mul(FloatVector.fromArray(FLOATS, outside, k - 1)));
+
+			grad.intoArray(out, o + k - from);
+		}
+
+		super.guidance(g, fstar, outside, w, k, to, out, o + k - from);
+	}
+
+	private static FloatVector mixed(FloatVector fstarDelta, FloatVector gDelta)
+	{
+		VectorMask<Float> target = fstarDelta.abs().compare(VectorOperators.GT, gDelta.abs());
+		return gDelta.blend(fstarDelta, target);
+	}
+
+	@Override
+	public double residual(double[] u, double[] f, boolean[] mask, double[] r, int w, int from, int to)
+	{
+		final int step = DOUBLES.length();
+		final int bound = from + DOUBLES.loopBound(to - from);
+		final DoubleVector zero = DoubleVector.zero(DOUBLES);
+
+		DoubleVector norms = zero;
+
+		int i = from;
+		for (; i < bound; i += step)
+		{
+			VectorMask<Double> unknowns = VectorMask.fromArray(DOUBLES, mask, i);
+
+			DoubleVector offDiagonal = DoubleVector.fromArray(DOUBLES, u, i - w).neg()
+					.sub(DoubleVector.fromArray(DOUBLES, u, i + 1))
+					.sub(DoubleVector.fromArray(DOUBLES, u, i + w))
+					.sub(DoubleVector.fromArray(DOUBLES, u, i - 1));
+
+			DoubleVector ri = DoubleVector.fromArray(DOUBLES, f, i)
+					.sub(DoubleVector.fromArray(DOUBLES, u, i).mul(LaplacianStencil.DIAGONAL).add(offDiagonal));
+			ri = zero.blend(ri, unknowns);
+
+			ri.intoArray(r, i);
+			norms = norms.add(ri.mul(ri));
+		}
+
+		return norms.reduceLanes(VectorOperators.ADD) + super.residual(u, f, mask, r, w, i, to);
+	}
+
+	/**
+	 * The candidates go to a small buffer first and are blended into u afterwards: storing them
+	 * straight back would make every vector load u[i - 1] and u[i + 1] partly out of the store just
+	 * before it, which the CPU cannot forward and which made the sweep slower than the scalar one
+	 */
+	@Override
+	public void relax(double[] u, double[] f, boolean[] update, int w, int from, int to, double omega)
+	{
+		final int step = DOUBLES.length();
+		final double[] candidates = new double[CHUNK];
+
+		int i = from;
+		while (to - i >= step)
+		{
+			final int length = DOUBLES.loopBound(Math.min(CHUNK, to - i));
+
+			for (int k = 0; k < length; k += step)
+			{
+				DoubleVector offDiagonal = DoubleVector.fromArray(DOUBLES, u, i + k - w).neg()
+						.sub(DoubleVector.fromArray(DOUBLES, u, i + k + 1))
+						.sub(DoubleVector.fromArray(DOUBLES, u, i + k + w))
+						.sub(DoubleVector.fromArray(DOUBLES, u, i + k - 1));
+
+				// Dividing by 4 and multiplying by 1/4 round the same
+				DoubleVector.fromArray(DOUBLES, f, i + k).sub(offDiagonal).mul(1 / LaplacianStencil.DIAGONAL)
+						.intoArray(candidates, k);
+			}
+
+			for (int k = 0; k < length; k += step)
+			{
+				DoubleVector ui = DoubleVector.fromArray(DOUBLES, u, i + k);
+				DoubleVector gs = DoubleVector.fromArray(DOUBLES, candidates, k);
+				if (omega != 1)
+					gs = ui.add(gs.sub(ui).mul(omega));
+
+				// The pixels of the other colour are written back as they were
+				ui.blend(gs, VectorMask.fromArray(DOUBLES, update, i + k)).intoArray(u, i + k);
+			}
+
+			i += length;
+		}
+
+		super.relax(u, f, update, w, i, to, omega);
+	}
+}